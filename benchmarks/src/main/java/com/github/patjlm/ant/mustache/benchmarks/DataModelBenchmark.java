@@ -0,0 +1,87 @@
+package com.github.patjlm.ant.mustache.benchmarks;
+
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.patjlm.ant.mustache.LayeredMustacheData;
+import com.github.patjlm.ant.mustache.MustacheData;
+
+/**
+ * Measures the construction of a data model from simple and boolean
+ * properties, and of an overlay of ten properties over such a model.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataModelBenchmark {
+
+	@Param({ "1000", "10000", "100000" })
+	public int keys;
+
+	private Project project;
+
+	private Hashtable<String, String> properties;
+
+	private MustacheData base;
+
+	private Hashtable<String, String> overrides;
+
+	@Setup
+	public void setUp() {
+		project = SyntheticData.newProject();
+		properties = SyntheticData.properties(keys, 42);
+		base = SyntheticData.newData(project);
+		base.addProperties(properties, null, false);
+		base.freeze();
+		overrides = SyntheticData.properties(10, 43);
+	}
+
+	@Benchmark
+	public MustacheData addProperties() {
+		MustacheData data = SyntheticData.newData(project);
+		data.addProperties(properties, null, false);
+		return data;
+	}
+
+	@Benchmark
+	public MustacheData put() {
+		MustacheData data = SyntheticData.newData(project);
+		for (Map.Entry<String, String> property : properties.entrySet()) {
+			data.put(property.getKey(), property.getValue());
+		}
+		return data;
+	}
+
+	@Benchmark
+	public MustacheData addPropertiesAndFreeze() {
+		MustacheData data = SyntheticData.newData(project);
+		data.addProperties(properties, null, false);
+		data.freeze();
+		return data;
+	}
+
+	@Benchmark
+	public MustacheData overlay() {
+		MustacheData data = new LayeredMustacheData(base);
+		data.addProperties(overrides, null, false);
+		data.freeze();
+		return data;
+	}
+}
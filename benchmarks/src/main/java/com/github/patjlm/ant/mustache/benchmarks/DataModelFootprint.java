@@ -0,0 +1,63 @@
+package com.github.patjlm.ant.mustache.benchmarks;
+
+import java.util.Hashtable;
+
+import org.apache.tools.ant.Project;
+
+import com.github.patjlm.ant.mustache.MustacheData;
+
+/**
+ * Measures the heap retained by a data model made of list elements, before
+ * freezing (hash map nodes) and once frozen (compact nodes), with list ids
+ * kept as strings or as ints (numericListIds):
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.github.patjlm.ant.mustache.benchmarks.DataModelFootprint [&lt;elements&gt;] [&lt;fields&gt;] [&lt;numericListIds&gt;]
+ * </pre>
+ *
+ * The measure is the difference of the used heap after garbage collections,
+ * so it is only an estimate: run it with a fixed heap size (-Xms = -Xmx).
+ */
+public final class DataModelFootprint {
+
+	private DataModelFootprint() {
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static MustacheData build(Project project, Hashtable<String, String> properties, boolean freeze,
+			boolean numericListIds) {
+		MustacheData data = SyntheticData.newData(project, numericListIds);
+		data.addProperties(properties, null, false);
+		if (freeze) {
+			data.freeze();
+		}
+		return data;
+	}
+
+	public static void main(String[] args) {
+		int elements = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int fields = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		boolean numericListIds = args.length > 2 && Boolean.parseBoolean(args[2]);
+		Project project = SyntheticData.newProject();
+		Hashtable<String, String> properties = SyntheticData.listProperties("list", elements, fields, 42);
+
+		for (boolean freeze : new boolean[] { false, true }) {
+			long before = usedHeap();
+			MustacheData data = build(project, properties, freeze, numericListIds);
+			long after = usedHeap();
+			System.out.println((freeze ? "frozen" : "hash map") + " data model of " + elements + " elements of "
+					+ fields + " fields" + (numericListIds ? " (numeric ids)" : "") + ": " + (after - before) / 1024
+					+ " KB");
+			if (data.isEmpty()) {
+				System.out.println("empty data model");
+			}
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package com.github.patjlm.ant.mustache.benchmarks;
+
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.patjlm.ant.mustache.MustacheFilter;
+
+/**
+ * Measures MustacheFilter.filter end to end: data model construction (cold)
+ * or reuse (warm), template compilation and rendering.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+
+	@Param({ "1000", "10000" })
+	public int keys;
+
+	@Param({ "100" })
+	public int listSize;
+
+	@Param({ "true", "false" })
+	public boolean cacheTemplates;
+
+	private Hashtable<String, String> properties;
+
+	private String template;
+
+	private MustacheFilter warmFilter;
+
+	@Setup
+	public void setUp() {
+		properties = SyntheticData.properties(keys, 42);
+		properties.putAll(SyntheticData.listProperties("list", listSize, 3, 42));
+		template = SyntheticData.template(keys, 100, "list", null);
+		warmFilter = newFilter();
+		warmFilter.filter(template);
+	}
+
+	private MustacheFilter newFilter() {
+		Project project = SyntheticData.newProject();
+		for (Map.Entry<String, String> property : properties.entrySet()) {
+			project.setProperty(property.getKey(), property.getValue());
+		}
+		MustacheFilter filter = new MustacheFilter();
+		filter.setProject(project);
+		filter.setCacheTemplates(cacheTemplates);
+		return filter;
+	}
+
+	/**
+	 * a new project: the data model is built for each call
+	 */
+	@Benchmark
+	public String cold() {
+		return newFilter().filter(template);
+	}
+
+	/**
+	 * the data model is already built
+	 */
+	@Benchmark
+	public String warm() {
+		return warmFilter.filter(template);
+	}
+}
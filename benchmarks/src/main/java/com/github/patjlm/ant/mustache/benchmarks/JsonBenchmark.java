@@ -0,0 +1,53 @@
+package com.github.patjlm.ant.mustache.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.patjlm.ant.mustache.MustacheData;
+
+/**
+ * Measures the ingestion of large @JSON values into the data model.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+
+	@Param({ "100", "10000", "100000" })
+	public int elements;
+
+	@Param({ "0", "3" })
+	public int depth;
+
+	private Project project;
+
+	private String json;
+
+	@Setup
+	public void setUp() {
+		project = SyntheticData.newProject();
+		json = SyntheticData.json(elements, depth, 42);
+	}
+
+	@Benchmark
+	public MustacheData putJson() {
+		MustacheData data = SyntheticData.newData(project);
+		data.put("document@JSON", json);
+		return data;
+	}
+}
@@ -0,0 +1,60 @@
+package com.github.patjlm.ant.mustache.benchmarks;
+
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.patjlm.ant.mustache.MustacheData;
+
+/**
+ * Measures the construction of a large list from list properties
+ * (list.id.field=value), including the final sort of the elements, with ids
+ * kept as strings or as ints (numericListIds).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListBenchmark {
+
+	@Param({ "1000", "10000", "100000", "500000" })
+	public int elements;
+
+	@Param({ "1", "5" })
+	public int fields;
+
+	@Param({ "false", "true" })
+	public boolean numericListIds;
+
+	private Project project;
+
+	private Hashtable<String, String> properties;
+
+	@Setup
+	public void setUp() {
+		project = SyntheticData.newProject();
+		properties = SyntheticData.listProperties("list", elements, fields, 42);
+	}
+
+	@Benchmark
+	public MustacheData addList() {
+		MustacheData data = SyntheticData.newData(project, numericListIds);
+		data.addProperties(properties, null, false);
+		data.freeze();
+		return data;
+	}
+}
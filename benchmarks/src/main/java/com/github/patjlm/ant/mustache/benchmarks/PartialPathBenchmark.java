@@ -0,0 +1,88 @@
+package com.github.patjlm.ant.mustache.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.patjlm.ant.mustache.PartialPath;
+
+/**
+ * Measures partial lookups through a path of directories, the partial being
+ * only found in the last one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PartialPathBenchmark {
+
+	private static final String PARTIAL = "partial.mustache";
+
+	@Param({ "1", "10", "50" })
+	public int depth;
+
+	private File root;
+
+	private File[] directories;
+
+	private PartialPath.Loader loader;
+
+	@Setup
+	public void setUp() throws IOException {
+		root = File.createTempFile("mustache-partials", "");
+		root.delete();
+		directories = SyntheticData.partialDirectories(root, depth, PARTIAL, "{{field1}} {{field2}}");
+		loader = newPath().getLoader();
+	}
+
+	private PartialPath newPath() {
+		PartialPath path = new PartialPath(SyntheticData.newProject());
+		for (File directory : directories) {
+			path.createPathElement().setLocation(directory);
+		}
+		return path;
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (File directory : directories) {
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+		root.delete();
+	}
+
+	/**
+	 * a partial included repeatedly, as in a list section
+	 */
+	@Benchmark
+	public Reader repeatedLookup() {
+		return loader.getTemplate(PARTIAL);
+	}
+
+	/**
+	 * a partial looked up and read through a new path
+	 */
+	@Benchmark
+	public Reader firstLookup() {
+		return newPath().getLoader().getTemplate(PARTIAL);
+	}
+}
@@ -0,0 +1,66 @@
+package com.github.patjlm.ant.mustache.benchmarks;
+
+import java.util.Hashtable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.patjlm.ant.mustache.DataModelCollector;
+import com.github.patjlm.ant.mustache.MustacheData;
+import com.samskivert.mustache.DefaultCollector;
+import com.samskivert.mustache.Mustache;
+import com.samskivert.mustache.Template;
+
+/**
+ * Measures the rendering of a list heavy template over a frozen data model,
+ * with the JMustache default collector or with the data model collector. The
+ * template reads the fields of each element, a key of the root model from
+ * within the list (found after a miss in the element) and a boolean section.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+
+	@Param({ "100", "10000" })
+	public int elements;
+
+	@Param({ "default", "data" })
+	public String collector;
+
+	private Template template;
+
+	private MustacheData data;
+
+	@Setup
+	public void setUp() {
+		Hashtable<String, String> properties = SyntheticData.listProperties("list", elements, 3, 42);
+		properties.put("title", "list");
+		properties.put("flag?", "true");
+		data = SyntheticData.newData(SyntheticData.newProject());
+		data.addProperties(properties, null, false);
+		data.freeze();
+		Mustache.Collector c = "data".equals(collector) ? DataModelCollector.INSTANCE : new DefaultCollector();
+		// no HTML escaping, as for the filter by default
+		template = Mustache.compiler().withCollector(c).escapeHTML(false).compile(
+				"{{#list}}{{__id__}} {{field0}} {{field1}} {{field2}} {{title}}{{#flag?}} on{{/flag?}}\n{{/list}}");
+	}
+
+	@Benchmark
+	public String render() {
+		return template.execute(data);
+	}
+}
@@ -0,0 +1,92 @@
+package com.github.patjlm.ant.mustache.benchmarks;
+
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.tools.ant.Project;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.patjlm.ant.mustache.DataModelCollector;
+import com.github.patjlm.ant.mustache.MustacheData;
+import com.github.patjlm.ant.mustache.MustacheFilter;
+import com.samskivert.mustache.Mustache;
+import com.samskivert.mustache.Template;
+
+/**
+ * Compares the allocations of a render into the StringWriter of
+ * Template.execute(Object) with the filter, which renders into a pooled
+ * buffer presized from its previous outputs. Run it with the GC profiler and
+ * compare gc.alloc.rate.norm, the bytes allocated per render:
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar RenderBufferBenchmark -prof gc
+ * </pre>
+ *
+ * The filter also looks the compiled template up in the template cache,
+ * which hashes the template text.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBufferBenchmark {
+
+	private static final String TEMPLATE = "{{#list}}{{__id__}} {{field0}} {{field1}} {{field2}}\n{{/list}}";
+
+	@Param({ "100", "10000" })
+	public int elements;
+
+	private Template template;
+
+	private MustacheData data;
+
+	private MustacheFilter filter;
+
+	@Setup
+	public void setUp() {
+		Hashtable<String, String> properties = SyntheticData.listProperties("list", elements, 3, 42);
+		Project project = SyntheticData.newProject();
+		data = SyntheticData.newData(project);
+		data.addProperties(properties, null, false);
+		data.freeze();
+		template = Mustache.compiler().withCollector(DataModelCollector.INSTANCE).escapeHTML(false)
+				.compile(TEMPLATE);
+
+		Project filterProject = SyntheticData.newProject();
+		for (Map.Entry<String, String> property : properties.entrySet()) {
+			filterProject.setProperty(property.getKey(), property.getValue());
+		}
+		filter = new MustacheFilter();
+		filter.setProject(filterProject);
+		filter.filter(TEMPLATE);
+	}
+
+	/**
+	 * renders into a new StringWriter, grown while rendering
+	 */
+	@Benchmark
+	public String stringWriter() {
+		return template.execute(data);
+	}
+
+	/**
+	 * renders into a buffer of the pool of the project
+	 */
+	@Benchmark
+	public String filter() {
+		return filter.filter(TEMPLATE);
+	}
+}
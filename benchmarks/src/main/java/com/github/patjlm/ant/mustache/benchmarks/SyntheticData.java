@@ -0,0 +1,252 @@
+package com.github.patjlm.ant.mustache.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Hashtable;
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.tools.ant.Project;
+
+import com.github.patjlm.ant.mustache.MustacheData;
+
+/**
+ * Generates synthetic property sets, JSON documents, templates and partial
+ * directories for the benchmarks. The generated data only depends on the
+ * given sizes and seed, so that measures can be compared between runs.
+ *
+ * <p>
+ * Can also be run to write a data file and a template into a directory, for
+ * measures with Ant itself:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.github.patjlm.ant.mustache.benchmarks.SyntheticData &lt;dir&gt; &lt;keys&gt; [&lt;list size&gt;]
+ * </pre>
+ */
+public final class SyntheticData {
+
+	private SyntheticData() {
+	}
+
+	/**
+	 * @param keys
+	 *            the number of properties
+	 * @param seed
+	 *            the seed of the generator
+	 * @return simple properties, one out of ten being a boolean one
+	 */
+	public static Hashtable<String, String> properties(int keys, long seed) {
+		Random random = new Random(seed);
+		Hashtable<String, String> props = new Hashtable<String, String>(keys * 2);
+		for (int i = 0; i < keys; i++) {
+			if (i % 10 == 0) {
+				props.put("flag" + i + "?", random.nextBoolean() ? "true" : "false");
+			} else {
+				props.put("key" + i, word(random));
+			}
+		}
+		return props;
+	}
+
+	/**
+	 * @param name
+	 *            the name of the list
+	 * @param elements
+	 *            the number of elements
+	 * @param fields
+	 *            the number of fields of each element
+	 * @param seed
+	 *            the seed of the generator
+	 * @return list properties (name.id.field=value). The ids are 0 to
+	 *         elements - 1, the iteration order of the table is not the id
+	 *         order.
+	 */
+	public static Hashtable<String, String> listProperties(String name, int elements, int fields, long seed) {
+		Random random = new Random(seed);
+		Hashtable<String, String> props = new Hashtable<String, String>(elements * fields * 2);
+		for (int i = 0; i < elements; i++) {
+			for (int j = 0; j < fields; j++) {
+				props.put(name + "." + i + ".field" + j, word(random));
+			}
+		}
+		return props;
+	}
+
+	/**
+	 * @param elements
+	 *            the number of elements of the top level array
+	 * @param depth
+	 *            the nesting depth of each element
+	 * @param seed
+	 *            the seed of the generator
+	 * @return a JSON document: an array of objects holding scalars, arrays and
+	 *         nested objects
+	 */
+	public static String json(int elements, int depth, long seed) {
+		Random random = new Random(seed);
+		StringBuilder json = new StringBuilder(elements * 64 * (depth + 1));
+		json.append('[');
+		for (int i = 0; i < elements; i++) {
+			if (i > 0) {
+				json.append(',');
+			}
+			appendObject(json, random, i, depth);
+		}
+		json.append(']');
+		return json.toString();
+	}
+
+	private static void appendObject(StringBuilder json, Random random, int id, int depth) {
+		json.append("{\"id\":").append(id);
+		json.append(",\"name\":\"").append(word(random)).append('"');
+		json.append(",\"enabled\":").append(random.nextBoolean());
+		json.append(",\"ratio\":").append(random.nextDouble());
+		json.append(",\"tags\":[\"").append(word(random)).append("\",\"").append(word(random)).append("\"]");
+		if (depth > 0) {
+			json.append(",\"child\":");
+			appendObject(json, random, id, depth - 1);
+		}
+		json.append('}');
+	}
+
+	/**
+	 * @param keys
+	 *            the number of properties generated by
+	 *            {@link #properties(int, long)}
+	 * @param variables
+	 *            the number of variables of the template
+	 * @param listName
+	 *            the name of a list to iterate over, or null
+	 * @param partial
+	 *            the name of a partial to include for each list element, or
+	 *            null
+	 * @return a template using the generated properties
+	 */
+	public static String template(int keys, int variables, String listName, String partial) {
+		StringBuilder template = new StringBuilder();
+		for (int i = 0; i < variables; i++) {
+			int key = (int) ((long) i * keys / variables);
+			if (key % 10 == 0) {
+				template.append("{{#flag").append(key).append("?}}flag ").append(key).append(" set{{/flag")
+						.append(key).append("?}}\n");
+			} else {
+				template.append("key").append(key).append(" = {{key").append(key).append("}}\n");
+			}
+		}
+		if (listName != null) {
+			template.append("{{#").append(listName).append("}}\n");
+			template.append("- {{__id__}}: {{field0}}");
+			if (partial != null) {
+				template.append(" {{> ").append(partial).append("}}");
+			}
+			template.append("\n{{/").append(listName).append("}}\n");
+		}
+		return template.toString();
+	}
+
+	/**
+	 * creates a path of directories, the partial being only in the last one
+	 *
+	 * @param root
+	 *            the directory to create the path directories into
+	 * @param depth
+	 *            the number of directories
+	 * @param partial
+	 *            the name of the partial
+	 * @param content
+	 *            the content of the partial
+	 * @return the directories of the path, in lookup order
+	 * @throws IOException
+	 *             if a file can not be written
+	 */
+	public static File[] partialDirectories(File root, int depth, String partial, String content)
+			throws IOException {
+		File[] directories = new File[depth];
+		for (int i = 0; i < depth; i++) {
+			directories[i] = new File(root, "partials" + i);
+			if (!directories[i].isDirectory() && !directories[i].mkdirs()) {
+				throw new IOException("Unable to create directory " + directories[i]);
+			}
+		}
+		write(new File(directories[depth - 1], partial), content);
+		return directories;
+	}
+
+	/**
+	 * @return an empty data model with the default settings of the filter
+	 */
+	public static MustacheData newData(Project project) {
+		return newData(project, false);
+	}
+
+	/**
+	 * @param numericListIds
+	 *            whether list ids should be kept as numbers
+	 * @return an empty data model with the default settings of the filter
+	 *         otherwise
+	 */
+	public static MustacheData newData(Project project, boolean numericListIds) {
+		return new MustacheData(project, "^.+?$", true, "__id__", "(.+?)\\.(\\d+)\\.(.+)", numericListIds, true,
+				"^(.+)(@JSON)$");
+	}
+
+	/**
+	 * @return a new initialized Ant project
+	 */
+	public static Project newProject() {
+		Project project = new Project();
+		project.init();
+		return project;
+	}
+
+	private static String word(Random random) {
+		char[] word = new char[4 + random.nextInt(8)];
+		for (int i = 0; i < word.length; i++) {
+			word[i] = (char) ('a' + random.nextInt(26));
+		}
+		return new String(word);
+	}
+
+	private static void write(File file, String text) throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			writer.write(text);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * writes data.properties, holding simple and list properties, and
+	 * template.mustache into a directory
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: SyntheticData <dir> <keys> [<list size>]");
+			System.exit(1);
+		}
+		File dir = new File(args[0]);
+		int keys = Integer.parseInt(args[1]);
+		int listSize = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create directory " + dir);
+		}
+		Properties props = new Properties();
+		props.putAll(properties(keys, 42));
+		if (listSize > 0) {
+			props.putAll(listProperties("list", listSize, 3, 42));
+		}
+		OutputStream out = new FileOutputStream(new File(dir, "data.properties"));
+		try {
+			props.store(out, "generated by " + SyntheticData.class.getName());
+		} finally {
+			out.close();
+		}
+		write(new File(dir, "template.mustache"),
+				template(keys, Math.min(keys, 100), listSize > 0 ? "list" : null, null));
+	}
+}
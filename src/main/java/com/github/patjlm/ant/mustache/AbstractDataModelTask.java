@@ -0,0 +1,111 @@
+package com.github.patjlm.ant.mustache;
+
+import java.io.File;
+
+import org.apache.tools.ant.Task;
+
+/**
+ * Base class of the tasks using a data model. The data model settings are the
+ * same as the ones of the mustache filter, and the data model is built and
+ * shared the same way (see {@link MustacheFilter}).
+ */
+public abstract class AbstractDataModelTask extends Task {
+
+	/**
+	 * holds the data model settings, and the JMustache settings for the tasks
+	 * rendering templates
+	 */
+	protected final MustacheFilter settings = new MustacheFilter();
+
+	public void setProjectProperties(Boolean projectProperties) {
+		settings.setProjectProperties(projectProperties);
+	}
+
+	public void setPrefix(String prefix) {
+		settings.setPrefix(prefix);
+	}
+
+	public void setRemovePrefix(Boolean removePrefix) {
+		settings.setRemovePrefix(removePrefix);
+	}
+
+	public void setBooleanRegex(String booleanRegex) {
+		settings.setBooleanRegex(booleanRegex);
+	}
+
+	public void setSupportLists(Boolean supportLists) {
+		settings.setSupportLists(supportLists);
+	}
+
+	public void setListIdName(String listIdName) {
+		settings.setListIdName(listIdName);
+	}
+
+	public void setListRegex(String listRegex) {
+		settings.setListRegex(listRegex);
+	}
+
+	public void setNumericListIds(Boolean numericListIds) {
+		settings.setNumericListIds(numericListIds);
+	}
+
+	public void setSupportJson(Boolean supportJson) {
+		settings.setSupportJson(supportJson);
+	}
+
+	public void setJsonValueRegex(String jsonValueRegex) {
+		settings.setJsonValueRegex(jsonValueRegex);
+	}
+
+	public void setJsonTrees(Boolean jsonTrees) {
+		settings.setJsonTrees(jsonTrees);
+	}
+
+	public void setLazyData(Boolean lazyData) {
+		settings.setLazyData(lazyData);
+	}
+
+	public void setDataFile(File dataFile) {
+		settings.setDataFile(dataFile);
+	}
+
+	public void setJsonDataFile(String jsonDataFile) {
+		settings.setJsonDataFile(jsonDataFile);
+	}
+
+	public void setSnapshotFile(File snapshotFile) {
+		settings.setSnapshotFile(snapshotFile);
+	}
+
+	public void setCacheDir(File cacheDir) {
+		settings.setCacheDir(cacheDir);
+	}
+
+	public void setOverlayPrefix(String overlayPrefix) {
+		settings.setOverlayPrefix(overlayPrefix);
+	}
+
+	public void setOverlayDataFile(File overlayDataFile) {
+		settings.setOverlayDataFile(overlayDataFile);
+	}
+
+	public void setOverlayJsonDataFile(String overlayJsonDataFile) {
+		settings.setOverlayJsonDataFile(overlayJsonDataFile);
+	}
+
+	public void setStatistics(Boolean statistics) {
+		settings.setStatistics(statistics);
+	}
+
+	public void setStatisticsFile(File statisticsFile) {
+		settings.setStatisticsFile(statisticsFile);
+	}
+
+	/**
+	 * @return the data model, built or shared according to the settings
+	 */
+	protected MustacheData getData() {
+		settings.setProject(getProject());
+		return settings.getData();
+	}
+}
@@ -0,0 +1,133 @@
+package com.github.patjlm.ant.mustache;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+
+import org.apache.tools.ant.types.Path;
+
+import com.samskivert.mustache.Template;
+
+/**
+ * Base class of the tasks rendering template files: the JMustache settings are
+ * the same as the ones of the mustache filter.
+ */
+public abstract class AbstractTemplateTask extends AbstractDataModelTask {
+
+	/**
+	 * the encoding of the template and rendered files. Defaults to the
+	 * platform encoding.
+	 */
+	private String encoding = null;
+
+	public void setEncoding(String encoding) {
+		this.encoding = encoding;
+	}
+
+	public String getEncoding() {
+		return encoding;
+	}
+
+	public void setDefaultValue(String defaultValue) {
+		settings.setDefaultValue(defaultValue);
+	}
+
+	public void setStrictSections(boolean strictSections) {
+		settings.setStrictSections(strictSections);
+	}
+
+	public void setEmptyStringIsFalse(boolean emptyStringIsFalse) {
+		settings.setEmptyStringIsFalse(emptyStringIsFalse);
+	}
+
+	public void setEscapeHTML(boolean escapeHTML) {
+		settings.setEscapeHTML(escapeHTML);
+	}
+
+	public void setPartialPath(PartialPath partialPath) {
+		settings.setPartialPath(partialPath);
+	}
+
+	public void addPartialPath(PartialPath partialPath) {
+		settings.addPartialPath(partialPath);
+	}
+
+	public void setCacheTemplates(boolean cacheTemplates) {
+		settings.setCacheTemplates(cacheTemplates);
+	}
+
+	public void setCompiledPackage(String compiledPackage) {
+		settings.setCompiledPackage(compiledPackage);
+	}
+
+	public void setCompiledClasspath(Path compiledClasspath) {
+		settings.setCompiledClasspath(compiledClasspath);
+	}
+
+	/**
+	 * @return the content of a template file, read with the encoding
+	 */
+	protected String read(File file) throws IOException {
+		return read(file, encoding);
+	}
+
+	/**
+	 * @param encoding
+	 *            the encoding of the file, or null for the platform encoding
+	 * @return the content of a template file
+	 */
+	static String read(File file, String encoding) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			Reader reader = encoding == null ? new InputStreamReader(in) : new InputStreamReader(in, encoding);
+			StringBuilder text = new StringBuilder((int) Math.min(file.length(), Integer.MAX_VALUE));
+			char[] buffer = new char[8192];
+			int n;
+			while ((n = reader.read(buffer)) != -1) {
+				text.append(buffer, 0, n);
+			}
+			return text.toString();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * renders a template into a file, with the encoding. The directory of the
+	 * file is created if needed, and a partially rendered file is deleted.
+	 *
+	 * @param name
+	 *            the name of the template in the statistics
+	 */
+	protected void render(Template template, Object context, File output, RenderStatistics statistics, String name)
+			throws IOException {
+		File parent = output.getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+			throw new IOException("Unable to create directory " + parent);
+		}
+		FileOutputStream out = new FileOutputStream(output);
+		boolean rendered = false;
+		try {
+			Writer writer = new BufferedWriter(encoding == null ? new OutputStreamWriter(out)
+					: new OutputStreamWriter(out, encoding));
+			RenderStatistics.CountingWriter counter = new RenderStatistics.CountingWriter(writer);
+			long start = System.nanoTime();
+			template.execute(context, counter);
+			writer.flush();
+			statistics.addRender(name, System.nanoTime() - start, counter.getCount());
+			rendered = true;
+		} finally {
+			out.close();
+			if (!rendered) {
+				// do not leave a partially rendered file
+				output.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package com.github.patjlm.ant.mustache;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The rows of a batch rendering, read one at a time. Each row is returned as a
+ * frozen overlay of the base data model (see {@link LayeredMustacheData}), so
+ * that the base model is shared by all the rows and only one row is held in
+ * memory at once.
+ */
+abstract class BatchRows {
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	/**
+	 * @param base
+	 *            the frozen base data model
+	 * @return the next row layered over the base data model, or null if there
+	 *         are no more rows
+	 * @throws IOException
+	 *             if the row can not be read
+	 */
+	abstract MustacheData next(MustacheData base) throws IOException;
+
+	/**
+	 * releases the source of the rows
+	 */
+	void close() throws IOException {
+	}
+
+	/**
+	 * @return rows read from a file holding one JSON object per line (JSON
+	 *         lines). The fields of each object are added the same way as the
+	 *         ones of a JSON data file.
+	 */
+	static BatchRows jsonLines(File file, String encoding) throws IOException {
+		final JsonParser parser = encoding == null ? JSON_FACTORY.createParser(file)
+				: JSON_FACTORY.createParser(new InputStreamReader(new FileInputStream(file), encoding));
+		return new BatchRows() {
+			@Override
+			MustacheData next(MustacheData base) throws IOException {
+				JsonToken token = parser.nextToken();
+				if (token == null) {
+					return null;
+				} else if (token != JsonToken.START_OBJECT) {
+					throw new IOException("Expected a JSON object at line " + parser.getCurrentLocation().getLineNr()
+							+ ", found " + token);
+				}
+				LayeredMustacheData row = new LayeredMustacheData(base);
+				row.addJsonObject(parser);
+				row.freeze();
+				return row;
+			}
+
+			@Override
+			void close() throws IOException {
+				parser.close();
+			}
+		};
+	}
+
+	/**
+	 * @return rows read from a CSV file. The first record holds the keys of
+	 *         the columns, which are classified the same way as property keys
+	 *         (lists, booleans, JSON values).
+	 */
+	static BatchRows csv(File file, String encoding, char separator) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		Reader reader = encoding == null ? new InputStreamReader(in) : new InputStreamReader(in, encoding);
+		final CsvReader csv = new CsvReader(new BufferedReader(reader), separator);
+		final List<String> header;
+		try {
+			header = csv.read();
+		} catch (IOException e) {
+			csv.close();
+			throw e;
+		}
+		return new BatchRows() {
+			@Override
+			MustacheData next(MustacheData base) throws IOException {
+				List<String> record;
+				do {
+					record = csv.read();
+				} while (record != null && record.size() == 1 && record.get(0).length() == 0);
+				if (record == null) {
+					return null;
+				} else if (header == null || record.size() > header.size()) {
+					throw new IOException("The record at line " + csv.getRecordLine() + " has " + record.size()
+							+ " fields, more than the " + (header == null ? 0 : header.size()) + " columns");
+				}
+				LayeredMustacheData row = new LayeredMustacheData(base);
+				for (int i = 0; i < record.size(); i++) {
+					row.put(header.get(i), record.get(i));
+				}
+				row.freeze();
+				return row;
+			}
+
+			@Override
+			void close() throws IOException {
+				csv.close();
+			}
+		};
+	}
+
+	/**
+	 * @param elements
+	 *            a list of the data model, or a JSON array
+	 * @return the elements of the list, each element being layered over the
+	 *         base data model
+	 */
+	static BatchRows list(final Iterable<?> elements) {
+		return new BatchRows() {
+			private final Iterator<?> iterator = elements.iterator();
+			private int index = 0;
+
+			@Override
+			MustacheData next(MustacheData base) throws IOException {
+				if (!iterator.hasNext()) {
+					return null;
+				}
+				Object element = iterator.next();
+				index++;
+				if (element instanceof ObjectNode) {
+					element = base.jsonObjectData((ObjectNode) element);
+				}
+				if (!(element instanceof Map)) {
+					throw new IOException("The element " + index + " of the list is not an object: " + element);
+				}
+				@SuppressWarnings("unchecked")
+				Map<String, Object> entries = (Map<String, Object>) element;
+				return LayeredMustacheData.layer(base, entries);
+			}
+		};
+	}
+
+	/**
+	 * Reads the records of a CSV file (RFC 4180): fields are separated by the
+	 * separator, and may be enclosed in double quotes in order to hold
+	 * separators, line breaks or double quotes (written twice).
+	 */
+	static class CsvReader {
+		private final BufferedReader reader;
+		private final char separator;
+		private int line = 1;
+		private int recordLine = 1;
+		private boolean started = false;
+
+		CsvReader(BufferedReader reader, char separator) {
+			this.reader = reader;
+			this.separator = separator;
+		}
+
+		/**
+		 * @return the line the last record read starts on
+		 */
+		int getRecordLine() {
+			return recordLine;
+		}
+
+		/**
+		 * @return the fields of the next record, or null at the end of the
+		 *         file
+		 */
+		List<String> read() throws IOException {
+			recordLine = line;
+			List<String> fields = new ArrayList<String>();
+			StringBuilder field = new StringBuilder();
+			boolean quoted = false;
+			boolean empty = true;
+			while (true) {
+				int c = reader.read();
+				if (!started) {
+					started = true;
+					if (c == '\uFEFF') {
+						c = reader.read();
+					}
+				}
+				if (c == -1) {
+					if (quoted) {
+						throw new IOException("Unterminated quoted field at line " + line);
+					}
+					if (empty) {
+						return null;
+					}
+					fields.add(field.toString());
+					return fields;
+				}
+				empty = false;
+				if (quoted) {
+					if (c == '"') {
+						reader.mark(1);
+						if (reader.read() == '"') {
+							field.append('"');
+						} else {
+							reader.reset();
+							quoted = false;
+						}
+					} else {
+						if (c == '\n') {
+							line++;
+						}
+						field.append((char) c);
+					}
+				} else if (c == '"' && field.length() == 0) {
+					quoted = true;
+				} else if (c == separator) {
+					fields.add(field.toString());
+					field.setLength(0);
+				} else if (c == '\n' || c == '\r') {
+					if (c == '\r') {
+						reader.mark(1);
+						if (reader.read() != '\n') {
+							reader.reset();
+						}
+					}
+					line++;
+					fields.add(field.toString());
+					return fields;
+				} else {
+					field.append((char) c);
+				}
+			}
+		}
+
+		void close() throws IOException {
+			reader.close();
+		}
+	}
+}
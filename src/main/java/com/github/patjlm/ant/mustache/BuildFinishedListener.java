@@ -0,0 +1,38 @@
+package com.github.patjlm.ant.mustache;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+
+/**
+ * A build listener only interested in the end of the build, the other events
+ * being ignored.
+ */
+abstract class BuildFinishedListener implements BuildListener {
+
+	@Override
+	public abstract void buildFinished(BuildEvent event);
+
+	@Override
+	public void buildStarted(BuildEvent event) {
+	}
+
+	@Override
+	public void targetStarted(BuildEvent event) {
+	}
+
+	@Override
+	public void targetFinished(BuildEvent event) {
+	}
+
+	@Override
+	public void taskStarted(BuildEvent event) {
+	}
+
+	@Override
+	public void taskFinished(BuildEvent event) {
+	}
+
+	@Override
+	public void messageLogged(BuildEvent event) {
+	}
+}
@@ -0,0 +1,387 @@
+package com.github.patjlm.ant.mustache;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+
+import com.samskivert.mustache.Mustache;
+import com.samskivert.mustache.MustacheException;
+import com.samskivert.mustache.Template;
+
+/**
+ * Base class of the templates compiled ahead of time to Java classes (see
+ * {@link MustacheCompileTask}).
+ *
+ * <p>
+ * A generated class holds the constant text of the template and one method
+ * per block of the template: the template itself, each section and each
+ * partial. Partials are inlined when the class is generated. Values are
+ * looked up, formatted, escaped and iterated over exactly the way the
+ * segments of a JMustache template do, using the compiler the template is
+ * created with, so that a generated template renders the same text as the
+ * template compiled by JMustache at run time.
+ *
+ * <p>
+ * Generated classes are named after the SHA-1 of the text of their template
+ * (see {@link #CLASS_PREFIX}), so that a template text can be matched with
+ * its generated class without any index.
+ */
+public abstract class CompiledTemplate extends Template {
+
+	/**
+	 * the prefix of the simple name of the generated classes, followed by the
+	 * SHA-1 of the template text
+	 */
+	public static final String CLASS_PREFIX = "Template_";
+
+	/**
+	 * the names of the partials inlined into the generated class, each
+	 * followed by the SHA-1 of its text when the class was generated
+	 */
+	private final String[] partials;
+
+	/**
+	 * the fetchers found at each variable and section of the template, by
+	 * class of context
+	 */
+	private final Fetchers[] sites;
+
+	/**
+	 * @param compiler
+	 *            the compiler whose settings (escaper, formatter, collector,
+	 *            default value...) are used when rendering
+	 * @param sites
+	 *            the number of variables and sections of the template
+	 * @param partials
+	 *            the names of the partials inlined, each followed by the
+	 *            SHA-1 of its text
+	 */
+	protected CompiledTemplate(Mustache.Compiler compiler, int sites, String... partials) {
+		super(new Segment[0], compiler);
+		this.sites = new Fetchers[sites];
+		this.partials = partials;
+	}
+
+	/**
+	 * renders a block of the template
+	 *
+	 * @param block
+	 *            the index of the block, 0 being the template itself
+	 */
+	protected abstract void block(int block, Context ctx, Writer out);
+
+	/**
+	 * appends the source of a block of the template, as a JMustache fragment
+	 * decompiles it with the default delimiters
+	 */
+	protected abstract void decompile(int block, StringBuilder into);
+
+	@Override
+	protected void executeSegs(Context ctx, Writer out) throws MustacheException {
+		block(0, ctx, out);
+	}
+
+	/**
+	 * @return true if the partials inlined into this template are the ones
+	 *         the loader of the compiler currently returns
+	 */
+	boolean isUpToDate() {
+		for (int i = 0; i < partials.length; i += 2) {
+			try {
+				Reader reader = _compiler.loader.getTemplate(partials[i]);
+				try {
+					if (!partials[i + 1].equals(TemplateCache.hash(read(reader)))) {
+						return false;
+					}
+				} finally {
+					reader.close();
+				}
+			} catch (Exception e) {
+				// JMustache reports the failure when the partial is rendered
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static String read(Reader reader) throws IOException {
+		StringBuilder text = new StringBuilder();
+		char[] buffer = new char[4096];
+		int n;
+		while ((n = reader.read(buffer)) != -1) {
+			text.append(buffer, 0, n);
+		}
+		return text.toString();
+	}
+
+	/**
+	 * writes constant text
+	 */
+	protected static void text(Writer out, String text) {
+		try {
+			out.write(text);
+		} catch (IOException e) {
+			throw new MustacheException(e);
+		}
+	}
+
+	/**
+	 * writes the value of a variable, as a JMustache variable segment does
+	 *
+	 * @param site
+	 *            the index of the variable in the template
+	 * @param name
+	 *            the interned name of the variable
+	 * @param escape
+	 *            false for the unescaped variables ({@code {{&name}}})
+	 */
+	protected void variable(Context ctx, int site, String name, int line, boolean escape, Writer out) {
+		Object value = getValue(ctx, site, name, line, _compiler.missingIsNull);
+		if (value == null) {
+			value = _compiler.computeNullValue(name);
+		}
+		if (value == null) {
+			throw new MustacheException.Context("No key, method or field with name '" + name + "' on line " + line,
+					name, line);
+		}
+		String formatted = _compiler.formatter.format(value);
+		text(out, escape ? _compiler.escaper.escape(formatted) : formatted);
+	}
+
+	/**
+	 * renders a section, as a JMustache section segment does
+	 *
+	 * @param site
+	 *            the index of the section in the template
+	 * @param block
+	 *            the block of the content of the section
+	 */
+	protected void section(Context ctx, int site, String name, int line, int block, Writer out) {
+		Object value = getValue(ctx, site, name, line, !_compiler.strictSections);
+		if (value == null) {
+			value = Collections.emptyList();
+		}
+		Iterator<?> iter = _compiler.collector.toIterator(value);
+		if (iter != null) {
+			int index = 0;
+			while (iter.hasNext()) {
+				Object elem = iter.next();
+				boolean onFirst = (index == 0);
+				boolean onLast = !iter.hasNext();
+				block(block, ctx.nest(elem, ++index, onFirst, onLast), out);
+			}
+		} else if (value instanceof Boolean) {
+			if ((Boolean) value) {
+				block(block, ctx, out);
+			}
+		} else if (value instanceof Mustache.Lambda) {
+			try {
+				((Mustache.Lambda) value).execute(fragment(block, ctx), out);
+			} catch (IOException e) {
+				throw new MustacheException(e);
+			}
+		} else if (!_compiler.isFalsey(value)) {
+			block(block, ctx.nest(value, 0, false, false), out);
+		}
+	}
+
+	/**
+	 * renders an inverted section, as a JMustache inverted segment does
+	 *
+	 * @param site
+	 *            the index of the section in the template
+	 * @param block
+	 *            the block of the content of the section
+	 */
+	protected void inverted(Context ctx, int site, String name, int line, int block, Writer out) {
+		Object value = getValue(ctx, site, name, line, !_compiler.strictSections);
+		if (value == null) {
+			value = Collections.emptyList();
+		}
+		Iterator<?> iter = _compiler.collector.toIterator(value);
+		if (iter != null) {
+			if (!iter.hasNext()) {
+				block(block, ctx, out);
+			}
+		} else if (value instanceof Boolean) {
+			if (!(Boolean) value) {
+				block(block, ctx, out);
+			}
+		} else if (value instanceof Mustache.InvertibleLambda) {
+			try {
+				((Mustache.InvertibleLambda) value).executeInverse(fragment(block, ctx), out);
+			} catch (IOException e) {
+				throw new MustacheException(e);
+			}
+		} else if (_compiler.isFalsey(value)) {
+			block(block, ctx, out);
+		}
+	}
+
+	/**
+	 * looks a value up as {@link #getValue(Context, String, int, boolean)}
+	 * does, the fetchers being cached by site instead of by name
+	 */
+	private Object getValue(Context ctx, int site, String name, int line, boolean missingIsNull) {
+		if (name == FIRST_NAME) {
+			return ctx.onFirst;
+		} else if (name == LAST_NAME) {
+			return ctx.onLast;
+		} else if (name == INDEX_NAME) {
+			return ctx.index;
+		}
+		if (_compiler.standardsMode) {
+			return checkForMissing(name, line, missingIsNull, getValueIn(site, ctx.data, name, line));
+		}
+		for (Context pctx = ctx; pctx != null; pctx = pctx.parent) {
+			Object value = getValueIn(site, pctx.data, name, line);
+			if (value != NO_FETCHER_FOUND) {
+				return value;
+			}
+		}
+		if (name != DOT_NAME && name.indexOf(DOT_NAME) != -1) {
+			return getCompoundValue(ctx, name, line, missingIsNull);
+		}
+		return checkForMissing(name, line, missingIsNull, NO_FETCHER_FOUND);
+	}
+
+	/**
+	 * fetches a value as {@link #getValueIn(Object, String, int)} does, the
+	 * fetchers being cached by site instead of by name
+	 */
+	private Object getValueIn(int site, Object data, String name, int line) {
+		if (data == null) {
+			throw new NullPointerException("Null context for variable '" + name + "' on line " + line);
+		}
+		Fetchers fetchers = sites[site];
+		Mustache.VariableFetcher fetcher = fetchers == null ? null : fetchers.get(data.getClass());
+		if (fetcher != null) {
+			try {
+				return fetcher.get(data, name);
+			} catch (Exception e) {
+				// not the same fetcher for all the contexts of this class
+				fetcher = _compiler.collector.createFetcher(data, name);
+			}
+		} else {
+			fetcher = _compiler.collector.createFetcher(data, name);
+		}
+		if (fetcher == null) {
+			fetcher = NOT_FOUND_FETCHER;
+		}
+		try {
+			Object value = fetcher.get(data, name);
+			// racing threads may lose an entry, which is only found again
+			sites[site] = Fetchers.put(fetchers, data.getClass(), fetcher);
+			return value;
+		} catch (Exception e) {
+			throw new MustacheException.Context("Failure fetching variable '" + name + "' on line " + line, name,
+					line, e);
+		}
+	}
+
+	/**
+	 * appends a tag to the source of a block
+	 *
+	 * @param prefix
+	 *            the tag type, or a space for a variable
+	 */
+	protected static void tag(char prefix, String name, StringBuilder into) {
+		into.append("{{");
+		if (prefix != ' ') {
+			into.append(prefix);
+		}
+		into.append(name).append("}}");
+	}
+
+	/**
+	 * @return the fragment of a block, given to lambdas
+	 */
+	private Fragment fragment(final int block, final Context currentCtx) {
+		return new Fragment() {
+			@Override
+			public void execute(Writer out) {
+				block(block, currentCtx, out);
+			}
+
+			@Override
+			public void execute(Object context, Writer out) {
+				block(block, currentCtx.nest(context, 0, false, false), out);
+			}
+
+			@Override
+			public Object context() {
+				return currentCtx.data;
+			}
+
+			@Override
+			public Object context(int n) {
+				Context ctx = currentCtx;
+				for (int i = 0; i < n; i++) {
+					ctx = ctx.parent;
+				}
+				return ctx.data;
+			}
+
+			@Override
+			public StringBuilder decompile(StringBuilder into) {
+				CompiledTemplate.this.decompile(block, into);
+				return into;
+			}
+		};
+	}
+
+	/**
+	 * The fetchers of one site of the template, by class of context. A site
+	 * almost always sees a few classes only: the entries are scanned, and
+	 * replaced as a whole when a class is added, so that they can be read
+	 * without locking.
+	 */
+	private static final class Fetchers {
+		private static final int MAX_SIZE = 8;
+
+		private final Class<?>[] classes;
+
+		private final Mustache.VariableFetcher[] fetchers;
+
+		private Fetchers(Class<?>[] classes, Mustache.VariableFetcher[] fetchers) {
+			this.classes = classes;
+			this.fetchers = fetchers;
+		}
+
+		Mustache.VariableFetcher get(Class<?> c) {
+			for (int i = 0; i < classes.length; i++) {
+				if (classes[i] == c) {
+					return fetchers[i];
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * @return the given fetchers with the fetcher of a class added or
+		 *         replaced
+		 */
+		static Fetchers put(Fetchers current, Class<?> c, Mustache.VariableFetcher fetcher) {
+			int size = current == null || current.classes.length == MAX_SIZE ? 0 : current.classes.length;
+			Class<?>[] classes = new Class<?>[size + 1];
+			Mustache.VariableFetcher[] fetchers = new Mustache.VariableFetcher[size + 1];
+			int n = 0;
+			for (int i = 0; i < size; i++) {
+				if (current.classes[i] != c) {
+					classes[n] = current.classes[i];
+					fetchers[n++] = current.fetchers[i];
+				}
+			}
+			classes[n] = c;
+			fetchers[n++] = fetcher;
+			if (n < classes.length) {
+				classes = Arrays.copyOf(classes, n);
+				fetchers = Arrays.copyOf(fetchers, n);
+			}
+			return new Fetchers(classes, fetchers);
+		}
+	}
+}
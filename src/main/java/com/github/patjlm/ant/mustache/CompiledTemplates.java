@@ -0,0 +1,145 @@
+package com.github.patjlm.ant.mustache;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.tools.ant.AntClassLoader;
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.Path;
+
+import com.samskivert.mustache.Mustache.Compiler;
+import com.samskivert.mustache.Template;
+
+/**
+ * Finds the classes generated by {@link MustacheCompileTask} in a package,
+ * and falls back to JMustache for the templates without a generated class.
+ *
+ * <p>
+ * The generated templates of a package and classpath are shared by all the
+ * filters and tasks of a project, so that the classpath is opened by a single
+ * class loader, which is cleaned up when the build finishes. A generated
+ * class which can not be linked against the JMustache version of the build
+ * is ignored, the template being compiled by JMustache instead.
+ */
+class CompiledTemplates {
+
+	/**
+	 * name of the project reference holding the generated templates of a
+	 * project, by package and classpath
+	 */
+	private static final String REFERENCE = "mustache.compiledTemplates";
+
+	private final String packageName;
+
+	private final ClassLoader classLoader;
+
+	/**
+	 * @param packageName
+	 *            the package of the generated classes
+	 * @param classLoader
+	 *            the class loader to load the generated classes with
+	 */
+	CompiledTemplates(String packageName, ClassLoader classLoader) {
+		this.packageName = packageName;
+		this.classLoader = classLoader;
+	}
+
+	/**
+	 * gets the generated templates of a package and classpath, creating them
+	 * and registering the cleanup of their class loader at the end of the
+	 * build if needed
+	 *
+	 * @param project
+	 *            the project
+	 * @param packageName
+	 *            the package of the generated classes
+	 * @param classpath
+	 *            the classpath of the generated classes, or null to load
+	 *            them with the class loader of mustache-ant
+	 * @return the generated templates shared by the project
+	 */
+	@SuppressWarnings("unchecked")
+	static CompiledTemplates getInstance(Project project, String packageName, Path classpath) {
+		synchronized (project) {
+			Map<String, CompiledTemplates> instances = (Map<String, CompiledTemplates>) project
+					.getReference(REFERENCE);
+			if (instances == null) {
+				instances = new HashMap<String, CompiledTemplates>();
+				project.addReference(REFERENCE, instances);
+				final Map<String, CompiledTemplates> released = instances;
+				project.addBuildListener(new BuildFinishedListener() {
+					@Override
+					public void buildFinished(BuildEvent event) {
+						synchronized (event.getProject()) {
+							release(released);
+						}
+					}
+				});
+			}
+			String key = packageName + ";" + classpath;
+			CompiledTemplates compiled = instances.get(key);
+			if (compiled == null) {
+				ClassLoader parent = CompiledTemplates.class.getClassLoader();
+				ClassLoader classLoader = classpath == null ? parent
+						: new AntClassLoader(parent, project, classpath, true);
+				compiled = new CompiledTemplates(packageName, classLoader);
+				instances.put(key, compiled);
+			}
+			return compiled;
+		}
+	}
+
+	/**
+	 * cleans up the class loaders of the given generated templates, closing
+	 * the files of their classpath
+	 */
+	private static void release(Map<String, CompiledTemplates> instances) {
+		for (CompiledTemplates compiled : instances.values()) {
+			if (compiled.classLoader instanceof AntClassLoader) {
+				((AntClassLoader) compiled.classLoader).cleanup();
+			}
+		}
+		instances.clear();
+	}
+
+	/**
+	 * @return the generated template of the given text, or the template
+	 *         compiled by JMustache if there is no generated class for it
+	 */
+	Template compile(Compiler compiler, String text) {
+		Template tmpl = find(compiler, text);
+		return tmpl != null ? tmpl : compiler.compile(text);
+	}
+
+	/**
+	 * @return the generated template of the given text, or null if there is
+	 *         no generated class for the text, if the class does not link
+	 *         with the JMustache version of the build, or if the partials it
+	 *         inlines changed since it was generated
+	 */
+	CompiledTemplate find(Compiler compiler, String text) {
+		Class<?> generated;
+		CompiledTemplate tmpl;
+		try {
+			generated = Class.forName(packageName + "." + TemplateGenerator.className(text), true, classLoader);
+			tmpl = (CompiledTemplate) generated.getConstructor(Compiler.class).newInstance(compiler);
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (LinkageError e) {
+			// generated or run with another JMustache version
+			return null;
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof LinkageError) {
+				return null;
+			}
+			throw new IllegalStateException("Unable to create the compiled template " + packageName + "."
+					+ TemplateGenerator.className(text), e.getCause());
+		} catch (Exception e) {
+			throw new IllegalStateException("Unable to create the compiled template " + packageName + "."
+					+ TemplateGenerator.className(text), e);
+		}
+		return tmpl.isUpToDate() ? tmpl : null;
+	}
+}
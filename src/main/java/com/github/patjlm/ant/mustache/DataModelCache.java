@@ -0,0 +1,122 @@
+package com.github.patjlm.ant.mustache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.tools.ant.Project;
+
+/**
+ * Keeps the data models built for a project, so that all the filters of a
+ * build using the same data model settings share a single, frozen model
+ * instead of each building their own.
+ *
+ * <p>
+ * Each model is stored with a fingerprint of its inputs (data file time
+ * stamp, number of project properties...). A cached model is only returned
+ * while its fingerprint is unchanged, and is replaced when it is rebuilt.
+ *
+ * <p>
+ * Filters used concurrently (in a parallel task for example) build each
+ * model once: they build it while holding the lock of its settings (see
+ * {@link #getLock(String)}), after looking for it again. Models are frozen
+ * before they are cached, and the cache publishes them safely to the other
+ * threads, which then read them without locking.
+ */
+public class DataModelCache {
+
+	/**
+	 * name of the project reference holding the cache of a project
+	 */
+	private static final String REFERENCE = "mustache.dataModelCache";
+
+	private final Map<String, Entry> models = new HashMap<String, Entry>();
+
+	private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+	/**
+	 * gets the cache of the given project, creating it if needed
+	 *
+	 * @param project
+	 *            the project owning the cache
+	 * @return the data model cache of the project
+	 */
+	public static DataModelCache getInstance(Project project) {
+		synchronized (project) {
+			DataModelCache cache = (DataModelCache) project.getReference(REFERENCE);
+			if (cache == null) {
+				cache = new DataModelCache();
+				project.addReference(REFERENCE, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * gets the model cached for the given settings
+	 *
+	 * @param key
+	 *            a string describing the data model settings
+	 * @param fingerprint
+	 *            a string describing the current state of the model inputs
+	 * @return the cached model, or null if no model was cached for these
+	 *         settings or if its inputs changed since
+	 */
+	public synchronized MustacheData get(String key, String fingerprint) {
+		Entry entry = models.get(key);
+		if (entry != null && entry.fingerprint.equals(fingerprint)) {
+			return entry.data;
+		}
+		return null;
+	}
+
+	/**
+	 * caches a model, replacing any model previously cached for the same
+	 * settings
+	 *
+	 * @param key
+	 *            a string describing the data model settings
+	 * @param fingerprint
+	 *            a string describing the current state of the model inputs
+	 * @param data
+	 *            the frozen model
+	 */
+	public synchronized void put(String key, String fingerprint, MustacheData data) {
+		models.put(key, new Entry(fingerprint, data));
+	}
+
+	/**
+	 * gets the lock to hold while building the model of the given settings,
+	 * so that concurrent filters do not build the same model twice
+	 *
+	 * @param key
+	 *            a string describing the data model settings
+	 * @return the lock of these settings
+	 */
+	public Object getLock(String key) {
+		Object lock = locks.get(key);
+		if (lock == null) {
+			Object newLock = new Object();
+			lock = locks.putIfAbsent(key, newLock);
+			if (lock == null) {
+				lock = newLock;
+			}
+		}
+		return lock;
+	}
+
+	public synchronized int size() {
+		return models.size();
+	}
+
+	private static class Entry {
+		private final String fingerprint;
+		private final MustacheData data;
+
+		public Entry(String fingerprint, MustacheData data) {
+			this.fingerprint = fingerprint;
+			this.data = data;
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package com.github.patjlm.ant.mustache;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.POJONode;
+import com.samskivert.mustache.DefaultCollector;
+import com.samskivert.mustache.Mustache;
+import com.samskivert.mustache.Template;
+
+/**
+ * The JMustache collector of the data models.
+ *
+ * <p>
+ * Data models are read with a single map lookup per variable (the key is only
+ * searched again when the value is null), and lists with an index based
+ * iterator. Values which are never iterable (data models, strings, booleans
+ * and numbers) are recognized before any other check, so that the sections of
+ * a template do not probe their values for iterators and arrays.
+ *
+ * <p>
+ * When the data models keep JSON trees (see
+ * {@link MustacheData#setJsonTrees(boolean)}), JSON objects and arrays are only
+ * read when a template uses them: the fields of JSON objects and the elements
+ * of JSON arrays are fetched directly from the nodes, their simple values being
+ * converted into strings, booleans, numbers and nulls, and their objects and
+ * arrays being served as is. Objects and arrays render as JSON text. Other
+ * values are handled by the JMustache default collector.
+ *
+ * <p>
+ * The collector has no state and is shared by all the compilers.
+ */
+public class DataModelCollector extends DefaultCollector {
+
+	public static final DataModelCollector INSTANCE = new DataModelCollector();
+
+	/**
+	 * fetches a value of a data model
+	 */
+	private static final Mustache.VariableFetcher DATA_FETCHER = new Mustache.VariableFetcher() {
+		@Override
+		public Object get(Object ctx, String name) {
+			MustacheData data = (MustacheData) ctx;
+			Object value = data.get(name);
+			if (value != null || data.containsKey(name)) {
+				return value;
+			}
+			// same as the JMustache map fetcher
+			return "entrySet".equals(name) ? data.entrySet() : Template.NO_FETCHER_FOUND;
+		}
+	};
+
+	/**
+	 * fetches a field of a JSON object
+	 */
+	private static final Mustache.VariableFetcher JSON_FIELD_FETCHER = new Mustache.VariableFetcher() {
+		@Override
+		public Object get(Object ctx, String name) {
+			JsonNode field = ((ObjectNode) ctx).get(name);
+			return field == null ? Template.NO_FETCHER_FOUND : value(field);
+		}
+	};
+
+	/**
+	 * fetches an element of a JSON array by index
+	 */
+	private static final Mustache.VariableFetcher JSON_ELEMENT_FETCHER = new Mustache.VariableFetcher() {
+		@Override
+		public Object get(Object ctx, String name) {
+			ArrayNode array = (ArrayNode) ctx;
+			try {
+				int index = Integer.parseInt(name);
+				return index >= 0 && index < array.size() ? element(array.get(index)) : Template.NO_FETCHER_FOUND;
+			} catch (NumberFormatException e) {
+				return Template.NO_FETCHER_FOUND;
+			}
+		}
+	};
+
+	/**
+	 * @param node
+	 *            a JSON node
+	 * @return the value of a simple JSON node: a string, a boolean, a number or
+	 *         null, or the node itself for JSON objects and arrays
+	 */
+	public static Object value(JsonNode node) {
+		if (node.isContainerNode()) {
+			return node;
+		} else if (node.isTextual()) {
+			return node.textValue();
+		} else if (node.isBoolean()) {
+			return node.booleanValue();
+		} else if (node.isNumber()) {
+			return node.numberValue();
+		} else if (node.isNull() || node.isMissingNode()) {
+			return null;
+		} else if (node.isBinary()) {
+			try {
+				return node.binaryValue();
+			} catch (IOException e) {
+				throw new RuntimeException("Unable to read Json binary value: " + e.getMessage(), e);
+			}
+		} else if (node.isPojo()) {
+			return ((POJONode) node).getPojo();
+		}
+		throw new RuntimeException("Json value type not handled: " + node.getNodeType() + ", value: " + node);
+	}
+
+	/**
+	 * @param node
+	 *            an element of a JSON array
+	 * @return the value of the element. Null elements are kept as JSON nulls,
+	 *         as JMustache can not use nulls as the context of a section.
+	 */
+	private static Object element(JsonNode node) {
+		return node.isNull() ? node : value(node);
+	}
+
+	@Override
+	public Iterator<?> toIterator(Object value) {
+		if (value instanceof MustacheData || value instanceof String || value instanceof Boolean
+				|| value instanceof Number) {
+			return null;
+		} else if (value instanceof List && value instanceof RandomAccess) {
+			return new IndexIterator((List<?>) value);
+		} else if (value instanceof ArrayNode) {
+			final Iterator<JsonNode> elements = ((ArrayNode) value).elements();
+			return new Iterator<Object>() {
+				@Override
+				public boolean hasNext() {
+					return elements.hasNext();
+				}
+
+				@Override
+				public Object next() {
+					return element(elements.next());
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		} else if (value instanceof JsonNode) {
+			// JSON objects are iterable over their values, but are contexts
+			return null;
+		}
+		return super.toIterator(value);
+	}
+
+	@Override
+	public Mustache.VariableFetcher createFetcher(Object ctx, String name) {
+		if (".".equals(name) || "this".equals(name)) {
+			return super.createFetcher(ctx, name);
+		} else if (ctx instanceof MustacheData) {
+			return DATA_FETCHER;
+		} else if (ctx instanceof ObjectNode) {
+			return JSON_FIELD_FETCHER;
+		} else if (ctx instanceof ArrayNode) {
+			return JSON_ELEMENT_FETCHER;
+		}
+		return super.createFetcher(ctx, name);
+	}
+
+	/**
+	 * Iterates over a random access list by index, without the modification
+	 * checks of the list iterators. The lists of a frozen data model are never
+	 * modified.
+	 */
+	private static final class IndexIterator implements Iterator<Object> {
+		private final List<?> list;
+		private final int size;
+		private int next = 0;
+
+		public IndexIterator(List<?> list) {
+			this.list = list;
+			this.size = list.size();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next < size;
+		}
+
+		@Override
+		public Object next() {
+			if (next >= size) {
+				throw new NoSuchElementException();
+			}
+			return list.get(next++);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
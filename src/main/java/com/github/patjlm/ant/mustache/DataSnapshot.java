@@ -0,0 +1,508 @@
+package com.github.patjlm.ant.mustache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+/**
+ * Reads and writes binary snapshots of frozen data models, so that a data
+ * model built once from properties and JSON values can be loaded by other
+ * builds without parsing nor classifying anything again.
+ *
+ * <p>
+ * A snapshot starts with a table of all the distinct strings of the model
+ * (keys and values), followed by the tree of values, strings being referenced
+ * by their index in the table. Each string is decoded once when loading, so
+ * that equal strings are shared. Lists are stored in their final, sorted
+ * order. Nested data models are loaded directly in their compact frozen form.
+ *
+ * <p>
+ * The header gives the length and the CRC32 of the payload (the string table
+ * and the tree of values). The payload is read and checked before anything is
+ * decoded, and the file is closed once read, so that a truncated or corrupted
+ * snapshot is rejected as a whole. Every count read from the payload is
+ * bounded by the number of bytes remaining, so that an invalid count fails
+ * instead of allocating arrays of any size.
+ *
+ * <p>
+ * A snapshot holds strings, booleans, numbers, nulls, nested data models,
+ * lists and JSON nodes: the values a data model built from properties and
+ * JSON values is made of.
+ */
+public class DataSnapshot {
+
+	private static final int MAGIC = 0x4d534e50; // "MSNP"
+
+	/**
+	 * the version of the format, increased with each change of the format so
+	 * that the snapshots written by other versions are rejected instead of
+	 * misread
+	 */
+	private static final int VERSION = 3;
+
+	/**
+	 * the length of the header: magic, version, payload length and CRC32
+	 */
+	private static final int HEADER_LENGTH = 16;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final JsonNodeFactory JSON_NODES = JsonNodeFactory.instance;
+
+	// value tags
+
+	private static final byte MAP = 1;
+	private static final byte LIST = 2;
+	private static final byte STRING = 3;
+	private static final byte TRUE = 4;
+	private static final byte FALSE = 5;
+	private static final byte NULL = 6;
+	private static final byte INT = 7;
+	private static final byte LONG = 8;
+	private static final byte DOUBLE = 9;
+	private static final byte BIG_INTEGER = 10;
+	private static final byte JSON_TEXT = 11;
+	private static final byte JSON_INT = 12;
+	private static final byte JSON_LONG = 13;
+	private static final byte JSON_BIG_INTEGER = 14;
+	private static final byte JSON_DOUBLE = 15;
+	private static final byte JSON_TRUE = 16;
+	private static final byte JSON_FALSE = 17;
+	private static final byte JSON_NULL = 18;
+	private static final byte JSON_OBJECT = 19;
+	private static final byte JSON_ARRAY = 20;
+
+	private DataSnapshot() {
+	}
+
+	/**
+	 * writes a snapshot of a data model. The snapshot is written to a
+	 * temporary file first, then renamed, so that builds reading the snapshot
+	 * meanwhile never see a partial file.
+	 *
+	 * @param data
+	 *            the data model
+	 * @param file
+	 *            the file to write the snapshot into
+	 * @throws IOException
+	 *             if the model holds values that can not be stored, or if the
+	 *             file can not be written
+	 */
+	public static void write(MustacheData data, File file) throws IOException {
+		SnapshotWriter writer = new SnapshotWriter();
+		writer.writeMap(data);
+		ByteArrayOutputStream table = new ByteArrayOutputStream();
+		DataOutputStream tableOut = new DataOutputStream(table);
+		tableOut.writeInt(writer.strings.size());
+		for (String s : writer.strings) {
+			byte[] bytes = s.getBytes(UTF8);
+			tableOut.writeInt(bytes.length);
+			tableOut.write(bytes);
+		}
+		CRC32 crc = new CRC32();
+		byte[] tableBytes = table.toByteArray();
+		byte[] bodyBytes = writer.body.toByteArray();
+		crc.update(tableBytes);
+		crc.update(bodyBytes);
+		long length = (long) tableBytes.length + bodyBytes.length;
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("The data model is too large to be stored in a snapshot");
+		}
+
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+			throw new IOException("Unable to create directory " + parent);
+		}
+		File temp = new File(parent, file.getName() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt((int) length);
+			out.writeInt((int) crc.getValue());
+			out.write(tableBytes);
+			out.write(bodyBytes);
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			// the target can not be replaced by a rename on some platforms
+			file.delete();
+			if (!temp.renameTo(file)) {
+				throw new IOException("Unable to rename " + temp + " to " + file);
+			}
+		}
+	}
+
+	/**
+	 * loads a snapshot into an empty data model, and freezes the model
+	 *
+	 * @param file
+	 *            the snapshot file
+	 * @param root
+	 *            an empty data model, giving the configuration of all the
+	 *            loaded data models
+	 * @throws IOException
+	 *             if the file can not be read or is not a valid snapshot
+	 */
+	public static void read(File file, MustacheData root) throws IOException {
+		byte[] payload = readPayload(file);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		try {
+			SnapshotReader reader = new SnapshotReader(in);
+			if (in.readByte() != MAP) {
+				throw new IOException("Invalid data model snapshot " + file);
+			}
+			reader.readMap(root);
+			if (in.available() != 0) {
+				throw new IOException("Invalid data model snapshot " + file);
+			}
+		} catch (EOFException e) {
+			// the payload is complete, but its counts do not match its content
+			throw new IOException("Invalid data model snapshot " + file);
+		} catch (InvalidCountException e) {
+			throw new IOException("Invalid data model snapshot " + file);
+		}
+	}
+
+	/**
+	 * reads the payload of a snapshot, and checks its length and its CRC32
+	 *
+	 * @return the payload: the string table and the tree of values
+	 */
+	private static byte[] readPayload(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(file + " is not a data model snapshot");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported data model snapshot version " + version + " in " + file);
+			}
+			int length = in.readInt();
+			int checksum = in.readInt();
+			long available = file.length() - HEADER_LENGTH;
+			if (length < 0 || length > available) {
+				throw new IOException("Truncated data model snapshot " + file);
+			}
+			if (length < available) {
+				throw new IOException("Invalid data model snapshot " + file);
+			}
+			byte[] payload = new byte[length];
+			in.readFully(payload);
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			if ((int) crc.getValue() != checksum) {
+				throw new IOException("Corrupted data model snapshot " + file);
+			}
+			return payload;
+		} catch (EOFException e) {
+			throw new IOException("Truncated data model snapshot " + file);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Thrown when a count or a string index of the payload is out of bounds
+	 */
+	private static class InvalidCountException extends IOException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Writes the tree of values, collecting the distinct strings
+	 */
+	private static class SnapshotWriter {
+		private final List<String> strings = new ArrayList<String>();
+		private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(body);
+
+		private void writeString(String s) throws IOException {
+			Integer index = indexes.get(s);
+			if (index == null) {
+				index = strings.size();
+				strings.add(s);
+				indexes.put(s, index);
+			}
+			out.writeInt(index);
+		}
+
+		private void writeMap(Map<String, Object> map) throws IOException {
+			out.writeByte(MAP);
+			out.writeInt(map.size());
+			for (Map.Entry<String, Object> entry : map.entrySet()) {
+				writeString(entry.getKey());
+				writeValue(entry.getValue());
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		private void writeValue(Object value) throws IOException {
+			if (value == null) {
+				out.writeByte(NULL);
+			} else if (value instanceof String) {
+				out.writeByte(STRING);
+				writeString((String) value);
+			} else if (value instanceof Boolean) {
+				out.writeByte((Boolean) value ? TRUE : FALSE);
+			} else if (value instanceof Integer) {
+				out.writeByte(INT);
+				out.writeInt((Integer) value);
+			} else if (value instanceof Long) {
+				out.writeByte(LONG);
+				out.writeLong((Long) value);
+			} else if (value instanceof Double) {
+				out.writeByte(DOUBLE);
+				out.writeDouble((Double) value);
+			} else if (value instanceof BigInteger) {
+				out.writeByte(BIG_INTEGER);
+				writeString(value.toString());
+			} else if (value instanceof MustacheData) {
+				writeMap((MustacheData) value);
+			} else if (value instanceof List) {
+				List<Object> list = (List<Object>) value;
+				out.writeByte(LIST);
+				out.writeInt(list.size());
+				for (Object element : list) {
+					writeValue(element);
+				}
+			} else if (value instanceof JsonNode) {
+				writeJsonValue((JsonNode) value);
+			} else {
+				throw new IOException("Values of type " + value.getClass().getName()
+						+ " can not be stored in a data model snapshot");
+			}
+		}
+
+		private void writeJsonValue(JsonNode node) throws IOException {
+			if (node.isTextual()) {
+				out.writeByte(JSON_TEXT);
+				writeString(node.textValue());
+			} else if (node.isInt()) {
+				out.writeByte(JSON_INT);
+				out.writeInt(node.intValue());
+			} else if (node.isLong()) {
+				out.writeByte(JSON_LONG);
+				out.writeLong(node.longValue());
+			} else if (node.isBigInteger()) {
+				out.writeByte(JSON_BIG_INTEGER);
+				writeString(node.bigIntegerValue().toString());
+			} else if (node.isDouble()) {
+				out.writeByte(JSON_DOUBLE);
+				out.writeDouble(node.doubleValue());
+			} else if (node.isBoolean()) {
+				out.writeByte(node.booleanValue() ? JSON_TRUE : JSON_FALSE);
+			} else if (node.isNull()) {
+				out.writeByte(JSON_NULL);
+			} else if (node.isObject()) {
+				out.writeByte(JSON_OBJECT);
+				out.writeInt(node.size());
+				Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+				while (fields.hasNext()) {
+					Map.Entry<String, JsonNode> field = fields.next();
+					writeString(field.getKey());
+					writeJsonValue(field.getValue());
+				}
+			} else if (node.isArray()) {
+				out.writeByte(JSON_ARRAY);
+				out.writeInt(node.size());
+				for (JsonNode element : node) {
+					writeJsonValue(element);
+				}
+			} else {
+				throw new IOException("JSON values of type " + node.getNodeType()
+						+ " can not be stored in a data model snapshot");
+			}
+		}
+	}
+
+	/**
+	 * Reads the tree of values from a stream positioned on the string table
+	 */
+	private static class SnapshotReader {
+		private final DataInputStream in;
+		private final String[] strings;
+
+		/**
+		 * the JSON text nodes read, by string index, so that equal texts share
+		 * their node
+		 */
+		private final JsonNode[] textNodes;
+
+		public SnapshotReader(DataInputStream in) throws IOException {
+			this.in = in;
+			// each string takes at least the 4 bytes of its length
+			this.strings = new String[readCount(4)];
+			this.textNodes = new JsonNode[strings.length];
+			byte[] bytes = new byte[64];
+			for (int i = 0; i < strings.length; i++) {
+				int length = readCount(1);
+				if (length > bytes.length) {
+					bytes = new byte[Math.max(length, bytes.length * 2)];
+				}
+				in.readFully(bytes, 0, length);
+				strings[i] = new String(bytes, 0, length, UTF8);
+			}
+		}
+
+		/**
+		 * reads a count of items, checking that the remaining bytes can hold
+		 * them
+		 *
+		 * @param itemLength
+		 *            the minimum number of bytes taken by each item
+		 */
+		private int readCount(int itemLength) throws IOException {
+			int count = in.readInt();
+			if (count < 0 || count > in.available() / itemLength) {
+				throw new InvalidCountException();
+			}
+			return count;
+		}
+
+		private int readStringIndex() throws IOException {
+			int index = in.readInt();
+			if (index < 0 || index >= strings.length) {
+				throw new InvalidCountException();
+			}
+			return index;
+		}
+
+		private String readString() throws IOException {
+			return strings[readStringIndex()];
+		}
+
+		private void readMap(MustacheData map) throws IOException {
+			// each entry takes at least a string index and a value tag
+			int size = readCount(5);
+			for (int i = 0; i < size; i++) {
+				String key = readString();
+				map.putFrozenValue(key, readValue(map));
+			}
+			map.markFrozen();
+		}
+
+		/**
+		 * @param parent
+		 *            the data model to share the configuration of
+		 * @return the compact form of the nested data model
+		 */
+		private MustacheData readNestedMap(MustacheData parent) throws IOException {
+			int size = readCount(5);
+			String[] keys = new String[size];
+			Object[] values = new Object[size];
+			for (int i = 0; i < size; i++) {
+				keys[i] = readString();
+				values[i] = readValue(parent);
+			}
+			return new FrozenMustacheData(parent, keys, values);
+		}
+
+		/**
+		 * @return the JSON node of a JSON object field or array element
+		 */
+		private JsonNode readJsonValue(MustacheData parent) throws IOException {
+			Object value = readValue(parent);
+			if (!(value instanceof JsonNode)) {
+				throw new IOException("Invalid JSON value in data model snapshot");
+			}
+			return (JsonNode) value;
+		}
+
+		/**
+		 * @param parent
+		 *            the data model the value belongs to, whose configuration
+		 *            is shared with the nested data models
+		 */
+		private Object readValue(MustacheData parent) throws IOException {
+			byte tag = in.readByte();
+			switch (tag) {
+			case NULL:
+				return null;
+			case STRING:
+				return readString();
+			case TRUE:
+				return Boolean.TRUE;
+			case FALSE:
+				return Boolean.FALSE;
+			case INT:
+				return in.readInt();
+			case LONG:
+				return in.readLong();
+			case DOUBLE:
+				return in.readDouble();
+			case BIG_INTEGER:
+				return new BigInteger(readString());
+			case MAP:
+				return readNestedMap(parent);
+			case LIST:
+				Object[] elements = new Object[readCount(1)];
+				for (int i = 0; i < elements.length; i++) {
+					elements[i] = readValue(parent);
+				}
+				return Collections.unmodifiableList(Arrays.asList(elements));
+			case JSON_TEXT:
+				int text = readStringIndex();
+				if (textNodes[text] == null) {
+					textNodes[text] = JSON_NODES.textNode(strings[text]);
+				}
+				return textNodes[text];
+			case JSON_INT:
+				return JSON_NODES.numberNode(in.readInt());
+			case JSON_LONG:
+				return JSON_NODES.numberNode(in.readLong());
+			case JSON_BIG_INTEGER:
+				return JSON_NODES.numberNode(new BigInteger(readString()));
+			case JSON_DOUBLE:
+				return JSON_NODES.numberNode(in.readDouble());
+			case JSON_TRUE:
+				return JSON_NODES.booleanNode(true);
+			case JSON_FALSE:
+				return JSON_NODES.booleanNode(false);
+			case JSON_NULL:
+				return JSON_NODES.nullNode();
+			case JSON_OBJECT:
+				String[] keys = new String[readCount(5)];
+				JsonNode[] values = new JsonNode[keys.length];
+				for (int i = 0; i < keys.length; i++) {
+					keys[i] = readString();
+					values[i] = readJsonValue(parent);
+				}
+				return FrozenJsonFields.object(keys, values);
+			case JSON_ARRAY:
+				ArrayNode array = JSON_NODES.arrayNode();
+				for (int i = readCount(1); i > 0; i--) {
+					array.add(readJsonValue(parent));
+				}
+				return array;
+			default:
+				throw new IOException("Invalid value tag " + tag + " in data model snapshot");
+			}
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package com.github.patjlm.ant.mustache;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * The fields of a frozen JSON object, used by the {@link ObjectNode}s of a
+ * frozen data model in place of the linked hash map Jackson allocates for
+ * each object.
+ *
+ * <p>
+ * Keys and values are kept in two arrays of the exact size, in the order of
+ * the object, so that the object still renders as the same JSON text. Objects
+ * of a few fields are searched linearly, larger ones through an open-addressed
+ * table of the positions of their keys. The fields can not be modified: the
+ * mutators of the object throw an UnsupportedOperationException.
+ */
+final class FrozenJsonFields extends AbstractMap<String, JsonNode> {
+
+	/**
+	 * the largest number of fields searched linearly
+	 */
+	private static final int MAX_LINEAR_SIZE = 8;
+
+	private final String[] keys;
+
+	private final JsonNode[] values;
+
+	/**
+	 * the position + 1 of the keys, by hash, or null for small objects
+	 */
+	private final int[] index;
+
+	/**
+	 * @param keys
+	 *            the distinct names of the fields, in order
+	 * @param values
+	 *            the values of the fields, frozen already
+	 */
+	private FrozenJsonFields(String[] keys, JsonNode[] values) {
+		this.keys = keys;
+		this.values = values;
+		if (keys.length <= MAX_LINEAR_SIZE) {
+			this.index = null;
+		} else {
+			int capacity = 16;
+			while (capacity * 3 < keys.length * 4) {
+				capacity <<= 1;
+			}
+			this.index = new int[capacity];
+			for (int i = 0; i < keys.length; i++) {
+				int slot = hash(keys[i]) & (capacity - 1);
+				while (index[slot] != 0) {
+					slot = (slot + 1) & (capacity - 1);
+				}
+				index[slot] = i + 1;
+			}
+		}
+	}
+
+	/**
+	 * @param keys
+	 *            the distinct names of the fields, in order
+	 * @param values
+	 *            the values of the fields, frozen already
+	 * @return a JSON object holding the given fields, which can not be
+	 *         modified
+	 */
+	static ObjectNode object(String[] keys, JsonNode[] values) {
+		return new ObjectNode(JsonNodeFactory.instance, new FrozenJsonFields(keys, values));
+	}
+
+	private static int hash(Object key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return the position of the given key, or -1 if not found
+	 */
+	private int position(Object key) {
+		if (key == null) {
+			return -1;
+		}
+		if (index == null) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == key || keys[i].equals(key)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+		int mask = index.length - 1;
+		for (int slot = hash(key) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+			int i = index[slot] - 1;
+			if (keys[i] == key || keys[i].equals(key)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public JsonNode get(Object key) {
+		int i = position(key);
+		return i < 0 ? null : values[i];
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return position(key) >= 0;
+	}
+
+	@Override
+	public int size() {
+		return keys.length;
+	}
+
+	@Override
+	public Set<Map.Entry<String, JsonNode>> entrySet() {
+		return new AbstractSet<Map.Entry<String, JsonNode>>() {
+			@Override
+			public Iterator<Map.Entry<String, JsonNode>> iterator() {
+				return new Iterator<Map.Entry<String, JsonNode>>() {
+					private int next = 0;
+
+					@Override
+					public boolean hasNext() {
+						return next < keys.length;
+					}
+
+					@Override
+					public Map.Entry<String, JsonNode> next() {
+						if (next >= keys.length) {
+							throw new NoSuchElementException();
+						}
+						Map.Entry<String, JsonNode> entry = new AbstractMap.SimpleImmutableEntry<String, JsonNode>(
+								keys[next], values[next]);
+						next++;
+						return entry;
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException("This JSON object is frozen and can not be modified");
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return keys.length;
+			}
+		};
+	}
+}
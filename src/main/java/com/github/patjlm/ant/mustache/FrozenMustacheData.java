@@ -0,0 +1,266 @@
+package com.github.patjlm.ant.mustache;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The compact, immutable form of a frozen nested data model.
+ *
+ * <p>
+ * Keys and values are stored in a single open-addressed table: the key of
+ * slot i at index 2i and its value at index 2i + 1, collisions being resolved
+ * by linear probing. The table is filled at most to three quarters, and the
+ * hash map of the data model is never allocated, so that a node only costs
+ * the table and a few fields. Keys are shared by all the nodes of a data
+ * model, and the configuration is shared with the whole model as well.
+ *
+ * <p>
+ * The int id of a list element (see {@link MustacheList}) is stored in a
+ * field, and formatted into a string when it is first read, so that the
+ * elements of large lists only hold a string once their id is rendered.
+ *
+ * <p>
+ * As the table is never modified once built, a frozen node can be read by
+ * any number of threads without locking, once safely published.
+ */
+final class FrozenMustacheData extends MustacheData {
+	/**
+	 * keys and values, interleaved. Free slots have a null key.
+	 */
+	private final Object[] table;
+
+	private final int size;
+
+	/**
+	 * the value stored in the table for the int id of a list element
+	 */
+	static final Object INT_ID = new Object();
+
+	/**
+	 * the int id of this list element, read in place of {@link #INT_ID}
+	 */
+	private final int id;
+
+	/**
+	 * the string of the id, formatted when first read. Strings being
+	 * immutable, threads racing to format it publish equal strings safely.
+	 */
+	private String idString;
+
+	/**
+	 * @param model
+	 *            the data model to share the configuration of
+	 * @param keys
+	 *            the distinct keys of the entries
+	 * @param values
+	 *            the values of the entries, frozen already
+	 */
+	FrozenMustacheData(MustacheData model, String[] keys, Object[] values) {
+		this(model, keys, values, -1);
+	}
+
+	/**
+	 * @param values
+	 *            the values of the entries, frozen already, {@link #INT_ID}
+	 *            being the value of the id
+	 * @param id
+	 *            the int id of this list element
+	 */
+	FrozenMustacheData(MustacheData model, String[] keys, Object[] values, int id) {
+		super(model, null);
+		this.id = id;
+		this.size = keys.length;
+		int capacity = 2;
+		while (capacity * 3 < size * 4 + 1) {
+			capacity <<= 1;
+		}
+		this.table = new Object[capacity * 2];
+		for (int i = 0; i < keys.length; i++) {
+			int slot = slot(keys[i]);
+			table[slot] = keys[i];
+			table[slot + 1] = values[i];
+		}
+		markFrozen();
+	}
+
+	/**
+	 * @param key
+	 *            a key, not null
+	 * @return the index of the key in the table, or of the free slot where it
+	 *         would be stored
+	 */
+	private int slot(Object key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		int mask = (table.length >> 1) - 1;
+		int i = h & mask;
+		while (true) {
+			Object k = table[i << 1];
+			if (k == null || k.equals(key)) {
+				return i << 1;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	@Override
+	public Object get(Object key) {
+		if (key == null) {
+			return null;
+		}
+		return value(slot(key));
+	}
+
+	/**
+	 * @return the value of the given slot
+	 */
+	private Object value(int slot) {
+		Object value = table[slot + 1];
+		return value == INT_ID ? idString() : value;
+	}
+
+	private String idString() {
+		String s = idString;
+		if (s == null) {
+			s = Integer.toString(id);
+			idString = s;
+		}
+		return s;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return key != null && table[slot(key)] != null;
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		for (int i = 0; i < table.length; i += 2) {
+			if (table[i] != null && (value == null ? table[i + 1] == null : value.equals(value(i)))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				return new TableIterator<Map.Entry<String, Object>>() {
+					@Override
+					protected Map.Entry<String, Object> get(int slot) {
+						return new AbstractMap.SimpleImmutableEntry<String, Object>((String) table[slot],
+								value(slot));
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return new AbstractSet<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				return new TableIterator<String>() {
+					@Override
+					protected String get(int slot) {
+						return (String) table[slot];
+					}
+				};
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return containsKey(o);
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	@Override
+	public Collection<Object> values() {
+		return new AbstractCollection<Object>() {
+			@Override
+			public Iterator<Object> iterator() {
+				return new TableIterator<Object>() {
+					@Override
+					protected Object get(int slot) {
+						return value(slot);
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+
+	/**
+	 * Iterates over the used slots of the table
+	 */
+	private abstract class TableIterator<E> implements Iterator<E> {
+		private int next = advance(0);
+
+		private int advance(int slot) {
+			while (slot < table.length && table[slot] == null) {
+				slot += 2;
+			}
+			return slot;
+		}
+
+		/**
+		 * @return the element of the given used slot
+		 */
+		protected abstract E get(int slot);
+
+		@Override
+		public boolean hasNext() {
+			return next < table.length;
+		}
+
+		@Override
+		public E next() {
+			if (next >= table.length) {
+				throw new NoSuchElementException();
+			}
+			E element = get(next);
+			next = advance(next + 2);
+			return element;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("This data model is frozen and can not be modified");
+		}
+	}
+}
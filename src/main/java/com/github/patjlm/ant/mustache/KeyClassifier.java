@@ -0,0 +1,223 @@
+package com.github.patjlm.ant.mustache;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sorts data model keys into plain, boolean, list or JSON keys, using the
+ * regular expressions configured on the data model. The patterns are compiled
+ * once and the classifier is shared by all the nodes of a data model.
+ *
+ * <p>
+ * As with Ant regular expressions, a key matches a pattern if the pattern is
+ * found anywhere in the key. The default patterns are not evaluated as regular
+ * expressions: they are recognized and replaced by equivalent string scans.
+ */
+class KeyClassifier {
+
+	public static final String DEFAULT_BOOLEAN_REGEX = "^.+?$";
+
+	public static final String DEFAULT_LIST_REGEX = "(.+?)\\.(\\d+)\\.(.+)";
+
+	public static final String DEFAULT_JSON_VALUE_REGEX = "^(.+)(@JSON)$";
+
+	private static final String JSON_SUFFIX = "@JSON";
+
+	/**
+	 * The kinds of data model keys
+	 */
+	public enum Kind {
+		/**
+		 * a key to add as is in the data model
+		 */
+		PLAIN,
+		/**
+		 * a key to add as is in the data model, whose "false" values are
+		 * converted into booleans
+		 */
+		BOOLEAN,
+		/**
+		 * a key made of a list name, an element id and a sub-key
+		 */
+		LIST,
+		/**
+		 * a key whose value is a JSON text
+		 */
+		JSON
+	}
+
+	/**
+	 * The result of the classification of a key
+	 */
+	public static class Match {
+		public final Kind kind;
+
+		/**
+		 * the list name of a list key, or the key without the JSON qualifier
+		 * of a JSON key
+		 */
+		public final String rootKey;
+
+		/**
+		 * the element id of a list key
+		 */
+		public final String id;
+
+		/**
+		 * the key to put into the list element of a list key
+		 */
+		public final String subKey;
+
+		private Match(Kind kind, String rootKey, String id, String subKey) {
+			this.kind = kind;
+			this.rootKey = rootKey;
+			this.id = id;
+			this.subKey = subKey;
+		}
+	}
+
+	private static final Match PLAIN = new Match(Kind.PLAIN, null, null, null);
+
+	private static final Match BOOLEAN = new Match(Kind.BOOLEAN, null, null, null);
+
+	private final Pattern booleanPattern;
+
+	private final Pattern listPattern;
+
+	private final Pattern jsonValuePattern;
+
+	private final boolean defaultBoolean;
+
+	private final boolean defaultList;
+
+	private final boolean defaultJsonValue;
+
+	/**
+	 * @param booleanRegex
+	 *            the pattern of boolean keys
+	 * @param supportLists
+	 *            whether list keys should be recognized
+	 * @param listRegex
+	 *            the pattern of list keys. It should include three groups:
+	 *            the list name, the element id and the sub-key.
+	 * @param supportJson
+	 *            whether JSON keys should be recognized
+	 * @param jsonValueRegex
+	 *            the pattern of JSON keys. Its first group is the key without
+	 *            the JSON qualifier.
+	 */
+	public KeyClassifier(String booleanRegex, boolean supportLists, String listRegex, boolean supportJson,
+			String jsonValueRegex) {
+		this.defaultBoolean = DEFAULT_BOOLEAN_REGEX.equals(booleanRegex);
+		this.booleanPattern = Pattern.compile(booleanRegex);
+		this.defaultList = DEFAULT_LIST_REGEX.equals(listRegex);
+		this.listPattern = supportLists ? Pattern.compile(listRegex) : null;
+		this.defaultJsonValue = DEFAULT_JSON_VALUE_REGEX.equals(jsonValueRegex);
+		this.jsonValuePattern = supportJson ? Pattern.compile(jsonValueRegex) : null;
+	}
+
+	/**
+	 * classifies the given key. List keys are recognized first, then JSON
+	 * keys, then boolean keys.
+	 *
+	 * @param key
+	 *            the key to classify
+	 * @return the classification of the key
+	 */
+	public Match classify(String key) {
+		Match match = matchList(key);
+		if (match == null) {
+			match = matchJsonValue(key);
+		}
+		if (match == null) {
+			match = isBoolean(key) ? BOOLEAN : PLAIN;
+		}
+		return match;
+	}
+
+	/**
+	 * @param key
+	 *            the key to parse
+	 * @return the list name, element id and sub-key of the given key, or null
+	 *         if this is not a list key
+	 */
+	public Match matchList(String key) {
+		if (listPattern == null) {
+			return null;
+		}
+		if (defaultList && !hasLineTerminator(key)) {
+			// first dot followed by digits and another dot, with at least one
+			// character before and after
+			int length = key.length();
+			for (int dot = key.indexOf('.', 1); dot != -1; dot = key.indexOf('.', dot + 1)) {
+				int end = dot + 1;
+				while (end < length && isDigit(key.charAt(end))) {
+					end++;
+				}
+				if (end > dot + 1 && end < length - 1 && key.charAt(end) == '.') {
+					return new Match(Kind.LIST, key.substring(0, dot), key.substring(dot + 1, end),
+							key.substring(end + 1));
+				}
+			}
+			return null;
+		}
+		Matcher matcher = listPattern.matcher(key);
+		if (matcher.find()) {
+			return new Match(Kind.LIST, matcher.group(1), matcher.group(2), matcher.group(3));
+		}
+		return null;
+	}
+
+	/**
+	 * @param key
+	 *            the key to parse
+	 * @return the key without its JSON qualifier, or null if this is not a
+	 *         JSON key
+	 */
+	private Match matchJsonValue(String key) {
+		if (jsonValuePattern == null) {
+			return null;
+		}
+		if (defaultJsonValue && !hasLineTerminator(key)) {
+			if (key.length() > JSON_SUFFIX.length() && key.endsWith(JSON_SUFFIX)) {
+				return new Match(Kind.JSON, key.substring(0, key.length() - JSON_SUFFIX.length()), null, null);
+			}
+			return null;
+		}
+		Matcher matcher = jsonValuePattern.matcher(key);
+		if (matcher.find()) {
+			return new Match(Kind.JSON, matcher.group(1), null, null);
+		}
+		return null;
+	}
+
+	/**
+	 * @param key
+	 *            the key to test
+	 * @return whether the key matches the boolean pattern
+	 */
+	public boolean isBoolean(String key) {
+		if (defaultBoolean && !hasLineTerminator(key)) {
+			return key.length() > 0;
+		}
+		return booleanPattern.matcher(key).find();
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	/**
+	 * The default patterns use '.', '^' and '$', whose meaning depends on line
+	 * terminators: keys containing some are left to the regular expressions.
+	 */
+	private static boolean hasLineTerminator(String key) {
+		for (int i = 0; i < key.length(); i++) {
+			char c = key.charAt(i);
+			if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,277 @@
+package com.github.patjlm.ant.mustache;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * A data model overriding a few entries of a shared base data model, without
+ * copying it.
+ *
+ * <p>
+ * The entries added to this data model form the overlay. Lookups are answered
+ * by the overlay first, then by the base. When both hold a data model for the
+ * same key, the overlay one is layered over the base one when this data model
+ * is frozen, so that nested entries are overridden one by one as well. JSON
+ * objects are layered the same way as data models. Lists and other values of
+ * the overlay replace the base ones. The base is never modified, so that it
+ * can be shared by any number of overlays.
+ *
+ * <p>
+ * Lookups cost two hash lookups at most, and building an overlay only depends
+ * on the number of entries it overrides. The size is computed from the
+ * overlay entries, and iterations walk the overlay then the base entries it
+ * does not override, without copying either of them.
+ */
+public class LayeredMustacheData extends MustacheData {
+	private final MustacheData base;
+
+	/**
+	 * creates an empty overlay, having the same configuration as its base
+	 *
+	 * @param base
+	 *            the frozen base data model
+	 */
+	public LayeredMustacheData(MustacheData base) {
+		super(base);
+		this.base = base;
+	}
+
+	public MustacheData getBase() {
+		return base;
+	}
+
+	/**
+	 * Freezes the overlay, and layers its data models over the base ones having
+	 * the same key
+	 */
+	@Override
+	public void freeze() {
+		if (isFrozen()) {
+			return;
+		}
+		super.freeze();
+		layerChildren();
+	}
+
+	/**
+	 * @param base
+	 *            the frozen base data model
+	 * @param entries
+	 *            the frozen values overriding the base ones
+	 * @return a frozen overlay of the base data model made of the entries
+	 */
+	static LayeredMustacheData layer(MustacheData base, Map<String, Object> entries) {
+		LayeredMustacheData layered = new LayeredMustacheData(base);
+		for (Map.Entry<String, Object> entry : entries.entrySet()) {
+			layered.putFrozenValue(entry.getKey(), entry.getValue());
+		}
+		layered.markFrozen();
+		layered.layerChildren();
+		return layered;
+	}
+
+	/**
+	 * replaces the data models of the overlay by overlays of the base data
+	 * models having the same key, if any. JSON objects are layered key by key
+	 * as well.
+	 */
+	private void layerChildren() {
+		for (Map.Entry<String, Object> entry : getEntries().entrySet()) {
+			MustacheData overlay = asData(entry.getValue());
+			if (overlay != null) {
+				MustacheData baseData = asData(base.get(entry.getKey()));
+				if (baseData != null) {
+					entry.setValue(layer(baseData, overlay));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the value as a data model if it is a data model or a JSON
+	 *         object, null otherwise
+	 */
+	private MustacheData asData(Object value) {
+		if (value instanceof MustacheData) {
+			return (MustacheData) value;
+		} else if (value instanceof ObjectNode) {
+			return jsonObjectData((ObjectNode) value);
+		}
+		return null;
+	}
+
+	@Override
+	public Object get(Object key) {
+		Object value = super.get(key);
+		if (value == null && !super.containsKey(key)) {
+			return base.get(key);
+		}
+		return value;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return super.containsKey(key) || base.containsKey(key);
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		return values().contains(value);
+	}
+
+	@Override
+	public int size() {
+		int size = base.size();
+		for (String key : getEntries().keySet()) {
+			if (!base.containsKey(key)) {
+				size++;
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return super.isEmpty() && base.isEmpty();
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return new AbstractSet<String>() {
+			@Override
+			public Iterator<String> iterator() {
+				final Iterator<Map.Entry<String, Object>> entries = new LayeredIterator();
+				return new Iterator<String>() {
+					@Override
+					public boolean hasNext() {
+						return entries.hasNext();
+					}
+
+					@Override
+					public String next() {
+						return entries.next().getKey();
+					}
+
+					@Override
+					public void remove() {
+						entries.remove();
+					}
+				};
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return containsKey(o);
+			}
+
+			@Override
+			public int size() {
+				return LayeredMustacheData.this.size();
+			}
+		};
+	}
+
+	@Override
+	public Collection<Object> values() {
+		return new AbstractCollection<Object>() {
+			@Override
+			public Iterator<Object> iterator() {
+				final Iterator<Map.Entry<String, Object>> entries = new LayeredIterator();
+				return new Iterator<Object>() {
+					@Override
+					public boolean hasNext() {
+						return entries.hasNext();
+					}
+
+					@Override
+					public Object next() {
+						return entries.next().getValue();
+					}
+
+					@Override
+					public void remove() {
+						entries.remove();
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return LayeredMustacheData.this.size();
+			}
+		};
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				return new LayeredIterator();
+			}
+
+			@Override
+			public int size() {
+				return LayeredMustacheData.this.size();
+			}
+		};
+	}
+
+	/**
+	 * Iterates over the overlay entries, then over the base entries not
+	 * overridden by the overlay
+	 */
+	private final class LayeredIterator implements Iterator<Map.Entry<String, Object>> {
+		private Iterator<Map.Entry<String, Object>> entries = getEntries().entrySet().iterator();
+
+		private boolean inBase = false;
+
+		private Map.Entry<String, Object> next = advance();
+
+		private Map.Entry<String, Object> advance() {
+			while (true) {
+				if (entries.hasNext()) {
+					Map.Entry<String, Object> entry = entries.next();
+					if (!inBase) {
+						return new AbstractMap.SimpleImmutableEntry<String, Object>(entry);
+					} else if (!getEntries().containsKey(entry.getKey())) {
+						return entry;
+					}
+				} else if (inBase) {
+					return null;
+				} else {
+					inBase = true;
+					entries = base.entrySet().iterator();
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Map.Entry<String, Object> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			Map.Entry<String, Object> entry = next;
+			next = advance();
+			return entry;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("This data model is frozen and can not be modified");
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package com.github.patjlm.ant.mustache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.tools.ant.Project;
+
+import com.fasterxml.jackson.core.JsonParser;
+
+/**
+ * A data model whose entries are only built when a template asks for them.
+ *
+ * <p>
+ * Adding properties only records them, indexed by the root key they belong
+ * to: the key itself for simple and boolean keys, the list name for list keys
+ * and the key without qualifier for JSON keys. The first time a root key is
+ * looked up, all the properties recorded for it are added to the model, so
+ * that JSON values are only parsed and lists only assembled for the keys the
+ * templates actually use. Once built, an entry is frozen and kept.
+ *
+ * <p>
+ * Operations needing all the entries (size, iteration, toString...) build all
+ * the remaining entries first.
+ */
+public class LazyMustacheData extends MustacheData {
+	/**
+	 * the properties not added to the model yet, by root key. Properties are
+	 * kept in the order they were added, so that later ones override earlier
+	 * ones as in a regular data model.
+	 */
+	private final Map<String, List<Object[]>> pending = new HashMap<String, List<Object[]>>();
+
+	public LazyMustacheData(Project project, String booleanRegexPattern, Boolean supportLists, String listIdName,
+			String listRegexPattern, Boolean numericListIds, Boolean supportJson, String jsonValueRegexPattern) {
+		super(project, booleanRegexPattern, supportLists, listIdName, listRegexPattern, numericListIds, supportJson,
+				jsonValueRegexPattern);
+	}
+
+	/**
+	 * Records a set of properties, to be added to the data model when their
+	 * root key is looked up.
+	 *
+	 * @see MustacheData#addProperties(Hashtable, String, Boolean)
+	 */
+	@Override
+	public synchronized void addProperties(Hashtable<?, ?> props, String prefix, Boolean removePrefix) {
+		count(RenderStatistics.Counter.PROPERTIES_SCANNED, props.size());
+		Iterator<?> it = props.keySet().iterator();
+		while (it.hasNext()) {
+			String key = (String) it.next();
+			if (prefix == null || key.startsWith(prefix)) {
+				Object value = props.get(key);
+				if (removePrefix && prefix != null) {
+					key = key.substring(prefix.length());
+				}
+				String rootKey = getRootKey(key);
+				List<Object[]> entries = pending.get(rootKey);
+				if (entries == null) {
+					entries = new ArrayList<Object[]>(1);
+					pending.put(rootKey, entries);
+				}
+				entries.add(new Object[] { key, value });
+			}
+		}
+	}
+
+	/**
+	 * Adds the fields of a JSON data file to the data model right away, after
+	 * the properties recorded for the same keys so that the file overrides
+	 * them.
+	 *
+	 * @see MustacheData#addJsonFile(File)
+	 */
+	@Override
+	public synchronized void addJsonFile(File file) throws IOException {
+		super.addJsonFile(file);
+	}
+
+	@Override
+	void putJsonDataField(String key, JsonParser parser, MustacheData.ValuePool pool) throws IOException {
+		load(key);
+		super.putJsonDataField(key, parser, pool);
+	}
+
+	/**
+	 * @param key
+	 *            a property key
+	 * @return the key of the data model entry the property belongs to
+	 */
+	private String getRootKey(String key) {
+		KeyClassifier classifier = getClassifier();
+		KeyClassifier.Match match = classifier.classify(key);
+		if (match.kind == KeyClassifier.Kind.JSON) {
+			key = match.rootKey;
+			match = classifier.matchList(key);
+		}
+		if (match != null && match.kind == KeyClassifier.Kind.LIST) {
+			return match.rootKey;
+		}
+		return key;
+	}
+
+	/**
+	 * adds the properties recorded for the given key to the data model, if not
+	 * already done
+	 *
+	 * @param key
+	 *            the key being looked up
+	 */
+	private void load(Object key) {
+		List<Object[]> entries = pending.remove(key);
+		if (entries != null) {
+			for (Object[] entry : entries) {
+				putValue((String) entry[0], entry[1]);
+			}
+			if (isFrozen()) {
+				freezeEntry((String) key);
+			}
+		}
+	}
+
+	/**
+	 * adds all the recorded properties to the data model
+	 */
+	private void loadAll() {
+		for (Object key : new ArrayList<String>(pending.keySet())) {
+			load(key);
+		}
+	}
+
+	@Override
+	public synchronized void freeze() {
+		super.freeze();
+	}
+
+	/**
+	 * @return the number of root keys not added to the data model yet
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	@Override
+	public synchronized Object get(Object key) {
+		load(key);
+		return super.get(key);
+	}
+
+	@Override
+	public synchronized boolean containsKey(Object key) {
+		load(key);
+		return super.containsKey(key);
+	}
+
+	@Override
+	public synchronized boolean containsValue(Object value) {
+		loadAll();
+		return super.containsValue(value);
+	}
+
+	@Override
+	public synchronized int size() {
+		loadAll();
+		return super.size();
+	}
+
+	@Override
+	public synchronized boolean isEmpty() {
+		loadAll();
+		return super.isEmpty();
+	}
+
+	@Override
+	public synchronized Set<String> keySet() {
+		loadAll();
+		return super.keySet();
+	}
+
+	@Override
+	public synchronized Collection<Object> values() {
+		loadAll();
+		return super.values();
+	}
+
+	@Override
+	public synchronized Set<Map.Entry<String, Object>> entrySet() {
+		loadAll();
+		return super.entrySet();
+	}
+}
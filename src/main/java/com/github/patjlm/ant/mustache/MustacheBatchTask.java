@@ -0,0 +1,217 @@
+package com.github.patjlm.ant.mustache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.util.FileUtils;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.samskivert.mustache.Mustache.Compiler;
+import com.samskivert.mustache.MustacheException;
+import com.samskivert.mustache.Template;
+
+/**
+ * Renders one template once per row of a table, into one file per row.
+ *
+ * <p>
+ * The data model and the template are built once. Rows are read one at a time
+ * from a JSON lines file, a CSV file or a list of the data model, each row
+ * being layered over the data model (see {@link LayeredMustacheData}): the
+ * template sees the values of the row first, then the values of the data
+ * model. The name of the file of each row is rendered from a filename pattern,
+ * which is a mustache template as well.
+ *
+ * <p>
+ * See README.md for the usage within an Ant build script.
+ */
+public class MustacheBatchTask extends AbstractTemplateTask {
+
+	/**
+	 * the template file to render for each row
+	 */
+	private File template = null;
+
+	/**
+	 * the file to read the rows from
+	 */
+	private File rows = null;
+
+	/**
+	 * the format of the rows file: "jsonl" or "csv". Defaults to the
+	 * extension of the file.
+	 */
+	private String format = null;
+
+	/**
+	 * the separator of the fields of a CSV rows file
+	 */
+	private char separator = ',';
+
+	/**
+	 * the key of the data model list to take the rows from, instead of a rows
+	 * file
+	 */
+	private String rowList = null;
+
+	/**
+	 * the directory to write the rendered files into
+	 */
+	private File todir = null;
+
+	/**
+	 * the mustache template of the name of the file of each row, relative to
+	 * todir
+	 */
+	private String filename = null;
+
+	public void setTemplate(File template) {
+		this.template = template;
+	}
+
+	public void setRows(File rows) {
+		this.rows = rows;
+	}
+
+	public void setFormat(String format) {
+		if (!"jsonl".equals(format) && !"csv".equals(format)) {
+			throw new BuildException("Unsupported rows format " + format + ": jsonl or csv expected");
+		}
+		this.format = format;
+	}
+
+	public void setSeparator(String separator) {
+		if (separator.length() != 1) {
+			throw new BuildException("The separator must be a single character");
+		}
+		this.separator = separator.charAt(0);
+	}
+
+	public void setRowList(String rowList) {
+		this.rowList = rowList;
+	}
+
+	public void setTodir(File todir) {
+		this.todir = todir;
+	}
+
+	public void setFilename(String filename) {
+		this.filename = filename;
+	}
+
+	@Override
+	public void execute() throws BuildException {
+		if (template == null) {
+			throw new BuildException("template is required", getLocation());
+		}
+		if (todir == null) {
+			throw new BuildException("todir is required", getLocation());
+		}
+		if (filename == null) {
+			throw new BuildException("filename is required", getLocation());
+		}
+		if ((rows == null) == (rowList == null)) {
+			throw new BuildException("either rows or rowList is required", getLocation());
+		}
+
+		settings.setProject(getProject());
+		RenderStatistics statistics = settings.getStatistics();
+		MustacheData data = settings.getData();
+		PartialPath.Loader loader = settings.getPartialLoader();
+		Compiler compiler = settings.getCompiler(loader);
+		String name = template.getPath();
+		String source = rows == null ? "list " + rowList : rows.getPath();
+
+		Template tmpl;
+		Template namer;
+		try {
+			String text = read(template);
+			long start = System.nanoTime();
+			if (settings.isCacheTemplates()) {
+				TemplateCache cache = TemplateCache.getInstance(getProject());
+				tmpl = cache.compile(compiler, settings.getCompilerKey(), text, settings.getCompiledTemplates());
+			} else {
+				tmpl = settings.compile(compiler, text);
+			}
+			statistics.addCompile(name, System.nanoTime() - start);
+			namer = compiler.escapeHTML(false).compile(filename);
+		} catch (IOException e) {
+			throw new BuildException("Unable to read template " + template + ": " + e.getMessage(), e, getLocation());
+		} catch (MustacheException e) {
+			throw new BuildException("Unable to compile " + template + ": " + e.getMessage(), e, getLocation());
+		}
+
+		Set<File> outputs = new HashSet<File>();
+		// the number of the row being rendered
+		int count = 0;
+		BatchRows batch = openRows(data);
+		try {
+			while (true) {
+				count++;
+				MustacheData row = batch.next(data);
+				if (row == null) {
+					count--;
+					break;
+				}
+				File output = FileUtils.getFileUtils().resolveFile(todir, namer.execute(row));
+				if (!outputs.add(output)) {
+					throw new BuildException("The row " + count + " of " + source + " is rendered to " + output
+							+ " as an earlier row", getLocation());
+				}
+				render(tmpl, row, output, statistics, name);
+				log("Rendered row " + count + " to " + output, Project.MSG_VERBOSE);
+			}
+		} catch (IOException e) {
+			throw new BuildException("Failed to render the row " + count + " of " + source + ": " + e.getMessage(),
+					e, getLocation());
+		} catch (MustacheException e) {
+			throw new BuildException("Failed to render the row " + count + " of " + source + ": " + e.getMessage(),
+					e, getLocation());
+		} finally {
+			try {
+				batch.close();
+			} catch (IOException e) {
+				log("Unable to close " + source + ": " + e.getMessage(), Project.MSG_WARN);
+			}
+		}
+		if (loader != null) {
+			log(loader.getStatistics(), Project.MSG_VERBOSE);
+		}
+		log("Rendered " + count + " row(s) of " + source + " to " + todir);
+	}
+
+	/**
+	 * @return the rows of the rows file or of the row list
+	 */
+	private BatchRows openRows(MustacheData data) {
+		if (rowList != null) {
+			Object list = data.get(rowList);
+			if (!(list instanceof List) && !(list instanceof ArrayNode)) {
+				throw new BuildException("The data model has no list " + rowList, getLocation());
+			}
+			return BatchRows.list((Iterable<?>) list);
+		}
+		String rowsFormat = format;
+		if (rowsFormat == null) {
+			String lowerName = rows.getName().toLowerCase();
+			if (lowerName.endsWith(".csv")) {
+				rowsFormat = "csv";
+			} else if (lowerName.endsWith(".jsonl") || lowerName.endsWith(".ndjson")) {
+				rowsFormat = "jsonl";
+			} else {
+				throw new BuildException("Unable to guess the format of " + rows + ": set the format attribute",
+						getLocation());
+			}
+		}
+		try {
+			return "csv".equals(rowsFormat) ? BatchRows.csv(rows, getEncoding(), separator)
+					: BatchRows.jsonLines(rows, getEncoding());
+		} catch (IOException e) {
+			throw new BuildException("Unable to read " + rows + ": " + e.getMessage(), e, getLocation());
+		}
+	}
+}
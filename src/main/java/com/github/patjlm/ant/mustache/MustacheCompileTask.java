@@ -0,0 +1,142 @@
+package com.github.patjlm.ant.mustache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+
+import com.samskivert.mustache.MustacheException;
+
+/**
+ * Compiles template files ahead of time into the Java sources of
+ * {@link CompiledTemplate} classes, one class per template. Partials are
+ * inlined into the classes of the templates including them.
+ *
+ * <p>
+ * Once compiled with javac, the classes are used by the mustache filter and
+ * the rendering tasks given their package (compiledPackage attribute), in
+ * place of the templates compiled by JMustache. Generated sources are only
+ * written when their content changes, so that javac only recompiles the
+ * classes of the modified templates. The encoding and partialPath attributes
+ * are the ones of the rendering tasks.
+ *
+ * <p>
+ * See README.md for the usage within an Ant build script.
+ */
+public class MustacheCompileTask extends AbstractTemplateTask {
+
+	private final List<FileSet> filesets = new ArrayList<FileSet>();
+
+	/**
+	 * the directory to write the generated sources into
+	 */
+	private File destdir = null;
+
+	/**
+	 * the package of the generated classes
+	 */
+	private String packageName = null;
+
+	public void addFileset(FileSet fileset) {
+		filesets.add(fileset);
+	}
+
+	public void setDestdir(File destdir) {
+		this.destdir = destdir;
+	}
+
+	public void setPackage(String packageName) {
+		for (String part : packageName.split("\\.", -1)) {
+			boolean valid = part.length() > 0 && Character.isJavaIdentifierStart(part.charAt(0));
+			for (int i = 1; valid && i < part.length(); i++) {
+				valid = Character.isJavaIdentifierPart(part.charAt(i));
+			}
+			if (!valid) {
+				throw new BuildException("Invalid package name " + packageName);
+			}
+		}
+		this.packageName = packageName;
+	}
+
+	@Override
+	public void execute() throws BuildException {
+		if (destdir == null) {
+			throw new BuildException("destdir is required", getLocation());
+		}
+		if (packageName == null) {
+			throw new BuildException("package is required", getLocation());
+		}
+		if (filesets.isEmpty()) {
+			throw new BuildException("at least one fileset is required", getLocation());
+		}
+		PartialPath.Loader loader = settings.getPartialLoader();
+		File packageDir = new File(destdir, packageName.replace('.', File.separatorChar));
+		int templates = 0;
+		int generated = 0;
+		for (FileSet fileset : filesets) {
+			DirectoryScanner scanner = fileset.getDirectoryScanner(getProject());
+			for (String name : scanner.getIncludedFiles()) {
+				File template = new File(scanner.getBasedir(), name);
+				String text;
+				String source;
+				try {
+					text = read(template);
+					source = TemplateGenerator.generate(packageName, text, name, loader);
+				} catch (UnsupportedOperationException e) {
+					// the templates are still compiled by JMustache when rendered
+					log(e.getMessage() + ": no template compiled ahead of time", Project.MSG_WARN);
+					return;
+				} catch (IOException e) {
+					throw new BuildException("Unable to read template " + template + ": " + e.getMessage(), e,
+							getLocation());
+				} catch (MustacheException e) {
+					throw new BuildException("Unable to compile " + template + ": " + e.getMessage(), e,
+							getLocation());
+				}
+				File output = new File(packageDir, TemplateGenerator.className(text) + ".java");
+				templates++;
+				try {
+					if (write(output, source)) {
+						generated++;
+						log("Compiled " + template + " to " + output, Project.MSG_VERBOSE);
+					}
+				} catch (IOException e) {
+					throw new BuildException("Unable to write " + output + ": " + e.getMessage(), e, getLocation());
+				}
+			}
+		}
+		log("Compiled " + templates + " template(s) to " + packageDir + ", " + generated + " source(s) written");
+	}
+
+	/**
+	 * writes a generated source, unless the file already holds it
+	 *
+	 * @return true if the file was written
+	 */
+	private static boolean write(File output, String source) throws IOException {
+		if (output.isFile() && output.length() == source.length()
+				&& source.equals(AbstractTemplateTask.read(output, "UTF-8"))) {
+			return false;
+		}
+		File parent = output.getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+			throw new IOException("Unable to create directory " + parent);
+		}
+		// the generated sources are made of ASCII characters only
+		Writer writer = new OutputStreamWriter(new FileOutputStream(output), "UTF-8");
+		try {
+			writer.write(source);
+		} finally {
+			writer.close();
+		}
+		return true;
+	}
+}
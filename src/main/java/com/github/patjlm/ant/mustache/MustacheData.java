@@ -1,7 +1,11 @@
 package com.github.patjlm.ant.mustache;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -9,87 +13,466 @@ import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Vector;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.tools.ant.Project;
-import org.apache.tools.ant.types.RegularExpression;
 import org.apache.tools.ant.util.regexp.Regexp;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
-public class MustacheData extends HashMap<String, Object> {
-	private static final long serialVersionUID = -5968961809791605263L;
+/**
+ * The data model of the templates: a map of the values of the properties, JSON
+ * values and data files, built according to the kind of their keys.
+ *
+ * <p>
+ * The entries are held by a hash map of the node, accessed only through the
+ * methods of this class, so that the Map methods inherited from AbstractMap
+ * (getOrDefault, forEach, putIfAbsent, compute, merge...) go through the
+ * lookups and the frozen checks of the node and of its subclasses.
+ */
+public class MustacheData extends AbstractMap<String, Object> {
 
 	/**
-	 * Whether to support list parsing in property names
+	 * the factory of JSON parsers, shared by all data models as it is thread
+	 * safe
 	 */
-	private Boolean supportLists;
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
 
 	/**
-	 * when list parsing is enabled, this defines the name of the id to be given
-	 * to each element of the list
+	 * the mapper reading @JSON values into JSON trees, shared by all data
+	 * models as it is thread safe
 	 */
-	private String listIdName;
+	private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
 
-	/**
-	 * the regular expression pattern used to parse list property names. This
-	 * pattern should include three groups. The first group is the root key to
-	 * access the list. The second group is the id of this item in the list. The
-	 * third group is the sub-key to assign the value to.
-	 */
-	private Regexp listRegexp;
+	private static final JsonNodeFactory JSON_NODES = JsonNodeFactory.instance;
 
 	/**
-	 * the regular expression pattern used to parse boolean property names.
+	 * the configuration of this data model, shared with all its child nodes
 	 */
-	private Regexp booleanRegexp;
+	private final Configuration config;
 
 	/**
-	 * Whether to support JSON parsing in property values
+	 * the entries of this node, or null for the nodes holding their entries
+	 * in a compact form of their own
 	 */
-	private Boolean supportJson;
+	private final Map<String, Object> entries;
 
 	/**
-	 * the regular expression pattern used to parse property names having a JSON
-	 * value.
+	 * Whether this data model is frozen, i.e. can not be modified anymore
 	 */
-	private Regexp jsonValueRegex;
-
-	private Project project;
+	private boolean frozen = false;
 
 	public MustacheData(Project project, String booleanRegexPattern, Boolean supportLists, String listIdName,
 			String listRegexPattern, Boolean supportJson, String jsonValueRegexPattern) {
-		this(project, asAntRegexp(booleanRegexPattern, project), supportLists, listIdName,
-				asAntRegexp(listRegexPattern, project), supportJson, asAntRegexp(jsonValueRegexPattern, project));
+		this(project, booleanRegexPattern, supportLists, listIdName, listRegexPattern, false, supportJson,
+				jsonValueRegexPattern);
+	}
+
+	public MustacheData(Project project, String booleanRegexPattern, Boolean supportLists, String listIdName,
+			String listRegexPattern, Boolean numericListIds, Boolean supportJson, String jsonValueRegexPattern) {
+		this(project, new KeyClassifier(booleanRegexPattern, supportLists, listRegexPattern, supportJson,
+				jsonValueRegexPattern), listIdName, numericListIds,
+				new MustacheList.IdComparator(listIdName, numericListIds));
 	}
 
 	public MustacheData(Project project, Regexp booleanRegexp, Boolean supportLists, String listIdName,
 			Regexp listRegexp, Boolean supportJson, Regexp jsonValueRegex) {
+		this(project, booleanRegexp, supportLists, listIdName, listRegexp, false, supportJson, jsonValueRegex);
+	}
+
+	public MustacheData(Project project, Regexp booleanRegexp, Boolean supportLists, String listIdName,
+			Regexp listRegexp, Boolean numericListIds, Boolean supportJson, Regexp jsonValueRegex) {
+		this(project, booleanRegexp.getPattern(), supportLists, listIdName, listRegexp.getPattern(),
+				numericListIds, supportJson, jsonValueRegex.getPattern());
+	}
+
+	private MustacheData(Project project, KeyClassifier classifier, String listIdName, Boolean numericListIds,
+			Comparator<MustacheData> listIdComparator) {
+		super();
+		this.config = new Configuration(project, classifier, listIdName, numericListIds, listIdComparator);
+		this.entries = new HashMap<String, Object>();
+	}
+
+	/**
+	 * creates an empty data model sharing the configuration and statistics of
+	 * the given one
+	 *
+	 * @param model
+	 *            the data model to take the configuration from
+	 */
+	MustacheData(MustacheData model) {
+		this(model, new HashMap<String, Object>());
+	}
+
+	/**
+	 * creates a data model sharing the configuration and statistics of the
+	 * given one
+	 *
+	 * @param model
+	 *            the data model to take the configuration from
+	 * @param entries
+	 *            the map holding the entries of the node, or null if the
+	 *            subclass holds them and overrides all the Map read methods
+	 */
+	MustacheData(MustacheData model, Map<String, Object> entries) {
 		super();
-		this.project = project;
-		this.booleanRegexp = booleanRegexp;
-		this.supportLists = supportLists;
-		this.listIdName = listIdName;
-		this.listRegexp = listRegexp;
-		this.supportJson = supportJson;
-		this.jsonValueRegex = jsonValueRegex;
+		this.config = model.config;
+		this.entries = entries;
+	}
+
+	/**
+	 * @return a new empty data model having the same configuration as this one
+	 */
+	MustacheData newChild() {
+		return new MustacheData(this);
 	}
 
 	@Override
 	public Object put(String key, Object value) {
-		if (supportLists && listRegexp.matches(key)) {
-			ListKeyParser parser = new ListKeyParser(key);
-			return addList(parser.rootKey, parser.id, parser.subKey, value);
-		} else if (supportJson && jsonValueRegex.matches(key)) {
-			Vector<?> groups = jsonValueRegex.getGroups(key);
-			key = (String) groups.get(1);
-			return addJsonNode(key, (String) value);
+		checkNotFrozen();
+		return putValue(key, value);
+	}
+
+	/**
+	 * Adds a value to the data model according to the kind of its key. Unlike
+	 * {@link #put(String, Object)}, this does not check whether the data
+	 * model is frozen.
+	 *
+	 * @param key
+	 *            the key of the value
+	 * @param value
+	 *            the value to add
+	 * @return the previous value
+	 */
+	Object putValue(String key, Object value) {
+		KeyClassifier.Match match = config.classifier.classify(key);
+		switch (match.kind) {
+		case LIST:
+			return addList(match.rootKey, match.id, match.subKey, value);
+		case JSON:
+			return addJsonNode(match.rootKey, (String) value);
+		default:
+			if (value instanceof JsonNode) {
+				return putJsonNode(key, (JsonNode) value);
+			}
+			return entries.put(key, computeValue(match.kind, value));
+		}
+	}
+
+	@Override
+	public void putAll(Map<? extends String, ? extends Object> m) {
+		checkNotFrozen();
+		entries.putAll(m);
+	}
+
+	@Override
+	public Object remove(Object key) {
+		checkNotFrozen();
+		return entries.remove(key);
+	}
+
+	@Override
+	public void clear() {
+		checkNotFrozen();
+		entries.clear();
+	}
+
+	@Override
+	public Object get(Object key) {
+		return entries.get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return entries.containsKey(key);
+	}
+
+	@Override
+	public boolean containsValue(Object value) {
+		return entries.containsValue(value);
+	}
+
+	@Override
+	public int size() {
+		return entries.size();
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return frozen ? Collections.unmodifiableSet(entries.keySet()) : entries.keySet();
+	}
+
+	@Override
+	public Collection<Object> values() {
+		return frozen ? Collections.unmodifiableCollection(entries.values()) : entries.values();
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return frozen ? Collections.unmodifiableMap(entries).entrySet() : entries.entrySet();
+	}
+
+	/**
+	 * @return the entries of this node itself, which can be modified even
+	 *         once frozen. Used to build the node.
+	 */
+	Map<String, Object> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Freezes this data model and all its children: lists built from list
+	 * property names get sorted, and any further modification will fail. A
+	 * frozen model can be shared between filters.
+	 */
+	public void freeze() {
+		freeze(new ValuePool());
+	}
+
+	/**
+	 * freezes this data model and all its children
+	 *
+	 * @param pool
+	 *            the values shared by the nodes frozen together
+	 */
+	private void freeze(ValuePool pool) {
+		if (frozen) {
+			return;
+		}
+		for (Map.Entry<String, Object> entry : entries.entrySet()) {
+			entry.setValue(freezeValue(entry.getValue(), pool));
+		}
+		frozen = true;
+	}
+
+	/**
+	 * Adds a value that is already frozen, without classifying its key nor
+	 * checking whether this data model is frozen. Used to load data models
+	 * built beforehand.
+	 *
+	 * @param key
+	 *            the key of the value
+	 * @param value
+	 *            the value, whose lists must be unmodifiable and whose data
+	 *            models must be frozen
+	 */
+	void putFrozenValue(String key, Object value) {
+		entries.put(key, value);
+	}
+
+	/**
+	 * marks this data model as frozen, its values being frozen already
+	 */
+	void markFrozen() {
+		frozen = true;
+	}
+
+	/**
+	 * freezes the value of the given key, even if this data model is already
+	 * frozen
+	 *
+	 * @param key
+	 *            the key of the value to freeze
+	 */
+	void freezeEntry(String key) {
+		if (entries.containsKey(key)) {
+			entries.put(key, freezeValue(entries.get(key), new ValuePool()));
+		}
+	}
+
+	/**
+	 * freezes a value of the data model
+	 *
+	 * @param value
+	 *            the value to freeze
+	 * @param pool
+	 *            the values shared by the nodes frozen together
+	 * @return the value itself, or its compact immutable form for data models,
+	 *         lists and JSON objects
+	 */
+	@SuppressWarnings("unchecked")
+	private Object freezeValue(Object value, ValuePool pool) {
+		if (value instanceof MustacheData) {
+			return ((MustacheData) value).compact(pool);
+		} else if (value instanceof MustacheList) {
+			return ((MustacheList) value).freeze(config.listIdComparator, config.listIdName, pool);
+		} else if (value instanceof List) {
+			return freezeList((List<Object>) value, pool);
 		} else if (value instanceof JsonNode) {
-			return addJsonNode(key, (JsonNode) value);
-		} else {
-			return super.put(key, computeValue(key, value));
+			return freezeJson((JsonNode) value, pool);
+		}
+		return value;
+	}
+
+	/**
+	 * freezes a JSON value of the data model: objects are replaced by
+	 * unmodifiable objects holding their fields in arrays of the exact size
+	 * (see {@link FrozenJsonFields}), and equal strings and integers are
+	 * shared
+	 *
+	 * @param node
+	 *            the JSON value to freeze
+	 * @param pool
+	 *            the values shared by the nodes frozen together
+	 * @return the frozen JSON value
+	 */
+	private JsonNode freezeJson(JsonNode node, ValuePool pool) {
+		if (node.isObject()) {
+			String[] keys = new String[node.size()];
+			JsonNode[] values = new JsonNode[keys.length];
+			Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+			for (int i = 0; fields.hasNext(); i++) {
+				Map.Entry<String, JsonNode> field = fields.next();
+				keys[i] = config.intern(field.getKey());
+				values[i] = freezeJson(field.getValue(), pool);
+			}
+			return FrozenJsonFields.object(keys, values);
+		} else if (node.isArray()) {
+			ArrayNode array = (ArrayNode) node;
+			for (int i = 0; i < array.size(); i++) {
+				array.set(i, freezeJson(array.get(i), pool));
+			}
+			return array;
+		} else if (node.isTextual() || node.isIntegralNumber()) {
+			// decimal values are not shared: 1.0 and 1.00 are equal decimal nodes
+			return pool.get(node);
+		}
+		return node;
+	}
+
+	/**
+	 * freezes the elements of the given list
+	 *
+	 * @param list
+	 *            the list to freeze
+	 * @param pool
+	 *            the values shared by the nodes frozen together
+	 * @return an unmodifiable copy of the list, backed by an array of the
+	 *         exact size
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<Object> freezeList(List<Object> list, ValuePool pool) {
+		Object[] elements = list.toArray();
+		for (int i = 0; i < elements.length; i++) {
+			if (elements[i] instanceof MustacheData) {
+				elements[i] = ((MustacheData) elements[i]).compact(pool);
+			} else if (elements[i] instanceof List) {
+				elements[i] = freezeList((List<Object>) elements[i], pool);
+			}
+		}
+		return Collections.unmodifiableList(Arrays.asList(elements));
+	}
+
+	/**
+	 * freezes this nested data model
+	 *
+	 * @param pool
+	 *            the values shared by the nodes frozen together
+	 * @return the compact immutable form of this data model, see
+	 *         {@link FrozenMustacheData}, or this data model itself if it is
+	 *         already frozen
+	 */
+	MustacheData compact(ValuePool pool) {
+		return compact(null, -1, pool);
+	}
+
+	/**
+	 * freezes this list element, whose int id is not stored as a value yet
+	 *
+	 * @param idKey
+	 *            the key of the id, or null for a node without int id
+	 * @param id
+	 *            the int id of the element, kept as an int by the compact
+	 *            form and served as a string
+	 * @param pool
+	 *            the values shared by the nodes frozen together
+	 * @return the compact immutable form of this data model, or this data
+	 *         model itself if it is already frozen
+	 */
+	MustacheData compact(String idKey, int id, ValuePool pool) {
+		if (frozen) {
+			return this;
+		}
+		freeze(pool);
+		if (idKey != null && entries.containsKey(idKey)) {
+			// a property of the element overrides its id
+			idKey = null;
+		}
+		String[] keys = new String[entries.size() + (idKey == null ? 0 : 1)];
+		Object[] values = new Object[keys.length];
+		int i = 0;
+		for (Map.Entry<String, Object> entry : entries.entrySet()) {
+			keys[i] = config.intern(entry.getKey());
+			values[i] = entry.getValue();
+			i++;
+		}
+		if (idKey == null) {
+			return new FrozenMustacheData(this, keys, values);
+		}
+		keys[i] = config.intern(idKey);
+		values[i] = FrozenMustacheData.INT_ID;
+		return new FrozenMustacheData(this, keys, values, id);
+	}
+
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	KeyClassifier getClassifier() {
+		return config.classifier;
+	}
+
+	/**
+	 * @param statistics
+	 *            the statistics to record the work done building the data
+	 *            model into. Must be set before adding any value. Shared with
+	 *            all the data models having the same configuration.
+	 */
+	void setStatistics(RenderStatistics statistics) {
+		config.statistics = statistics;
+	}
+
+	/**
+	 * @param jsonTrees
+	 *            whether the objects and arrays of @JSON values are kept as
+	 *            parsed JSON trees, their numbers keeping their value, instead
+	 *            of being converted into nested data models and lists, their
+	 *            numbers being truncated to ints as in earlier versions. Must
+	 *            be set before adding any value. Shared with all the data
+	 *            models having the same configuration.
+	 */
+	public void setJsonTrees(boolean jsonTrees) {
+		config.jsonTrees = jsonTrees;
+	}
+
+	/**
+	 * increases a counter of the statistics, if any
+	 */
+	void count(RenderStatistics.Counter counter, long delta) {
+		RenderStatistics statistics = config.statistics;
+		if (statistics != null) {
+			statistics.add(counter, delta);
+		}
+	}
+
+	private void checkNotFrozen() {
+		if (frozen) {
+			throw new UnsupportedOperationException("This data model is frozen and can not be modified");
 		}
 	}
 
@@ -106,6 +489,7 @@ public class MustacheData extends HashMap<String, Object> {
 	 *            name
 	 */
 	public void addProperties(Hashtable<?, ?> props, String prefix, Boolean removePrefix) {
+		count(RenderStatistics.Counter.PROPERTIES_SCANNED, props.size());
 		Iterator<?> it = props.keySet().iterator();
 		while (it.hasNext()) {
 			String key = (String) it.next();
@@ -119,10 +503,184 @@ public class MustacheData extends HashMap<String, Object> {
 		}
 	}
 
+	/**
+	 * Adds the fields of a JSON data file to the data model. The file must
+	 * hold a JSON object, which is streamed from the JSON parser directly into
+	 * the data model. Keys are taken as is: JSON objects become nested data
+	 * models, JSON arrays become lists and other values are kept as strings,
+	 * booleans, numbers and nulls, without any list, boolean or JSON key
+	 * classification. Objects are merged into the data models already present
+	 * with the same key, so that several files can be added in order, later
+	 * values overriding earlier ones.
+	 *
+	 * @param file
+	 *            the JSON data file, encoded in UTF-8, UTF-16 or UTF-32
+	 * @throws IOException
+	 *             if the file can not be read or does not hold a JSON object
+	 */
+	public void addJsonFile(File file) throws IOException {
+		count(RenderStatistics.Counter.JSON_BYTES_PARSED, file.length());
+		JsonParser parser = JSON_FACTORY.createParser(file);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("The JSON data file " + file + " does not hold a JSON object");
+			}
+			addJsonObject(parser);
+		} finally {
+			parser.close();
+		}
+	}
+
+	/**
+	 * Adds the fields of the JSON object the parser is positioned on to the
+	 * data model, the same way as the fields of a JSON data file
+	 *
+	 * @param parser
+	 *            the parser, positioned on the start of the object
+	 * @throws IOException
+	 *             if the JSON value can not be parsed
+	 * @see #addJsonFile(File)
+	 */
+	void addJsonObject(JsonParser parser) throws IOException {
+		ValuePool pool = new ValuePool();
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String key = parser.getCurrentName();
+			parser.nextToken();
+			putJsonDataField(key, parser, pool);
+		}
+	}
+
+	/**
+	 * Adds a top level field of a JSON data file to the data model
+	 *
+	 * @param key
+	 *            the name of the field
+	 * @param parser
+	 *            the parser, positioned on the first token of the value
+	 * @param pool
+	 *            the values shared by the fields of the JSON object
+	 * @throws IOException
+	 *             if the JSON value can not be parsed
+	 */
+	void putJsonDataField(String key, JsonParser parser, ValuePool pool) throws IOException {
+		checkNotFrozen();
+		putJsonDataValue(key, parser, pool);
+	}
+
+	/**
+	 * Adds the JSON value of a data file field into the data model, consuming
+	 * all its tokens
+	 *
+	 * @param key
+	 *            the name of the field
+	 * @param parser
+	 *            the parser, positioned on the first token of the value
+	 * @param pool
+	 *            the values shared by the fields of the JSON object
+	 * @throws IOException
+	 *             if the JSON value can not be parsed
+	 */
+	private void putJsonDataValue(String key, JsonParser parser, ValuePool pool) throws IOException {
+		switch (parser.getCurrentToken()) {
+		case START_OBJECT:
+			Object previousValue = entries.get(key);
+			MustacheData objectContext;
+			if (previousValue instanceof MustacheData && !((MustacheData) previousValue).frozen) {
+				objectContext = (MustacheData) previousValue;
+			} else {
+				objectContext = newChild();
+				entries.put(key, objectContext);
+			}
+			objectContext.putJsonDataFields(parser, pool);
+			break;
+		case START_ARRAY:
+			entries.put(key, readJsonDataArray(parser, pool));
+			break;
+		default:
+			entries.put(key, readJsonDataScalar(parser, pool));
+		}
+	}
+
+	/**
+	 * Adds the fields of the JSON object the parser is positioned on into this
+	 * data model, taking their names as is
+	 *
+	 * @param parser
+	 *            the parser, positioned on the start of the object
+	 * @param pool
+	 *            the values shared by the fields of the JSON object
+	 * @throws IOException
+	 *             if the JSON value can not be parsed
+	 */
+	private void putJsonDataFields(JsonParser parser, ValuePool pool) throws IOException {
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String key = parser.getCurrentName();
+			parser.nextToken();
+			putJsonDataValue(key, parser, pool);
+		}
+	}
+
+	/**
+	 * Reads the JSON array of a data file the parser is positioned on
+	 *
+	 * @param parser
+	 *            the parser, positioned on the start of the array
+	 * @param pool
+	 *            the values shared by the fields of the JSON object
+	 * @return the list of values
+	 * @throws IOException
+	 *             if the JSON value can not be parsed
+	 */
+	private List<Object> readJsonDataArray(JsonParser parser, ValuePool pool) throws IOException {
+		List<Object> arrayValues = new ArrayList<Object>();
+		JsonToken token;
+		while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+			if (token == JsonToken.START_OBJECT) {
+				MustacheData objectContext = newChild();
+				objectContext.putJsonDataFields(parser, pool);
+				arrayValues.add(objectContext);
+			} else if (token == JsonToken.START_ARRAY) {
+				arrayValues.add(readJsonDataArray(parser, pool));
+			} else {
+				arrayValues.add(readJsonDataScalar(parser, pool));
+			}
+		}
+		return arrayValues;
+	}
+
+	/**
+	 * @param parser
+	 *            the parser, positioned on a simple value
+	 * @param pool
+	 *            the values shared by the fields of the JSON object, so that
+	 *            repeated strings and numbers are stored once
+	 * @return the simple value: a string, a boolean, a number or null
+	 * @throws IOException
+	 *             if the JSON value can not be parsed
+	 */
+	private static Object readJsonDataScalar(JsonParser parser, ValuePool pool) throws IOException {
+		switch (parser.getCurrentToken()) {
+		case VALUE_STRING:
+			return pool.get(parser.getText());
+		case VALUE_TRUE:
+			return Boolean.TRUE;
+		case VALUE_FALSE:
+			return Boolean.FALSE;
+		case VALUE_NUMBER_INT:
+		case VALUE_NUMBER_FLOAT:
+			return pool.get(parser.getNumberValue());
+		case VALUE_NULL:
+			return null;
+		default:
+			throw new IOException("Unexpected Json token: " + parser.getCurrentToken());
+		}
+	}
+
 	/**
 	 * Adds or updates a list into the specified Map, creating the necessary
 	 * List and Map objects. This method is recursive: it calls itself to add
-	 * child elements to the data model
+	 * child elements to the data model. Elements are looked up by id in the
+	 * list index, and the list is only sorted when the model is frozen.
 	 *
 	 * @param data
 	 *            the map to insert or update the list into
@@ -136,141 +694,305 @@ public class MustacheData extends HashMap<String, Object> {
 	 *            the value to put in the list element
 	 */
 	private Object addList(String rootKey, String id, String subKey, Object value) {
-		@SuppressWarnings("unchecked")
-		List<MustacheData> listContext = (List<MustacheData>) get(rootKey);
+		return getListElement(rootKey, id).put(subKey, value);
+	}
+
+	/**
+	 * Gets the element having the given id in a list of the data model,
+	 * creating the necessary List and Map objects.
+	 *
+	 * @param rootKey
+	 *            the list name
+	 * @param id
+	 *            the id of the element
+	 * @return the list element
+	 */
+	private MustacheData getListElement(String rootKey, String id) {
+		MustacheList listContext = (MustacheList) entries.get(rootKey);
 		if (listContext == null) {
-			listContext = new ArrayList<MustacheData>();
-			put(rootKey, listContext);
+			listContext = new MustacheList();
+			putValue(rootKey, listContext);
 		}
 
-		MustacheData foundData = null;
-		for (MustacheData subData : listContext) {
-			if (id.equals(subData.get(listIdName))) {
-				foundData = subData;
-				break;
-			}
-		}
+		int intId = config.numericListIds ? MustacheList.parseId(id) : -1;
+		MustacheData foundData = intId < 0 ? listContext.getById(id) : listContext.getById(intId);
 		if (foundData == null) {
-			foundData = new MustacheData(project, booleanRegexp, supportLists, listIdName, listRegexp, supportJson,
-					jsonValueRegex);
-			foundData.put(listIdName, id);
-			listContext.add(foundData);
-			Collections.sort(listContext, new Comparator<MustacheData>() {
-				@Override
-				public int compare(MustacheData m1, MustacheData m2) {
-					return ((String) m1.get(listIdName)).compareTo((String) m2.get(listIdName));
-				}
-			});
+			foundData = newChild();
+			count(RenderStatistics.Counter.LIST_ITEMS_CREATED, 1);
+			if (intId < 0) {
+				foundData.put(config.listIdName, id);
+				listContext.add(id, foundData);
+			} else {
+				// the id is only stored in the element when the list is frozen
+				listContext.add(intId, foundData);
+			}
 		}
-		return foundData.put(subKey, value);
+		return foundData;
 	}
 
 	/**
 	 * Parses JSON text value and add it into the data model using the specified
-	 * key as prefix.
+	 * key. The value is streamed from the JSON parser directly into the data
+	 * model, without building an intermediate JSON tree, unless jsonTrees is
+	 * set (see {@link #putJsonNode(String, JsonNode)}).
 	 *
 	 * @param key
 	 * @param jsonValue
 	 * @return the previous value
 	 */
 	private Object addJsonNode(String key, String jsonValue) {
-		ObjectMapper objectMapper = new ObjectMapper();
+		if (jsonValue == null) {
+			return putValue(key, null);
+		}
+		if (config.statistics != null && config.statistics.isEnabled()) {
+			count(RenderStatistics.Counter.JSON_BYTES_PARSED, utf8Length(jsonValue));
+		}
 		try {
-			JsonNode rootNode = objectMapper.readTree(jsonValue);
-			return put(key, rootNode);
+			if (config.jsonTrees) {
+				JsonNode node = JSON_MAPPER.readTree(jsonValue);
+				return node == null ? putValue(key, null) : putJsonNode(key, node);
+			}
+			JsonParser parser = JSON_FACTORY.createParser(jsonValue);
+			try {
+				if (parser.nextToken() == null) {
+					return putValue(key, null);
+				}
+				return putJsonValue(key, parser);
+			} finally {
+				parser.close();
+			}
 		} catch (IOException e) {
 			throw new RuntimeException("Unable to parse Json value: " + jsonValue + ". Cause: " + e.getMessage(), e);
 		}
 	}
 
 	/**
-	 * Parses JSON node and add it into the data model using the specified key
-	 * as prefix.
+	 * Adds the JSON value the parser is positioned on into the data model,
+	 * consuming all its tokens, the same way as
+	 * {@link #putJsonNode(String, JsonNode)} without jsonTrees. List keys are
+	 * handled the same way as for properties.
 	 *
 	 * @param key
-	 * @param jsonNode
+	 *            the key to add the value with
+	 * @param parser
+	 *            the parser, positioned on the first token of the value
 	 * @return the previous value
+	 * @throws IOException
+	 *             if the JSON value can not be parsed
 	 */
-	private Object addJsonNode(String key, JsonNode jsonNode) {
-		Object previousValue = null;
-
-		if (jsonNode.isValueNode()) {
-			// End of recursion, since the value is simple
-			if (jsonNode.isTextual()) {
-				previousValue = put(key, jsonNode.textValue());
-			} else if (jsonNode.isBoolean()) {
-				previousValue = put(key, jsonNode.asBoolean());
-			} else if (jsonNode.isNumber()) {
-				previousValue = put(key, jsonNode.asInt());
-			} else if (jsonNode.isNull()) {
-				previousValue = put(key, null);
-			} else if (jsonNode.isBinary()) {
-				try {
-					previousValue = put(key, jsonNode.binaryValue());
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
+	private Object putJsonValue(String key, JsonParser parser) throws IOException {
+		KeyClassifier.Match listMatch = config.classifier.matchList(key);
+		if (listMatch != null) {
+			return getListElement(listMatch.rootKey, listMatch.id).putJsonValue(listMatch.subKey, parser);
+		}
+
+		switch (parser.getCurrentToken()) {
+		case START_OBJECT:
+			MustacheData objectContext = newChild();
+			objectContext.putJsonFields(parser);
+			return putValue(key, objectContext);
+		case START_ARRAY:
+			return putValue(key, readJsonArray(parser));
+		case VALUE_STRING:
+			return putValue(key, parser.getText());
+		case VALUE_TRUE:
+			return putValue(key, Boolean.TRUE);
+		case VALUE_FALSE:
+			return putValue(key, Boolean.FALSE);
+		case VALUE_NUMBER_INT:
+		case VALUE_NUMBER_FLOAT:
+			return putValue(key, parser.getNumberValue().intValue());
+		case VALUE_NULL:
+			return putValue(key, null);
+		case VALUE_EMBEDDED_OBJECT:
+			return putValue(key, parser.getEmbeddedObject());
+		default:
+			throw new RuntimeException("Unexpected Json token: " + parser.getCurrentToken());
+		}
+	}
+
+	/**
+	 * Adds the fields of the JSON object the parser is positioned on into this
+	 * data model
+	 *
+	 * @param parser
+	 *            the parser, positioned on the start of the object
+	 * @throws IOException
+	 *             if the JSON value can not be parsed
+	 */
+	private void putJsonFields(JsonParser parser) throws IOException {
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String subKey = parser.getCurrentName();
+			parser.nextToken();
+			putJsonValue(subKey, parser);
+		}
+	}
+
+	/**
+	 * Reads the JSON array the parser is positioned on. Objects and arrays are
+	 * converted into data models and lists, simple values are kept as JSON
+	 * value nodes.
+	 *
+	 * @param parser
+	 *            the parser, positioned on the start of the array
+	 * @return the list of values
+	 * @throws IOException
+	 *             if the JSON value can not be parsed
+	 */
+	private List<Object> readJsonArray(JsonParser parser) throws IOException {
+		List<Object> arrayValues = new ArrayList<Object>();
+		JsonToken token;
+		while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+			if (token == JsonToken.START_OBJECT) {
+				MustacheData objectContext = newChild();
+				objectContext.putJsonFields(parser);
+				arrayValues.add(objectContext);
+			} else if (token == JsonToken.START_ARRAY) {
+				arrayValues.add(readJsonArray(parser));
 			} else {
-				throw new RuntimeException(
-						"Json simple value type not handled: " + jsonNode.getNodeType() + ", value: " + jsonNode);
+				arrayValues.add(readJsonValueNode(parser));
 			}
-		} else if (jsonNode.isContainerNode()) {
-			if (jsonNode.isObject()) {
-				MustacheData objectContext = new MustacheData(project, booleanRegexp, supportLists, listIdName,
-						listRegexp, supportJson, jsonValueRegex);
-				previousValue = put(key, objectContext);
-
-				// Iterate on the object fields
-				Iterator<Map.Entry<String, JsonNode>> fieldsIterator = jsonNode.fields();
-				while (fieldsIterator.hasNext()) {
-					Map.Entry<String, JsonNode> field = fieldsIterator.next();
-					String subKey = field.getKey();
-					JsonNode value = field.getValue();
-
-					// Recursively call this function
-					objectContext.put(subKey, value);
-				}
-			} else if (jsonNode.isArray()) {
-				List<Object> arrayValues = new ArrayList<Object>();
-
-				// Iterate on the array elements
-				Iterator<JsonNode> elementsIterator = jsonNode.elements();
-				int index = 0;
-				while (elementsIterator.hasNext()) {
-					String subTempKey = String.valueOf(index++);
-					JsonNode value = elementsIterator.next();
-
-					if (value.isContainerNode()) {
-						// Create a temporary context to recursively compute the
-						// sub-JSON value
-						MustacheData tempContext = new MustacheData(project, booleanRegexp, supportLists, listIdName,
-								listRegexp, supportJson, jsonValueRegex);
-
-						// Recursively call this function to compute the
-						// sub-JSON
-						// value
-						tempContext.put(subTempKey, value);
-						Object computedValue = tempContext.get(subTempKey);
-						arrayValues.add(computedValue);
-
-					} else {
-						// Simple value, no need of recursion here: simply
-						// stores the value in the array without any indexing
-						arrayValues.add(value);
-					}
-				}
+		}
+		return arrayValues;
+	}
 
-				previousValue = put(key, arrayValues);
+	/**
+	 * @param parser
+	 *            the parser, positioned on a simple value
+	 * @return the JSON node of the simple value
+	 * @throws IOException
+	 *             if the JSON value can not be parsed
+	 */
+	private static JsonNode readJsonValueNode(JsonParser parser) throws IOException {
+		switch (parser.getCurrentToken()) {
+		case VALUE_STRING:
+			return JSON_NODES.textNode(parser.getText());
+		case VALUE_TRUE:
+			return JSON_NODES.booleanNode(true);
+		case VALUE_FALSE:
+			return JSON_NODES.booleanNode(false);
+		case VALUE_NUMBER_INT:
+			switch (parser.getNumberType()) {
+			case INT:
+				return JSON_NODES.numberNode(parser.getIntValue());
+			case LONG:
+				return JSON_NODES.numberNode(parser.getLongValue());
+			default:
+				return JSON_NODES.numberNode(parser.getBigIntegerValue());
+			}
+		case VALUE_NUMBER_FLOAT:
+			return JSON_NODES.numberNode(parser.getDoubleValue());
+		case VALUE_NULL:
+			return JSON_NODES.nullNode();
+		case VALUE_EMBEDDED_OBJECT:
+			return JSON_NODES.pojoNode(parser.getEmbeddedObject());
+		default:
+			throw new RuntimeException("Unexpected Json token: " + parser.getCurrentToken());
+		}
+	}
 
+	/**
+	 * @return the number of bytes of a text encoded in UTF-8, without
+	 *         encoding it
+	 */
+	static long utf8Length(String text) {
+		long length = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				length++;
+			} else if (c < 0x800) {
+				length += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+					&& Character.isLowSurrogate(text.charAt(i + 1))) {
+				length += 4;
+				i++;
 			} else {
-				throw new RuntimeException(
-						"Unknown Json container type: " + jsonNode.getNodeType() + ", value: " + jsonNode);
+				length += 3;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Adds a JSON node into the data model. List keys are handled the same way
+	 * as for properties.
+	 *
+	 * <p>
+	 * With jsonTrees (see {@link #setJsonTrees(boolean)}), JSON objects and
+	 * arrays are stored as is and read by the {@link DataModelCollector} when
+	 * rendering, and simple values are converted the same way as the values
+	 * of JSON objects and JSON data files: numbers keep their value.
+	 * Otherwise, objects and arrays are converted into nested data models and
+	 * lists, and numbers are truncated to ints, as in earlier versions.
+	 *
+	 * @param key
+	 *            the key to add the node with
+	 * @param jsonNode
+	 *            the JSON node
+	 * @return the previous value
+	 */
+	private Object putJsonNode(String key, JsonNode jsonNode) {
+		KeyClassifier.Match listMatch = config.classifier.matchList(key);
+		if (listMatch != null) {
+			return getListElement(listMatch.rootKey, listMatch.id).putJsonNode(listMatch.subKey, jsonNode);
+		}
+
+		if (config.jsonTrees) {
+			if (jsonNode.isContainerNode()) {
+				return entries.put(key, jsonNode);
 			}
-		} else {
-			throw new RuntimeException("Unknown Json value type: " + jsonNode.getNodeType() + ", value: " + jsonNode);
+			return putValue(key, DataModelCollector.value(jsonNode));
+		} else if (jsonNode.isContainerNode()) {
+			return putValue(key, convertJsonContainer(jsonNode));
+		} else if (jsonNode.isNumber()) {
+			return putValue(key, jsonNode.asInt());
 		}
+		return putValue(key, DataModelCollector.value(jsonNode));
+	}
 
-		return previousValue;
+	/**
+	 * converts a JSON object into a nested data model, whose fields are added
+	 * the same way as properties, or a JSON array into a list, whose simple
+	 * elements are kept as JSON nodes
+	 *
+	 * @param node
+	 *            a JSON object or array
+	 * @return the data model or the list
+	 */
+	private Object convertJsonContainer(JsonNode node) {
+		if (node.isObject()) {
+			MustacheData objectContext = newChild();
+			Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+			while (fields.hasNext()) {
+				Map.Entry<String, JsonNode> field = fields.next();
+				objectContext.putValue(field.getKey(), field.getValue());
+			}
+			return objectContext;
+		}
+		List<Object> arrayValues = new ArrayList<Object>(node.size());
+		for (JsonNode element : node) {
+			arrayValues.add(element.isContainerNode() ? convertJsonContainer(element) : element);
+		}
+		return arrayValues;
+	}
+
+	/**
+	 * @param node
+	 *            a JSON object
+	 * @return a frozen data model holding the fields of the JSON object, with
+	 *         their simple values converted the same way as when rendering
+	 */
+	MustacheData jsonObjectData(ObjectNode node) {
+		String[] keys = new String[node.size()];
+		Object[] values = new Object[keys.length];
+		Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+		for (int i = 0; fields.hasNext(); i++) {
+			Map.Entry<String, JsonNode> field = fields.next();
+			keys[i] = config.intern(field.getKey());
+			values[i] = DataModelCollector.value(field.getValue());
+		}
+		return new FrozenMustacheData(this, keys, values);
 	}
 
 	/**
@@ -301,69 +1023,115 @@ public class MustacheData extends HashMap<String, Object> {
 		}
 	}
 
-	/**
-	 * get an Ant regexp from the given standard regex pattern
-	 *
-	 * @return the ant regexp
-	 */
-	private static Regexp asAntRegexp(String regexPattern, Project project) {
-		RegularExpression regularExpression = new RegularExpression();
-		regularExpression.setPattern(regexPattern);
-		return regularExpression.getRegexp(project);
-	}
-
 	/**
 	 * computes the value into a Boolean if needed
 	 *
-	 * @param key
-	 *            the key to evaluate, which should match the boolean pattern in
-	 *            order to be treated as a boolean
+	 * @param kind
+	 *            the kind of the key, which should be boolean in order to be
+	 *            treated as a boolean
 	 * @param value
 	 *            the value to translate into a boolean if needed
 	 * @return either a corresponding boolean or the value itself
 	 */
-	private Object computeValue(String key, Object value) {
-		if (booleanRegexp.matches(key) && "false".equals(value)) {
+	private Object computeValue(KeyClassifier.Kind kind, Object value) {
+		if (kind == KeyClassifier.Kind.BOOLEAN && "false".equals(value)) {
 			return false;
 		}
 		return value;
 	}
 
 	/**
-	 * This class splits the key string provided to its constructor into the
-	 * root key, the id and the sub key of a list item
-	 *
-	 * @author Patrick
-	 *
+	 * The values shared by the nodes of a data model frozen or parsed
+	 * together, so that the strings, numbers and JSON values repeated across
+	 * a model are stored once. Only used while building the model: the pool
+	 * is dropped once the nodes are frozen.
 	 */
-	private class ListKeyParser {
+	static final class ValuePool {
+		private final Map<Object, Object> values = new HashMap<Object, Object>();
+
 		/**
-		 * the list name
+		 * @param value
+		 *            a value of the data model, or null
+		 * @return the first value equal to the given one passed to this pool
 		 */
-		public String rootKey = null;
+		@SuppressWarnings("unchecked")
+		<T> T get(T value) {
+			if (value == null) {
+				return null;
+			}
+			Object shared = values.get(value);
+			if (shared == null) {
+				values.put(value, value);
+				return value;
+			}
+			return (T) shared;
+		}
+	}
+
+	/**
+	 * The configuration of a data model, shared by all its nodes
+	 */
+	private static final class Configuration {
+		private final Project project;
+
+		/**
+		 * the classifier of the keys added to the data model, built from the
+		 * boolean, list and JSON regular expression patterns. The list pattern
+		 * should include three groups. The first group is the root key to
+		 * access the list. The second group is the id of this item in the
+		 * list. The third group is the sub-key to assign the value to. The
+		 * first group of the JSON pattern is the key without the JSON
+		 * qualifier.
+		 */
+		private final KeyClassifier classifier;
+
+		/**
+		 * when list parsing is enabled, this defines the name of the id to be
+		 * given to each element of the list
+		 */
+		private final String listIdName;
+
+		/**
+		 * Whether list ids made of digits should be sorted as numbers
+		 */
+		private final Boolean numericListIds;
 
 		/**
-		 * the id of the list element
+		 * the comparator used to sort list elements by id
 		 */
-		public String id = null;
+		private final Comparator<MustacheData> listIdComparator;
 
 		/**
-		 * the key to put into the list element
+		 * the keys of the frozen nodes, so that equal keys are stored once
 		 */
-		public String subKey = null;
+		private final ConcurrentMap<String, String> keys = new ConcurrentHashMap<String, String>();
 
 		/**
-		 * constructor: parses the key into root key, id and sub-key
-		 *
-		 * @param key
-		 *            the key to parse
+		 * the statistics to record the work done building the data model
+		 * into, if any
 		 */
-		public ListKeyParser(String key) {
-			Vector<?> groups = listRegexp.getGroups(key);
-			rootKey = (String) groups.get(1);
-			id = (String) groups.get(2);
-			subKey = (String) groups.get(3);
+		private RenderStatistics statistics = null;
+
+		/**
+		 * whether @JSON objects and arrays are kept as parsed JSON trees
+		 */
+		private boolean jsonTrees = false;
+
+		public Configuration(Project project, KeyClassifier classifier, String listIdName, Boolean numericListIds,
+				Comparator<MustacheData> listIdComparator) {
+			this.project = project;
+			this.classifier = classifier;
+			this.listIdName = listIdName;
+			this.numericListIds = numericListIds;
+			this.listIdComparator = listIdComparator;
 		}
-	}
 
+		/**
+		 * @return the instance of the given key shared by all the frozen nodes
+		 */
+		public String intern(String key) {
+			String shared = keys.putIfAbsent(key, key);
+			return shared == null ? key : shared;
+		}
+	}
 }
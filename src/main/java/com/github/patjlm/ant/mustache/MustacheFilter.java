@@ -3,11 +3,18 @@ package com.github.patjlm.ant.mustache;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.StringTokenizer;
 
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.filters.TokenFilter.ChainableReaderFilter;
+import org.apache.tools.ant.types.Path;
 
 import com.samskivert.mustache.Mustache;
 import com.samskivert.mustache.Mustache.Compiler;
@@ -23,6 +30,18 @@ import com.samskivert.mustache.Template;
 
 public class MustacheFilter extends ChainableReaderFilter {
 
+	/**
+	 * the name the statistics of the templates filtered as strings are
+	 * recorded under, as they have no file name
+	 */
+	static final String FILTERED_TEMPLATES = "filtered templates";
+
+	/**
+	 * the name the statistics of the templates streamed through a filterchain
+	 * are recorded under
+	 */
+	static final String STREAMED_TEMPLATES = "streamed templates";
+
 	/**
 	 * Whether to use Ant project properties in the data model
 	 */
@@ -68,6 +87,12 @@ public class MustacheFilter extends ChainableReaderFilter {
 	private String listRegex = "(.+?)\\.(\\d+)\\.(.+)";
 	// other example of regex: (.+?)\[(\d+)\]\.(.+)
 
+	/**
+	 * Whether list ids made of digits should be sorted as numbers ("2" before
+	 * "10") instead of strings. Default is false.
+	 */
+	private Boolean numericListIds = false;
+
 	/**
 	 * Whether to support JSON parsing in property values
 	 */
@@ -82,12 +107,59 @@ public class MustacheFilter extends ChainableReaderFilter {
 	private String jsonValueRegex = "^(.+)(@JSON)$";
 	// other example of regex: ^(.+)(!JSON)$
 
+	/**
+	 * Whether the objects and arrays of JSON values are kept as parsed JSON
+	 * trees, read by the templates directly, instead of being converted into
+	 * nested data models and lists. Default is false.
+	 */
+	private Boolean jsonTrees = false;
+
+	/**
+	 * Whether the data model entries should only be built when a template
+	 * uses them. See {@link LazyMustacheData}. Default is false.
+	 */
+	private Boolean lazyData = false;
+
 	/**
 	 * A file name from which data model properties should be loaded from.
 	 * Disabled by default.
 	 */
 	private File dataFile = null;
 
+	/**
+	 * A comma separated list of JSON files whose objects should be added to the
+	 * data model, in order, after the project properties and data file. See
+	 * {@link MustacheData#addJsonFile(File)}. Disabled by default.
+	 */
+	private String jsonDataFile = null;
+
+	/**
+	 * A data model snapshot file, written by the mustache-snapshot task, to
+	 * load the data model from instead of building it from project properties
+	 * and data files. The file is only kept open while it is loaded. Disabled
+	 * by default.
+	 */
+	private File snapshotFile = null;
+
+	/**
+	 * Prefix of the project properties to add to an overlay of the data model,
+	 * the prefix being removed from their key. See {@link LayeredMustacheData}.
+	 * Disabled by default.
+	 */
+	private String overlayPrefix = null;
+
+	/**
+	 * A property file to add to an overlay of the data model. Disabled by
+	 * default.
+	 */
+	private File overlayDataFile = null;
+
+	/**
+	 * A comma separated list of JSON files to add to an overlay of the data
+	 * model, in order. Disabled by default.
+	 */
+	private String overlayJsonDataFile = null;
+
 	// JMustache settings
 
 	/**
@@ -122,6 +194,51 @@ public class MustacheFilter extends ChainableReaderFilter {
 	 */
 	private PartialPath partialPath = null;
 
+	/**
+	 * Whether compiled templates should be kept in the {@link TemplateCache}
+	 * of the project. Default is true.
+	 */
+	private boolean cacheTemplates = true;
+
+	/**
+	 * The maximum number of rendered chars waiting to be read by the next
+	 * filter when the filter is used directly in a filterchain. Default is
+	 * 8192.
+	 */
+	private int bufferSize = 8192;
+
+	/**
+	 * Whether the {@link RenderStatistics} of the project are collected, and
+	 * logged when the build finishes. Implied by statisticsFile. Default is
+	 * false.
+	 */
+	private Boolean statistics = false;
+
+	/**
+	 * A file to write the {@link RenderStatistics} of the project into, as a
+	 * JSON document, when the build finishes. Disabled by default.
+	 */
+	private File statisticsFile = null;
+
+	/**
+	 * The package of the templates compiled ahead of time by
+	 * {@link MustacheCompileTask}. Templates without a generated class are
+	 * compiled by JMustache. Disabled by default.
+	 */
+	private String compiledPackage = null;
+
+	/**
+	 * The classpath to load the compiled templates from. Defaults to the
+	 * classpath of the filter.
+	 */
+	private Path compiledClasspath = null;
+
+	/**
+	 * A directory keeping the data models between builds (see
+	 * {@link PersistentDataModelCache}). Disabled by default.
+	 */
+	private File cacheDir = null;
+
 	public void setProjectProperties(Boolean projectProperties) {
 		this.projectProperties = projectProperties;
 	}
@@ -146,10 +263,42 @@ public class MustacheFilter extends ChainableReaderFilter {
 		this.listIdName = listIdName;
 	}
 
+	public void setNumericListIds(Boolean numericListIds) {
+		this.numericListIds = numericListIds;
+	}
+
+	public void setJsonTrees(Boolean jsonTrees) {
+		this.jsonTrees = jsonTrees;
+	}
+
+	public void setLazyData(Boolean lazyData) {
+		this.lazyData = lazyData;
+	}
+
 	public void setDataFile(File dataFile) {
 		this.dataFile = dataFile;
 	}
 
+	public void setJsonDataFile(String jsonDataFile) {
+		this.jsonDataFile = jsonDataFile;
+	}
+
+	public void setSnapshotFile(File snapshotFile) {
+		this.snapshotFile = snapshotFile;
+	}
+
+	public void setOverlayPrefix(String overlayPrefix) {
+		this.overlayPrefix = overlayPrefix;
+	}
+
+	public void setOverlayDataFile(File overlayDataFile) {
+		this.overlayDataFile = overlayDataFile;
+	}
+
+	public void setOverlayJsonDataFile(String overlayJsonDataFile) {
+		this.overlayJsonDataFile = overlayJsonDataFile;
+	}
+
 	public void setDefaultValue(String defaultValue) {
 		this.defaultValue = defaultValue;
 	}
@@ -186,62 +335,564 @@ public class MustacheFilter extends ChainableReaderFilter {
 		this.partialPath = partialPath;
 	}
 
+	public void setCacheTemplates(boolean cacheTemplates) {
+		this.cacheTemplates = cacheTemplates;
+	}
+
+	public void setStatistics(Boolean statistics) {
+		this.statistics = statistics;
+	}
+
+	public void setStatisticsFile(File statisticsFile) {
+		this.statisticsFile = statisticsFile;
+	}
+
+	public void setCompiledPackage(String compiledPackage) {
+		this.compiledPackage = compiledPackage;
+	}
+
+	public void setCompiledClasspath(Path compiledClasspath) {
+		this.compiledClasspath = compiledClasspath;
+	}
+
+	public void setCacheDir(File cacheDir) {
+		this.cacheDir = cacheDir;
+	}
+
+	boolean isCacheTemplates() {
+		return cacheTemplates;
+	}
+
+	public void setBufferSize(int bufferSize) {
+		if (bufferSize <= 0) {
+			throw new BuildException("bufferSize must be positive");
+		}
+		this.bufferSize = bufferSize;
+	}
+
 	/**
 	 * The main method to implement the filter. Compiles the input text and
 	 * returns the output according to the defined data model
 	 */
 	@Override
 	public String filter(String text) {
-		getProject().log("Mustache Data: " + getData().toString(), Project.MSG_DEBUG);
-		Compiler compiler = Mustache.compiler().defaultValue(defaultValue);
+		RenderStatistics statistics = getStatistics();
+		String name = FILTERED_TEMPLATES;
+		long start = System.nanoTime();
+		Compiler compiler = getCompiler();
+		Template tmpl;
+		if (cacheTemplates) {
+			TemplateCache cache = TemplateCache.getInstance(getProject());
+			tmpl = cache.compile(compiler, getCompilerKey(), text, getCompiledTemplates());
+		} else {
+			tmpl = compile(compiler, text);
+		}
+		statistics.addCompile(name, System.nanoTime() - start);
+		MustacheData data = getData();
+		// rendered into a pooled buffer presized from the previous outputs
+		RenderBuffer buffer = RenderBuffer.getPool(getProject()).acquire(tmpl);
+		try {
+			start = System.nanoTime();
+			tmpl.execute(data, buffer);
+			String result = buffer.toString();
+			statistics.addRender(name, System.nanoTime() - start, result.length());
+			return result;
+		} finally {
+			buffer.release();
+		}
+	}
+
+	/**
+	 * Streaming implementation of the filter, used when the filter is
+	 * declared directly in a filterchain instead of inside a tokenfilter. The
+	 * template is compiled from the input reader and rendered by a thread of
+	 * the project, so that the next filter of the chain can read the output
+	 * while it is produced. Templates compiled this way are not cached.
+	 */
+	@Override
+	public Reader chain(final Reader reader) {
+		final Compiler compiler = getCompiler();
+		final MustacheData data = getData();
+		final RenderStatistics statistics = getStatistics();
+		return new RenderingReader(new RenderingReader.Renderer() {
+			@Override
+			public void render(Writer out) {
+				long start = System.nanoTime();
+				Template tmpl = compiler.compile(reader);
+				statistics.addCompile(STREAMED_TEMPLATES, System.nanoTime() - start);
+				RenderStatistics.CountingWriter counter = new RenderStatistics.CountingWriter(out);
+				start = System.nanoTime();
+				tmpl.execute(data, counter);
+				statistics.addRender(STREAMED_TEMPLATES, System.nanoTime() - start, counter.getCount());
+			}
+		}, reader, bufferSize, getProject());
+	}
+
+	private Compiler _compiler = null;
+
+	/**
+	 * the partial loader of {@link #_compiler}
+	 */
+	private PartialPath.Loader _compilerLoader = null;
+
+	/**
+	 * @return the template compiler configured with the JMustache settings,
+	 *         built again only when the partial loader changes
+	 */
+	synchronized Compiler getCompiler() {
+		PartialPath.Loader loader = getPartialLoader();
+		if (_compiler == null || loader != _compilerLoader) {
+			_compiler = getCompiler(loader);
+			_compilerLoader = loader;
+		}
+		return _compiler;
+	}
+
+	/**
+	 * @param loader
+	 *            the partial loader, or null if none
+	 * @return the template compiler configured with the JMustache settings
+	 *         and the given partial loader
+	 */
+	Compiler getCompiler(PartialPath.Loader loader) {
+		Compiler compiler = Mustache.compiler().withCollector(DataModelCollector.INSTANCE).defaultValue(defaultValue);
 		compiler = compiler.strictSections(strictSections).emptyStringIsFalse(emptyStringIsFalse)
 				.escapeHTML(escapeHTML);
-		if (partialPath != null) {
-			compiler = compiler.withLoader(partialPath.getLoader());
+		if (loader != null) {
+			compiler = compiler.withLoader(getProject() == null ? loader : getStatistics().instrument(loader));
+		}
+		return compiler;
+	}
+
+	/**
+	 * @return the template of the text generated ahead of time if there is
+	 *         one, or the template compiled by JMustache
+	 */
+	Template compile(Compiler compiler, String text) {
+		CompiledTemplates compiled = getCompiledTemplates();
+		return compiled == null ? compiler.compile(text) : compiled.compile(compiler, text);
+	}
+
+	private CompiledTemplates _compiled = null;
+
+	/**
+	 * @return the templates compiled ahead of time, or null if no
+	 *         compiledPackage is set
+	 */
+	synchronized CompiledTemplates getCompiledTemplates() {
+		if (compiledPackage == null) {
+			return null;
+		}
+		if (_compiled == null) {
+			_compiled = CompiledTemplates.getInstance(getProject(), compiledPackage, compiledClasspath);
+		}
+		return _compiled;
+	}
+
+	/**
+	 * @return a loader for the partialPath, or null if no partialPath is set
+	 */
+	PartialPath.Loader getPartialLoader() {
+		return partialPath == null ? null : partialPath.getLoader();
+	}
+
+	/**
+	 * @return a string describing all the settings the template compiler
+	 *         depends on, used as part of the template cache key
+	 */
+	String getCompilerKey() {
+		StringBuilder key = new StringBuilder();
+		key.append("defaultValue=");
+		if (defaultValue != null) {
+			key.append(defaultValue.length()).append(':').append(defaultValue);
+		}
+		key.append(";strictSections=").append(strictSections);
+		key.append(";emptyStringIsFalse=").append(emptyStringIsFalse);
+		key.append(";escapeHTML=").append(escapeHTML);
+		key.append(";partialPath=").append(partialPath);
+		if (partialPath != null && partialPath.getEncoding() != null) {
+			key.append(";partialEncoding=").append(partialPath.getEncoding());
 		}
-		Template tmpl = compiler.compile(text);
-		return tmpl.execute(getData());
+		if (compiledPackage != null) {
+			key.append(";compiledPackage=").append(compiledPackage);
+			key.append(";compiledClasspath=").append(compiledClasspath);
+		}
+		return key.toString();
 	}
 
-	private MustacheData _data = null;
+	/**
+	 * the data model of this filter, set once fully built and frozen
+	 */
+	private volatile MustacheData _data = null;
+
+	private volatile RenderStatistics _statistics = null;
+
+	/**
+	 * @return the statistics of the project, or
+	 *         {@link RenderStatistics#DISABLED} if they are not collected
+	 */
+	RenderStatistics getStatistics() {
+		RenderStatistics projectStatistics = _statistics;
+		if (projectStatistics == null) {
+			projectStatistics = statistics || statisticsFile != null ? RenderStatistics.getInstance(getProject())
+					: RenderStatistics.DISABLED;
+			_statistics = projectStatistics;
+		}
+		if (statisticsFile != null) {
+			projectStatistics.setReportFile(statisticsFile);
+		}
+		return projectStatistics;
+	}
 
 	/**
-	 * gets the data model, building it from project properties and/or data file
-	 * if not already done
+	 * gets the data model. The model is shared by all the filters of the
+	 * project using the same data model settings, and is only built from
+	 * project properties and/or data files, or loaded from the snapshot file,
+	 * when no model was built yet or when these inputs changed.
+	 *
+	 * <p>
+	 * When overlay inputs are set, they are added to an overlay of this shared
+	 * model, itself shared by the filters having the same overlay settings.
+	 *
+	 * <p>
+	 * This filter and the filters sharing its model can be used by several
+	 * threads: the model is built once, by the first thread needing it, and
+	 * only published once frozen, so that it is then read without locking.
 	 *
 	 * @return the data model Map
 	 */
-	private MustacheData getData() {
-		if (_data == null) {
-			_data = new MustacheData(getProject(), booleanRegex, supportLists, listIdName, listRegex, supportJson,
-					jsonValueRegex);
-			addProjectProperties();
-			addSrcFile();
+	MustacheData getData() {
+		MustacheData data = _data;
+		if (data == null) {
+			synchronized (this) {
+				data = _data;
+				if (data == null) {
+					data = buildData();
+					_data = data;
+				}
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * gets the shared data model from the cache of the project, building it
+	 * if needed while holding the lock of its settings
+	 */
+	private MustacheData buildData() {
+		DataModelCache cache = DataModelCache.getInstance(getProject());
+		String key = getDataKey();
+		String fingerprint = getDataFingerprint();
+		MustacheData data;
+		synchronized (cache.getLock(key)) {
+			data = cache.get(key, fingerprint);
+			if (data == null) {
+				long start = System.nanoTime();
+				if (cacheDir != null && snapshotFile == null && !lazyData) {
+					data = getPersistentData(key);
+				} else {
+					data = newData();
+					if (snapshotFile != null) {
+						loadSnapshot(data);
+					} else {
+						addInputs(data);
+						data.freeze();
+					}
+				}
+				getStatistics().addTime(RenderStatistics.Phase.DATA_MODEL, System.nanoTime() - start);
+				if (!(data instanceof LazyMustacheData)) {
+					getProject().log("Mustache Data: " + data.toString(), Project.MSG_DEBUG);
+				}
+				cache.put(key, fingerprint, data);
+			}
 		}
-		return _data;
+		if (hasOverlay()) {
+			data = getOverlay(data, key, fingerprint);
+		}
+		return data;
 	}
 
 	/**
-	 * Add project properties in the data model
+	 * @return a new empty data model with the data model settings
 	 */
-	private void addProjectProperties() {
+	private MustacheData newData() {
+		MustacheData data;
+		if (lazyData && snapshotFile == null) {
+			data = new LazyMustacheData(getProject(), booleanRegex, supportLists, listIdName, listRegex,
+					numericListIds, supportJson, jsonValueRegex);
+		} else {
+			data = new MustacheData(getProject(), booleanRegex, supportLists, listIdName, listRegex, numericListIds,
+					supportJson, jsonValueRegex);
+		}
+		data.setStatistics(getStatistics());
+		data.setJsonTrees(jsonTrees);
+		return data;
+	}
+
+	/**
+	 * adds the project properties and the data files to a data model
+	 */
+	private void addInputs(MustacheData data) {
 		if (projectProperties) {
-			getData().addProperties(getProject().getProperties(), prefix, removePrefix);
+			data.addProperties(getProject().getProperties(), prefix, removePrefix);
 		}
+		addPropertiesFile(data, dataFile);
+		addJsonDataFiles(data, jsonDataFile);
 	}
 
 	/**
-	 * Add property file content to the data model.
+	 * gets the data model from the cache directory, building it and storing
+	 * it there if its inputs changed since it was stored
+	 *
+	 * @param key
+	 *            the data model settings
 	 */
-	private void addSrcFile() {
+	private MustacheData getPersistentData(String key) {
+		try {
+			PersistentDataModelCache.ContentHash hash = new PersistentDataModelCache.ContentHash();
+			if (projectProperties) {
+				hash.addProperties(getProject().getProperties(), prefix);
+			}
+			hash.addFile(dataFile);
+			for (File file : getJsonDataFiles(jsonDataFile)) {
+				hash.addFile(file);
+			}
+			PersistentDataModelCache cache = new PersistentDataModelCache(cacheDir);
+			return cache.get(key, hash.getHash(), new PersistentDataModelCache.Builder() {
+				@Override
+				public MustacheData create() {
+					return newData();
+				}
+
+				@Override
+				public void build(MustacheData data) {
+					addInputs(data);
+				}
+			}, getProject(), getStatistics());
+		} catch (IOException e) {
+			throw new BuildException("Unable to use the data model cache " + cacheDir + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @return whether overlay inputs are set
+	 */
+	private boolean hasOverlay() {
+		return overlayPrefix != null || overlayDataFile != null || overlayJsonDataFile != null;
+	}
+
+	/**
+	 * gets the overlay of the data model, built from the overlay inputs when
+	 * no overlay was built yet for the base model or when these inputs changed
+	 *
+	 * @param base
+	 *            the shared base data model
+	 * @param baseKey
+	 *            the cache key of the base data model
+	 * @param baseFingerprint
+	 *            the fingerprint of the base data model inputs
+	 * @return the overlay
+	 */
+	private MustacheData getOverlay(MustacheData base, String baseKey, String baseFingerprint) {
+		DataModelCache cache = DataModelCache.getInstance(getProject());
+		StringBuilder key = new StringBuilder(baseKey);
+		key.append(";overlayPrefix=");
+		if (overlayPrefix != null) {
+			key.append(overlayPrefix.length()).append(':').append(overlayPrefix);
+		}
+		key.append(";overlayDataFile=").append(overlayDataFile == null ? null : overlayDataFile.getAbsolutePath());
+		key.append(";overlayJsonDataFile=");
+		StringBuilder fingerprint = new StringBuilder(baseFingerprint);
+		if (overlayPrefix != null) {
+			fingerprint.append(";overlayProperties=").append(
+					getPropertiesFingerprint(getProject().getProperties(), overlayPrefix));
+		}
+		if (overlayDataFile != null) {
+			fingerprint.append(";overlayDataFile=").append(overlayDataFile.lastModified()).append(':')
+					.append(overlayDataFile.length());
+		}
+		for (File file : getJsonDataFiles(overlayJsonDataFile)) {
+			key.append(file.getAbsolutePath().length()).append(':').append(file.getAbsolutePath());
+			fingerprint.append(";overlayJsonDataFile=").append(file.lastModified()).append(':')
+					.append(file.length());
+		}
+		synchronized (cache.getLock(key.toString())) {
+			MustacheData overlay = cache.get(key.toString(), fingerprint.toString());
+			if (overlay == null) {
+				long start = System.nanoTime();
+				overlay = new LayeredMustacheData(base);
+				if (overlayPrefix != null) {
+					overlay.addProperties(getProject().getProperties(), overlayPrefix, true);
+				}
+				addPropertiesFile(overlay, overlayDataFile);
+				addJsonDataFiles(overlay, overlayJsonDataFile);
+				overlay.freeze();
+				getStatistics().addTime(RenderStatistics.Phase.DATA_MODEL, System.nanoTime() - start);
+				cache.put(key.toString(), fingerprint.toString(), overlay);
+			}
+			return overlay;
+		}
+	}
+
+	/**
+	 * @return a string describing all the settings the data model depends on,
+	 *         used as data model cache key
+	 */
+	private String getDataKey() {
+		StringBuilder key = new StringBuilder();
+		key.append("projectProperties=").append(projectProperties);
+		key.append(";prefix=");
+		if (prefix != null) {
+			key.append(prefix.length()).append(':').append(prefix);
+		}
+		key.append(";removePrefix=").append(removePrefix);
+		key.append(";booleanRegex=").append(booleanRegex.length()).append(':').append(booleanRegex);
+		key.append(";supportLists=").append(supportLists);
+		key.append(";listRegex=").append(listRegex.length()).append(':').append(listRegex);
+		key.append(";listIdName=").append(listIdName.length()).append(':').append(listIdName);
+		key.append(";numericListIds=").append(numericListIds);
+		key.append(";lazyData=").append(lazyData);
+		key.append(";supportJson=").append(supportJson);
+		key.append(";jsonValueRegex=").append(jsonValueRegex.length()).append(':').append(jsonValueRegex);
+		key.append(";jsonTrees=").append(jsonTrees);
+		key.append(";dataFile=").append(dataFile == null ? null : dataFile.getAbsolutePath());
+		key.append(";jsonDataFile=");
+		for (File file : getJsonDataFiles(jsonDataFile)) {
+			key.append(file.getAbsolutePath().length()).append(':').append(file.getAbsolutePath());
+		}
+		key.append(";snapshotFile=").append(snapshotFile == null ? null : snapshotFile.getAbsolutePath());
+		return key.toString();
+	}
+
+	/**
+	 * @return a string describing the current state of the data model inputs:
+	 *         a hash of the project properties (see
+	 *         {@link #getPropertiesFingerprint(Map, String)}) and the data
+	 *         files time stamps and sizes, or the snapshot file time stamp and
+	 *         size
+	 */
+	private String getDataFingerprint() {
+		StringBuilder fingerprint = new StringBuilder();
+		if (snapshotFile != null) {
+			fingerprint.append("snapshotFile=").append(snapshotFile.lastModified()).append(':')
+					.append(snapshotFile.length());
+			return fingerprint.toString();
+		}
+		if (projectProperties) {
+			fingerprint.append("properties=").append(getPropertiesFingerprint(getProject().getProperties(), prefix));
+		}
 		if (dataFile != null) {
+			fingerprint.append(";dataFile=").append(dataFile.lastModified()).append(':').append(dataFile.length());
+		}
+		for (File file : getJsonDataFiles(jsonDataFile)) {
+			fingerprint.append(";jsonDataFile=").append(file.lastModified()).append(':').append(file.length());
+		}
+		return fingerprint.toString();
+	}
+
+	/**
+	 * Ant properties are not always immutable: Project.setProperty, or tasks
+	 * such as antcontrib's var, replace the values of existing properties
+	 * without changing their number, so the fingerprint covers the names and
+	 * the values.
+	 *
+	 * @param properties
+	 *            the project properties
+	 * @param prefix
+	 *            the prefix of the properties added to the data model, or
+	 *            null for all of them
+	 * @return the number of the properties starting with the prefix and a
+	 *         hash of their names and values, independent of their order
+	 */
+	static String getPropertiesFingerprint(Map<?, ?> properties, String prefix) {
+		int count = 0;
+		long hash = 0;
+		for (Map.Entry<?, ?> property : properties.entrySet()) {
+			String key = String.valueOf(property.getKey());
+			if (prefix == null || key.startsWith(prefix)) {
+				long h = key.hashCode() * 0x9E3779B97F4A7C15L + String.valueOf(property.getValue()).hashCode();
+				// mixes the bits of each pair, so that their sum is not
+				// cancelled by swapped values
+				h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+				h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+				hash += h ^ (h >>> 33);
+				count++;
+			}
+		}
+		return count + ":" + Long.toHexString(hash);
+	}
+
+	/**
+	 * Add property file content to a data model.
+	 *
+	 * @param data
+	 *            the data model
+	 * @param file
+	 *            the property file, or null
+	 */
+	private static void addPropertiesFile(MustacheData data, File file) {
+		if (file != null) {
 			Properties props = new Properties();
 			try {
-				props.load(new FileInputStream(dataFile));
+				FileInputStream in = new FileInputStream(file);
+				try {
+					props.load(in);
+				} finally {
+					in.close();
+				}
 			} catch (IOException e) {
 				throw new BuildException(e);
 			}
-			getData().addProperties(props, null, false);
+			data.addProperties(props, null, false);
+		}
+	}
+
+	/**
+	 * @param names
+	 *            a comma separated list of file names, or null
+	 * @return the files, resolved against the project base directory
+	 */
+	private List<File> getJsonDataFiles(String names) {
+		List<File> files = new ArrayList<File>();
+		if (names != null) {
+			StringTokenizer tokens = new StringTokenizer(names, ",");
+			while (tokens.hasMoreTokens()) {
+				String name = tokens.nextToken().trim();
+				if (name.length() > 0) {
+					files.add(getProject().resolveFile(name));
+				}
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Add the JSON data files content to a data model, in order
+	 *
+	 * @param data
+	 *            the data model
+	 * @param names
+	 *            a comma separated list of file names, or null
+	 */
+	private void addJsonDataFiles(MustacheData data, String names) {
+		for (File file : getJsonDataFiles(names)) {
+			try {
+				data.addJsonFile(file);
+			} catch (IOException e) {
+				throw new BuildException("Unable to load JSON data file " + file + ": " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Load the data model from the snapshot file
+	 */
+	private void loadSnapshot(MustacheData data) {
+		try {
+			DataSnapshot.read(snapshotFile, data);
+		} catch (IOException e) {
+			throw new BuildException("Unable to load data model snapshot " + snapshotFile + ": " + e.getMessage(),
+					e);
 		}
 	}
 }
@@ -0,0 +1,398 @@
+package com.github.patjlm.ant.mustache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A list of data models built from list property names (see
+ * {@link MustacheData}). The elements are indexed by their id, so that
+ * finding the element a property belongs to does not require to scan the
+ * list. Elements are appended as they are created, and are only sorted once
+ * the whole list has been loaded.
+ *
+ * <p>
+ * With numeric list ids, the ids made of digits (without leading zeros, up to
+ * 9 digits) are kept as ints: they are indexed by a primitive table, sorted as
+ * numbers without any comparator, and stored in the frozen elements as an int
+ * instead of a string (see {@link MustacheData#compact(String, int, MustacheData.ValuePool)}). Other
+ * ids are kept as strings, and stored in their element under the list id
+ * name as soon as the element is created.
+ */
+class MustacheList extends ArrayList<MustacheData> {
+	private static final long serialVersionUID = 2510569458453224574L;
+
+	/**
+	 * the value of {@link #ids} for the elements having a string id
+	 */
+	private static final int STRING_ID = -1;
+
+	/**
+	 * the elements of the list by string id. Released once the list is
+	 * finished.
+	 */
+	private Map<String, MustacheData> index = new HashMap<String, MustacheData>();
+
+	/**
+	 * the elements of the list by int id, created with the first int id.
+	 * Released once the list is finished.
+	 */
+	private IntIndex intIndex = null;
+
+	/**
+	 * the int id of each element, in order of creation, or
+	 * {@link #STRING_ID}. Null as long as all the ids are strings.
+	 */
+	private int[] ids = null;
+
+	/**
+	 * the number of elements having an int id
+	 */
+	private int intIds = 0;
+
+	/**
+	 * @param id
+	 *            a list id
+	 * @return the id as an int if it is made of at most 9 digits without
+	 *         leading zeros, so that it can be formatted back into the same
+	 *         string, or -1 otherwise
+	 */
+	static int parseId(String id) {
+		int length = id.length();
+		if (length == 0 || length > 9 || (length > 1 && id.charAt(0) == '0')) {
+			return STRING_ID;
+		}
+		int value = 0;
+		for (int i = 0; i < length; i++) {
+			char c = id.charAt(i);
+			if (c < '0' || c > '9') {
+				return STRING_ID;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * @param id
+	 *            the id of the element to look for
+	 * @return the element having this id, or null if none
+	 */
+	public MustacheData getById(String id) {
+		return index.get(id);
+	}
+
+	/**
+	 * @param id
+	 *            the int id of the element to look for
+	 * @return the element having this id, or null if none
+	 */
+	public MustacheData getById(int id) {
+		return intIndex == null ? null : intIndex.get(id);
+	}
+
+	/**
+	 * appends an element to the list
+	 *
+	 * @param id
+	 *            the id of the element
+	 * @param element
+	 *            the element to add
+	 */
+	public void add(String id, MustacheData element) {
+		index.put(id, element);
+		addId(STRING_ID);
+		add(element);
+	}
+
+	/**
+	 * appends an element having an int id to the list. The id is not stored
+	 * in the element until the list is frozen.
+	 *
+	 * @param id
+	 *            the id of the element, as returned by
+	 *            {@link #parseId(String)}
+	 * @param element
+	 *            the element to add
+	 */
+	public void add(int id, MustacheData element) {
+		if (intIndex == null) {
+			intIndex = new IntIndex();
+		}
+		intIndex.put(id, element);
+		addId(id);
+		intIds++;
+		add(element);
+	}
+
+	private void addId(int id) {
+		if (ids == null) {
+			if (id == STRING_ID) {
+				return;
+			}
+			ids = new int[Math.max(16, size() + 1)];
+			Arrays.fill(ids, 0, size(), STRING_ID);
+		} else if (ids.length == size()) {
+			ids = Arrays.copyOf(ids, ids.length * 2);
+		}
+		ids[size()] = id;
+	}
+
+	/**
+	 * sorts the elements of the list and freezes them, releasing the id
+	 * indexes: no element can be added once the list is frozen
+	 *
+	 * @param comparator
+	 *            the comparator to sort the elements with, used unless all the
+	 *            ids are ints
+	 * @param listIdName
+	 *            the key of the element ids
+	 * @return an unmodifiable list of the frozen elements, backed by an array
+	 *         of the exact size
+	 */
+	public List<Object> freeze(Comparator<? super MustacheData> comparator, String listIdName,
+			MustacheData.ValuePool pool) {
+		int size = size();
+		Object[] elements = new Object[size];
+		if (intIds > 0 && intIds == size) {
+			// sort the ids with their position, as primitives
+			long[] order = new long[size];
+			for (int i = 0; i < size; i++) {
+				order[i] = ((long) ids[i] << 32) | i;
+			}
+			Arrays.sort(order);
+			for (int i = 0; i < size; i++) {
+				int position = (int) order[i];
+				elements[i] = get(position).compact(listIdName, ids[position], pool);
+			}
+		} else {
+			if (intIds > 0) {
+				// ids of both kinds: all the ids are compared as strings
+				for (int i = 0; i < size; i++) {
+					if (ids[i] != STRING_ID) {
+						get(i).put(listIdName, Integer.toString(ids[i]));
+					}
+				}
+			}
+			Collections.sort(this, comparator);
+			for (int i = 0; i < size; i++) {
+				elements[i] = get(i).compact(pool);
+			}
+		}
+		index = null;
+		intIndex = null;
+		ids = null;
+		return Collections.unmodifiableList(Arrays.asList(elements));
+	}
+
+	/**
+	 * Maps int ids to elements: an array indexed by id while the ids are dense
+	 * enough, or an open-addressed table of primitive keys when they are
+	 * sparse. Properties come in no particular order, so the index turns
+	 * dense again once enough ids are known.
+	 */
+	private static final class IntIndex {
+		private static final int MIN_DENSE_LENGTH = 16;
+
+		private static final int FREE = -1;
+
+		/**
+		 * the elements by id, or null while the ids are sparse
+		 */
+		private MustacheData[] dense = new MustacheData[MIN_DENSE_LENGTH];
+
+		/**
+		 * the keys of the sparse table, {@link #FREE} for free slots
+		 */
+		private int[] keys = null;
+
+		private MustacheData[] values = null;
+
+		private int size = 0;
+
+		private int maxId = -1;
+
+		MustacheData get(int id) {
+			if (dense != null) {
+				return id < dense.length ? dense[id] : null;
+			}
+			int slot = slot(keys, id);
+			return keys[slot] == FREE ? null : values[slot];
+		}
+
+		/**
+		 * adds an element, whose id is not in the index yet
+		 */
+		void put(int id, MustacheData element) {
+			size++;
+			maxId = Math.max(maxId, id);
+			if (dense != null) {
+				if (id >= dense.length) {
+					if (maxId >= size * 4L && maxId >= MIN_DENSE_LENGTH) {
+						toSparse();
+						putSparse(id, element);
+						return;
+					}
+					int length = dense.length;
+					while (length <= id) {
+						length <<= 1;
+					}
+					dense = Arrays.copyOf(dense, length);
+				}
+				dense[id] = element;
+				return;
+			}
+			putSparse(id, element);
+			if (maxId < size * 2L) {
+				toDense();
+			}
+		}
+
+		private void putSparse(int id, MustacheData element) {
+			if (size * 4L > keys.length * 3L) {
+				rehash(keys.length * 2);
+			}
+			int slot = slot(keys, id);
+			keys[slot] = id;
+			values[slot] = element;
+		}
+
+		private void toSparse() {
+			MustacheData[] elements = dense;
+			dense = null;
+			rehash(MIN_DENSE_LENGTH);
+			for (int id = 0; id < elements.length; id++) {
+				if (elements[id] != null) {
+					putSparse(id, elements[id]);
+				}
+			}
+		}
+
+		private void toDense() {
+			int length = MIN_DENSE_LENGTH;
+			while (length <= maxId) {
+				length <<= 1;
+			}
+			dense = new MustacheData[length];
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] != FREE) {
+					dense[keys[i]] = values[i];
+				}
+			}
+			keys = null;
+			values = null;
+		}
+
+		private void rehash(int capacity) {
+			while (size * 4L > capacity * 3L) {
+				capacity <<= 1;
+			}
+			int[] oldKeys = keys;
+			MustacheData[] oldValues = values;
+			keys = new int[capacity];
+			Arrays.fill(keys, FREE);
+			values = new MustacheData[capacity];
+			if (oldKeys != null) {
+				for (int i = 0; i < oldKeys.length; i++) {
+					if (oldKeys[i] != FREE) {
+						int slot = slot(keys, oldKeys[i]);
+						keys[slot] = oldKeys[i];
+						values[slot] = oldValues[i];
+					}
+				}
+			}
+		}
+
+		/**
+		 * @return the slot of the id in the table, or the free slot where it
+		 *         would be stored
+		 */
+		private static int slot(int[] keys, int id) {
+			int mask = keys.length - 1;
+			int h = id * 0x9E3779B9;
+			int i = (h ^ (h >>> 16)) & mask;
+			while (keys[i] != FREE && keys[i] != id) {
+				i = (i + 1) & mask;
+			}
+			return i;
+		}
+	}
+
+	/**
+	 * Compares list elements using their id.
+	 */
+	static class IdComparator implements Comparator<MustacheData> {
+		private final String listIdName;
+
+		private final boolean numeric;
+
+		/**
+		 * @param listIdName
+		 *            the key of the element ids
+		 * @param numeric
+		 *            if true, ids made of digits are compared as numbers (so
+		 *            that "2" comes before "10") and are sorted before other
+		 *            ids. Otherwise ids are compared as strings.
+		 */
+		public IdComparator(String listIdName, boolean numeric) {
+			this.listIdName = listIdName;
+			this.numeric = numeric;
+		}
+
+		@Override
+		public int compare(MustacheData m1, MustacheData m2) {
+			String id1 = (String) m1.get(listIdName);
+			String id2 = (String) m2.get(listIdName);
+			if (numeric) {
+				boolean isNumber1 = isNumber(id1);
+				boolean isNumber2 = isNumber(id2);
+				if (isNumber1 && isNumber2) {
+					int result = compareNumbers(id1, id2);
+					if (result != 0) {
+						return result;
+					}
+				} else if (isNumber1 != isNumber2) {
+					return isNumber1 ? -1 : 1;
+				}
+			}
+			return id1.compareTo(id2);
+		}
+
+		private static boolean isNumber(String id) {
+			if (id.length() == 0) {
+				return false;
+			}
+			for (int i = 0; i < id.length(); i++) {
+				char c = id.charAt(i);
+				if (c < '0' || c > '9') {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * compares two strings of digits as numbers, whatever their length
+		 */
+		private static int compareNumbers(String n1, String n2) {
+			n1 = stripLeadingZeros(n1);
+			n2 = stripLeadingZeros(n2);
+			if (n1.length() != n2.length()) {
+				return n1.length() < n2.length() ? -1 : 1;
+			}
+			return n1.compareTo(n2);
+		}
+
+		private static String stripLeadingZeros(String n) {
+			int i = 0;
+			while (i < n.length() - 1 && n.charAt(i) == '0') {
+				i++;
+			}
+			return n.substring(i);
+		}
+	}
+}
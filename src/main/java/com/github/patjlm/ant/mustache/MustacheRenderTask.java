@@ -0,0 +1,358 @@
+package com.github.patjlm.ant.mustache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.Mapper;
+import org.apache.tools.ant.util.FileNameMapper;
+import org.apache.tools.ant.util.FileUtils;
+import org.apache.tools.ant.util.IdentityMapper;
+
+import com.samskivert.mustache.Mustache.Compiler;
+import com.samskivert.mustache.Template;
+
+/**
+ * Renders a set of template files into a directory, using several threads.
+ *
+ * <p>
+ * The data model, the template compiler and the partial loader are built once
+ * for all the files, with the same settings as the mustache filter. Files are
+ * then rendered concurrently and written directly to their destination.
+ * Failures are reported once all the files have been processed, in the order
+ * of the filesets, so that a build fails the same way whatever the number of
+ * threads.
+ *
+ * <p>
+ * See README.md for the usage within an Ant build script.
+ */
+public class MustacheRenderTask extends AbstractTemplateTask {
+
+	private final List<FileSet> filesets = new ArrayList<FileSet>();
+
+	private Mapper mapper = null;
+
+	/**
+	 * the directory to write the rendered files into
+	 */
+	private File todir = null;
+
+	/**
+	 * the number of threads rendering files. Defaults to the number of
+	 * available processors.
+	 */
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * whether files whose dependencies did not change since they were last
+	 * rendered should be skipped. See {@link RenderManifest}.
+	 */
+	private boolean incremental = false;
+
+	/**
+	 * the directory to store the manifests of the rendered files into, in
+	 * incremental mode. Defaults to the ".mustache" sub-directory of todir.
+	 */
+	private File manifestDir = null;
+
+	// set up by execute() before starting the rendering threads
+
+	private MustacheData data;
+
+	private PartialPath.Loader loader;
+
+	private Compiler compiler;
+
+	private String compilerKey;
+
+	private TemplateCache cache;
+
+	private CompiledTemplates compiled;
+
+	private String settingsHash;
+
+	private RenderStatistics statistics;
+
+	public void addFileset(FileSet fileset) {
+		filesets.add(fileset);
+	}
+
+	public Mapper createMapper() {
+		if (mapper != null) {
+			throw new BuildException("Cannot define more than one mapper", getLocation());
+		}
+		mapper = new Mapper(getProject());
+		return mapper;
+	}
+
+	public void add(FileNameMapper fileNameMapper) {
+		createMapper().add(fileNameMapper);
+	}
+
+	public void setTodir(File todir) {
+		this.todir = todir;
+	}
+
+	public void setThreads(int threads) {
+		if (threads <= 0) {
+			throw new BuildException("threads must be positive");
+		}
+		this.threads = threads;
+	}
+
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	public void setManifestDir(File manifestDir) {
+		this.manifestDir = manifestDir;
+	}
+
+	@Override
+	public void execute() throws BuildException {
+		if (todir == null) {
+			throw new BuildException("todir is required", getLocation());
+		}
+		if (filesets.isEmpty()) {
+			throw new BuildException("at least one fileset is required", getLocation());
+		}
+		List<Job> jobs = getJobs();
+		if (jobs.isEmpty()) {
+			return;
+		}
+
+		// everything depending on the project is done in the calling thread
+		settings.setProject(getProject());
+		statistics = settings.getStatistics();
+		data = settings.getData();
+		loader = settings.getPartialLoader();
+		compiler = settings.getCompiler(loader);
+		compilerKey = settings.getCompilerKey();
+		cache = settings.isCacheTemplates() ? TemplateCache.getInstance(getProject()) : null;
+		compiled = settings.getCompiledTemplates();
+		settingsHash = TemplateCache.hash(compilerKey + ";encoding=" + getEncoding());
+
+		log("Rendering " + jobs.size() + " file(s) to " + todir + " using " + Math.min(threads, jobs.size())
+				+ " thread(s)");
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, jobs.size()),
+				new RendererThreadFactory());
+		try {
+			List<Future<Throwable>> results = new ArrayList<Future<Throwable>>(jobs.size());
+			for (final Job job : jobs) {
+				results.add(executor.submit(new Callable<Throwable>() {
+					@Override
+					public Throwable call() {
+						try {
+							render(job);
+							return null;
+						} catch (Throwable t) {
+							return t;
+						}
+					}
+				}));
+			}
+			List<Throwable> failures = waitFor(results);
+			if (loader != null) {
+				log(loader.getStatistics(), Project.MSG_VERBOSE);
+			}
+			reportFailures(jobs, failures);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return the files to render, in the order of the filesets
+	 */
+	private List<Job> getJobs() {
+		FileNameMapper fileNameMapper = mapper == null ? new IdentityMapper() : mapper.getImplementation();
+		List<Job> jobs = new ArrayList<Job>();
+		Map<File, File> sources = new HashMap<File, File>();
+		for (FileSet fileset : filesets) {
+			DirectoryScanner scanner = fileset.getDirectoryScanner(getProject());
+			File basedir = scanner.getBasedir();
+			for (String name : scanner.getIncludedFiles()) {
+				String[] targets = fileNameMapper.mapFileName(name);
+				if (targets == null) {
+					log("Skipping " + name + ": no mapping", Project.MSG_VERBOSE);
+					continue;
+				}
+				File source = new File(basedir, name);
+				for (String target : targets) {
+					File output = FileUtils.getFileUtils().resolveFile(todir, target);
+					File previous = sources.put(output, source);
+					if (previous == null) {
+						jobs.add(new Job(source, output));
+					} else if (!previous.equals(source)) {
+						throw new BuildException(previous + " and " + source + " are both rendered to " + output,
+								getLocation());
+					}
+				}
+			}
+		}
+		return jobs;
+	}
+
+	/**
+	 * renders one file, unless up to date in incremental mode. Called from the
+	 * rendering threads.
+	 */
+	private void render(Job job) throws IOException {
+		String text = read(job.source);
+		String templateHash = TemplateCache.hash(text);
+		File manifestFile = null;
+		Map<String, Object> context = data;
+		RenderManifest.RecordingMap recording = null;
+		Map<String, String> partials = null;
+		String templateKey = compilerKey;
+		if (incremental) {
+			manifestFile = getManifestFile(job.output);
+			RenderManifest manifest = RenderManifest.load(manifestFile);
+			if (manifest != null && job.output.isFile()
+					&& manifest.isUpToDate(templateHash, settingsHash, loader, data)) {
+				job.upToDate = true;
+				return;
+			}
+			// a manifest is only kept for successfully rendered files
+			manifestFile.delete();
+			partials = RenderManifest.findPartials(text, loader);
+			if (partials != null) {
+				recording = new RenderManifest.RecordingMap(data);
+				context = recording;
+				// partials are loaded once per compiled template: a modified
+				// partial requires a new one
+				templateKey = compilerKey + ";partials=" + partials;
+			} else {
+				log("Dependencies of " + job.source + " can not be tracked, it will always be rendered",
+						Project.MSG_VERBOSE);
+			}
+		}
+
+		String name = job.source.getPath();
+		long start = System.nanoTime();
+		Template template;
+		if (cache != null) {
+			template = cache.compile(compiler, templateKey, text, compiled);
+		} else {
+			template = compiled == null ? compiler.compile(text) : compiled.compile(compiler, text);
+		}
+		statistics.addCompile(name, System.nanoTime() - start);
+		render(template, context, job.output, statistics, name);
+
+		if (recording != null) {
+			RenderManifest.record(templateHash, settingsHash, partials, data, recording.getKeys()).save(manifestFile);
+		}
+	}
+
+	/**
+	 * @return the manifest file of a rendered file
+	 */
+	private File getManifestFile(File output) {
+		File dir = manifestDir == null ? new File(todir, ".mustache") : manifestDir;
+		return new File(dir, TemplateCache.hash(output.getAbsolutePath()) + ".properties");
+	}
+
+	/**
+	 * waits for all the files to be rendered
+	 *
+	 * @return the failure of each file, null for the files successfully
+	 *         rendered
+	 */
+	private List<Throwable> waitFor(List<Future<Throwable>> results) {
+		List<Throwable> failures = new ArrayList<Throwable>(results.size());
+		for (Future<Throwable> result : results) {
+			try {
+				failures.add(result.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new BuildException("Interrupted while rendering templates", e, getLocation());
+			} catch (ExecutionException e) {
+				failures.add(e.getCause());
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * logs the outcome of each file in the order of the filesets, and fails on
+	 * the first failed file, if any
+	 */
+	private void reportFailures(List<Job> jobs, List<Throwable> failures) {
+		int failed = 0;
+		int upToDate = 0;
+		Throwable first = null;
+		Job firstJob = null;
+		for (int i = 0; i < jobs.size(); i++) {
+			Job job = jobs.get(i);
+			Throwable failure = failures.get(i);
+			if (failure == null && job.upToDate) {
+				log(job.output + " is up to date", Project.MSG_VERBOSE);
+				upToDate++;
+			} else if (failure == null) {
+				log("Rendered " + job.source + " to " + job.output, Project.MSG_VERBOSE);
+			} else {
+				log("Failed to render " + job.source + ": " + failure, Project.MSG_ERR);
+				if (first == null) {
+					first = failure;
+					firstJob = job;
+				}
+				failed++;
+			}
+		}
+		if (upToDate > 0) {
+			log(upToDate + " file(s) up to date");
+		}
+		if (first != null) {
+			throw new BuildException("Failed to render " + failed + " file(s). First failure on " + firstJob.source
+					+ ": " + first.getMessage(), first, getLocation());
+		}
+	}
+
+	/**
+	 * A template file and the file it is rendered to
+	 */
+	private static class Job {
+		private final File source;
+		private final File output;
+
+		/**
+		 * set by the rendering thread when the file did not need to be
+		 * rendered
+		 */
+		private boolean upToDate = false;
+
+		public Job(File source, File output) {
+			this.source = source;
+			this.output = output;
+		}
+	}
+
+	/**
+	 * Creates daemon rendering threads, so that a stuck rendering does not
+	 * prevent the JVM from exiting
+	 */
+	private static class RendererThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "mustache-render-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
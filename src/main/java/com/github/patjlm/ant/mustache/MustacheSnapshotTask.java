@@ -0,0 +1,41 @@
+package com.github.patjlm.ant.mustache;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.tools.ant.BuildException;
+
+/**
+ * Builds a data model with the same settings as the mustache filter and writes
+ * it into a snapshot file (see {@link DataSnapshot}), which mustache filters
+ * and tasks of other builds can load through their snapshotFile attribute.
+ *
+ * <p>
+ * See README.md for the usage within an Ant build script.
+ */
+public class MustacheSnapshotTask extends AbstractDataModelTask {
+
+	/**
+	 * the file to write the snapshot into
+	 */
+	private File tofile = null;
+
+	public void setTofile(File tofile) {
+		this.tofile = tofile;
+	}
+
+	@Override
+	public void execute() throws BuildException {
+		if (tofile == null) {
+			throw new BuildException("tofile is required", getLocation());
+		}
+		MustacheData data = getData();
+		try {
+			DataSnapshot.write(data, tofile);
+		} catch (IOException e) {
+			throw new BuildException("Unable to write data model snapshot " + tofile + ": " + e.getMessage(), e,
+					getLocation());
+		}
+		log("Wrote data model snapshot of " + data.size() + " entries to " + tofile);
+	}
+}
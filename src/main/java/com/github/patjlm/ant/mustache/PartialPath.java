@@ -1,10 +1,19 @@
 package com.github.patjlm.ant.mustache;
 
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.tools.ant.BuildEvent;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.types.Path;
@@ -15,6 +24,29 @@ import com.samskivert.mustache.Mustache;
 
 public class PartialPath extends Path {
 
+	/**
+	 * the encoding of the partial files. Defaults to the platform encoding.
+	 */
+	private String encoding = null;
+
+	/**
+	 * whether the file found for each partial name, or its absence, is cached
+	 * until the end of the build. Defaults to true.
+	 */
+	private boolean cacheLookups = true;
+
+	/**
+	 * whether the lookups of the loaders are cleared at the end of the build
+	 */
+	private boolean listening = false;
+
+	/**
+	 * the loader returned by the last call to {@link #getLoader()}, reused as
+	 * long as the path is unchanged so that its caches are shared by all the
+	 * templates
+	 */
+	private Loader loader = null;
+
 	public PartialPath(Project project) {
 		super(project);
 	}
@@ -23,31 +55,253 @@ public class PartialPath extends Path {
 		super(project, path);
 	}
 
-	public Mustache.TemplateLoader getLoader() {
-		return new Mustache.TemplateLoader() {
-			@Override
-			public Reader getTemplate(String name) {
-				return findPartial(name);
-			}
-		};
+	public void setEncoding(String encoding) {
+		checkAttributesAllowed();
+		this.encoding = encoding;
+	}
+
+	public String getEncoding() {
+		return encoding;
+	}
+
+	public void setCacheLookups(boolean cacheLookups) {
+		checkAttributesAllowed();
+		this.cacheLookups = cacheLookups;
+	}
+
+	/**
+	 * The directories of the path are resolved when the loader is created, so
+	 * that the loader does not use the path anymore and can be called from
+	 * several threads. Its cached lookups are cleared when the build
+	 * finishes.
+	 *
+	 * @return a loader looking for partials in the directories of this path
+	 */
+	public synchronized Loader getLoader() {
+		List<File> directories = getDirectories();
+		if (loader == null || !loader.directories.equals(directories) || !equals(loader.encoding, encoding)
+				|| loader.cacheLookups != cacheLookups) {
+			loader = new Loader(directories, toString(), encoding, cacheLookups);
+		}
+		if (cacheLookups && !listening && getProject() != null) {
+			listening = true;
+			getProject().addBuildListener(new BuildFinishedListener() {
+				@Override
+				public void buildFinished(BuildEvent event) {
+					synchronized (PartialPath.this) {
+						if (loader != null) {
+							loader.clearLookups();
+						}
+					}
+				}
+			});
+		}
+		return loader;
+	}
+
+	private static boolean equals(String s1, String s2) {
+		return s1 == null ? s2 == null : s1.equals(s2);
 	}
 
-	private Reader findPartial(String name) {
+	private List<File> getDirectories() {
+		List<File> directories = new ArrayList<File>();
 		Iterator it = iterator();
 		while (it.hasNext()) {
 			Resource resource = (Resource) it.next();
 			if (resource.isDirectory()) {
-				File partial = new File(((FileResource) resource).getFile(), name);
-				if (partial.exists()) {
-					try {
-						return new FileReader(partial);
-					} catch (Exception e) {
-						throw new BuildException(e);
+				directories.add(((FileResource) resource).getFile());
+			}
+		}
+		return directories;
+	}
+
+	/**
+	 * Loads partials from a list of directories. The first directory
+	 * containing a partial wins.
+	 *
+	 * <p>
+	 * The file found for each partial name is cached, as well as the names not
+	 * found in any directory, until the end of the build unless cacheLookups
+	 * is false. The content of each partial file is read once
+	 * and cached, and is read again only when the time stamp or the size of
+	 * the file changes.
+	 */
+	public static class Loader implements Mustache.TemplateLoader {
+		/**
+		 * cached in place of the file of the partials not found
+		 */
+		private static final File NOT_FOUND = new File("");
+
+		private final List<File> directories;
+
+		private final String path;
+
+		private final String encoding;
+
+		private final ConcurrentMap<String, File> files = new ConcurrentHashMap<String, File>();
+
+		private final ConcurrentMap<File, Content> contents = new ConcurrentHashMap<File, Content>();
+
+		private final AtomicLong lookups = new AtomicLong();
+
+		private final AtomicLong lookupHits = new AtomicLong();
+
+		private final AtomicLong reads = new AtomicLong();
+
+		private final AtomicLong readHits = new AtomicLong();
+
+		private final boolean cacheLookups;
+
+		private Loader(List<File> directories, String path, String encoding, boolean cacheLookups) {
+			this.directories = directories;
+			this.path = path;
+			this.encoding = encoding;
+			this.cacheLookups = cacheLookups;
+		}
+
+		@Override
+		public Reader getTemplate(String name) {
+			File partial = findPartial(name);
+			if (partial == null) {
+				throw new BuildException("Partial template " + name + " not found in path: " + path);
+			}
+			try {
+				return new StringReader(getContent(partial));
+			} catch (IOException e) {
+				throw new BuildException(e);
+			}
+		}
+
+		/**
+		 * @param name
+		 *            the name of a partial
+		 * @return the file of the partial, or null if not found
+		 */
+		public File findPartial(String name) {
+			lookups.incrementAndGet();
+			File partial = cacheLookups ? files.get(name) : null;
+			if (partial != null) {
+				lookupHits.incrementAndGet();
+			} else {
+				partial = NOT_FOUND;
+				for (File directory : directories) {
+					File file = new File(directory, name);
+					if (file.exists()) {
+						partial = file;
+						break;
 					}
 				}
+				if (cacheLookups) {
+					files.put(name, partial);
+				}
+			}
+			return partial == NOT_FOUND ? null : partial;
+		}
+
+		/**
+		 * forgets the files found for the partial names, and the names not
+		 * found
+		 */
+		void clearLookups() {
+			files.clear();
+		}
+
+		/**
+		 * @param file
+		 *            a partial file
+		 * @return the content of the file
+		 * @throws IOException
+		 *             if the file can not be read
+		 */
+		private String getContent(File file) throws IOException {
+			reads.incrementAndGet();
+			long lastModified = file.lastModified();
+			long length = file.length();
+			Content content = contents.get(file);
+			if (content != null && content.lastModified == lastModified && content.length == length) {
+				readHits.incrementAndGet();
+				return content.text;
+			}
+			String text = read(file);
+			contents.put(file, new Content(lastModified, length, text));
+			return text;
+		}
+
+		private String read(File file) throws IOException {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				Reader reader = encoding == null ? new InputStreamReader(in) : new InputStreamReader(in, encoding);
+				StringBuilder text = new StringBuilder((int) Math.min(file.length(), Integer.MAX_VALUE));
+				char[] buffer = new char[8192];
+				int n;
+				while ((n = reader.read(buffer)) != -1) {
+					text.append(buffer, 0, n);
+				}
+				return text.toString();
+			} finally {
+				in.close();
 			}
 		}
-		throw new BuildException("Partial template " + name + " not found in path: " + toString());
+
+		/**
+		 * @return the encoding of the partial files, or null for the platform
+		 *         encoding
+		 */
+		String getEncoding() {
+			return encoding;
+		}
+
+		/**
+		 * @return the number of partial name lookups
+		 */
+		public long getLookups() {
+			return lookups.get();
+		}
+
+		/**
+		 * @return the number of partial name lookups answered from the cache
+		 */
+		public long getLookupHits() {
+			return lookupHits.get();
+		}
+
+		/**
+		 * @return the number of partial contents requested
+		 */
+		public long getReads() {
+			return reads.get();
+		}
+
+		/**
+		 * @return the number of partial contents answered from the cache
+		 */
+		public long getReadHits() {
+			return readHits.get();
+		}
+
+		/**
+		 * @return a summary of the cache statistics, for debugging
+		 */
+		public String getStatistics() {
+			return "partial lookups: " + getLookups() + " (" + getLookupHits() + " cached), partial reads: "
+					+ getReads() + " (" + getReadHits() + " cached)";
+		}
+	}
+
+	/**
+	 * The content of a partial file, with the time stamp and size of the file
+	 * when it was read
+	 */
+	private static class Content {
+		private final long lastModified;
+		private final long length;
+		private final String text;
+
+		public Content(long lastModified, long length, String text) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.text = text;
+		}
 	}
 
 }
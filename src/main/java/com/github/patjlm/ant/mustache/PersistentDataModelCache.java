@@ -0,0 +1,254 @@
+package com.github.patjlm.ant.mustache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.tools.ant.Project;
+
+/**
+ * Keeps data models on disk between builds, as snapshot files (see
+ * {@link DataSnapshot}), so that a build whose data model inputs did not
+ * change since an earlier build loads the model instead of building it.
+ *
+ * <p>
+ * An entry is named after a hash of the data model settings and a hash of
+ * the content of the inputs (project properties and data files), so that an
+ * entry is never used once its inputs changed. When a model is built, the
+ * entries of the same settings built from other inputs are deleted.
+ *
+ * <p>
+ * Builds sharing the cache directory, in the same JVM or in other processes,
+ * build each model once: the builds missing an entry take a lock on the
+ * settings, and look for the entry again once they hold the lock. Entries are
+ * written to a temporary file and renamed, so they are read without locking.
+ * An entry which can not be loaded (truncated, written by another version...)
+ * is deleted and built again.
+ */
+class PersistentDataModelCache {
+
+	private static final String SUFFIX = ".snapshot";
+
+	/**
+	 * the locks of the builds of this JVM, by canonical lock file: a file lock
+	 * is held by the whole JVM, so it does not exclude the other threads, and
+	 * the paths of a directory reached through different links or relative
+	 * paths must share their lock
+	 */
+	private static final ConcurrentMap<File, Object> LOCKS = new ConcurrentHashMap<File, Object>();
+
+	private final File dir;
+
+	/**
+	 * @param dir
+	 *            the cache directory, created if needed
+	 * @throws IOException
+	 *             if the canonical path of the directory can not be resolved
+	 */
+	PersistentDataModelCache(File dir) throws IOException {
+		this.dir = dir.getCanonicalFile();
+	}
+
+	/**
+	 * Creates and fills the data models
+	 */
+	interface Builder {
+		/**
+		 * @return a new empty data model, with the data model settings
+		 */
+		MustacheData create();
+
+		/**
+		 * adds the inputs to a data model created by {@link #create()}
+		 */
+		void build(MustacheData data);
+	}
+
+	/**
+	 * gets the data model of the given settings and inputs, loading it from
+	 * the cache directory or building it and storing it there
+	 *
+	 * @param key
+	 *            a string describing the data model settings
+	 * @param contentHash
+	 *            a hash of the content of the inputs of the model
+	 * @return the frozen data model
+	 */
+	MustacheData get(String key, String contentHash, Builder builder, Project project, RenderStatistics statistics)
+			throws IOException {
+		String prefix = TemplateCache.hash(key);
+		File entry = new File(dir, prefix + "-" + contentHash + SUFFIX);
+		MustacheData data = load(entry, builder, project, false);
+		if (data != null) {
+			statistics.add(RenderStatistics.Counter.DISK_CACHE_HITS, 1);
+			return data;
+		}
+		if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+			throw new IOException("Unable to create directory " + dir);
+		}
+		File lockFile = new File(dir, prefix + ".lock");
+		Object monitor = LOCKS.get(lockFile);
+		if (monitor == null) {
+			Object newMonitor = new Object();
+			monitor = LOCKS.putIfAbsent(lockFile, newMonitor);
+			if (monitor == null) {
+				monitor = newMonitor;
+			}
+		}
+		synchronized (monitor) {
+			RandomAccessFile lockAccess = new RandomAccessFile(lockFile, "rw");
+			try {
+				FileLock lock = lockAccess.getChannel().lock();
+				try {
+					// another build may have stored the model meanwhile
+					data = load(entry, builder, project, true);
+					if (data != null) {
+						statistics.add(RenderStatistics.Counter.DISK_CACHE_HITS, 1);
+						return data;
+					}
+					statistics.add(RenderStatistics.Counter.DISK_CACHE_MISSES, 1);
+					data = builder.create();
+					builder.build(data);
+					data.freeze();
+					try {
+						DataSnapshot.write(data, entry);
+						project.log("Stored the data model into " + entry, Project.MSG_VERBOSE);
+					} catch (IOException e) {
+						// the model is still usable, only later builds will build it again
+						project.log("Unable to store the data model into " + entry + ": " + e.getMessage(),
+								Project.MSG_WARN);
+					}
+					deleteOtherEntries(prefix, entry, project);
+					return data;
+				} finally {
+					lock.release();
+				}
+			} finally {
+				lockAccess.close();
+			}
+		}
+	}
+
+	/**
+	 * @param locked
+	 *            whether the lock of the entry is held, in which case an entry
+	 *            which can not be loaded is deleted
+	 * @return the model of the entry, or null if the entry does not exist or
+	 *         can not be loaded
+	 */
+	private static MustacheData load(File entry, Builder builder, Project project, boolean locked) {
+		if (!entry.isFile()) {
+			return null;
+		}
+		MustacheData data = builder.create();
+		try {
+			DataSnapshot.read(entry, data);
+			project.log("Loaded the data model from " + entry, Project.MSG_VERBOSE);
+			return data;
+		} catch (IOException e) {
+			if (locked) {
+				project.log("Deleting invalid data model cache entry " + entry + ": " + e.getMessage(),
+						Project.MSG_WARN);
+				entry.delete();
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * deletes the entries of the same settings as the given entry, built from
+	 * other inputs
+	 */
+	private void deleteOtherEntries(String prefix, File entry, Project project) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (name.startsWith(prefix + "-") && name.endsWith(SUFFIX) && !file.equals(entry)) {
+				if (file.delete()) {
+					project.log("Deleted the stale data model cache entry " + file, Project.MSG_VERBOSE);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Computes the hash of the content of the data model inputs
+	 */
+	static class ContentHash {
+		private final MessageDigest digest = TemplateCache.newDigest();
+
+		/**
+		 * adds the properties starting with the given prefix, in the order of
+		 * their keys
+		 *
+		 * @param prefix
+		 *            the prefix of the properties, or null for all of them
+		 */
+		ContentHash addProperties(Map<?, ?> properties, String prefix) {
+			Map<String, String> sorted = new TreeMap<String, String>();
+			for (Map.Entry<?, ?> property : properties.entrySet()) {
+				String key = String.valueOf(property.getKey());
+				if (prefix == null || key.startsWith(prefix)) {
+					sorted.put(key, String.valueOf(property.getValue()));
+				}
+			}
+			add("properties=" + sorted.size());
+			for (Map.Entry<String, String> property : sorted.entrySet()) {
+				add(property.getKey());
+				add(property.getValue());
+			}
+			return this;
+		}
+
+		/**
+		 * adds the content of a file, if not null
+		 */
+		ContentHash addFile(File file) throws IOException {
+			if (file == null) {
+				add("file=null");
+				return this;
+			}
+			add("file=" + file.length());
+			InputStream in = new FileInputStream(file);
+			try {
+				byte[] buffer = new byte[8192];
+				int n;
+				while ((n = in.read(buffer)) != -1) {
+					digest.update(buffer, 0, n);
+				}
+			} finally {
+				in.close();
+			}
+			return this;
+		}
+
+		/**
+		 * adds a string, prefixed by its length so that two sequences of
+		 * strings never hash the same
+		 */
+		ContentHash add(String s) {
+			try {
+				digest.update((s.length() + ":" + s).getBytes("UTF-8"));
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+			return this;
+		}
+
+		String getHash() {
+			return TemplateCache.hex(digest.digest());
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package com.github.patjlm.ant.mustache;
+
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.Project;
+
+import com.samskivert.mustache.Template;
+
+/**
+ * A writer collecting a rendered template into a reusable char array, in
+ * place of the {@link java.io.StringWriter} JMustache renders into: the
+ * buffer is neither synchronized nor copied when the output is read, and
+ * buffers are reused from one render to the next through the {@link Pool} of
+ * the project, so that rendering a template only allocates the resulting
+ * string.
+ *
+ * <p>
+ * A buffer is confined to the thread which acquired it, until released.
+ * Buffers grown beyond {@link #MAX_POOLED_SIZE} are not kept once released,
+ * and the pool is emptied when the build finishes, so that large renders do
+ * not hold their memory for the rest of the build, nor any buffer for the
+ * lifetime of the JVM.
+ */
+final class RenderBuffer extends Writer {
+
+	/**
+	 * the size of the buffers when no estimate of the output is known
+	 */
+	static final int DEFAULT_SIZE = 1024;
+
+	/**
+	 * the largest buffer kept by the pool between two renders, in chars
+	 */
+	static final int MAX_POOLED_SIZE = 1 << 16;
+
+	/**
+	 * name of the project reference holding the pool of a project
+	 */
+	private static final String REFERENCE = "mustache.renderBuffers";
+
+	private final Pool pool;
+
+	/**
+	 * the template rendered into this buffer, whose estimate is updated when
+	 * the buffer is released
+	 */
+	private Template template = null;
+
+	private char[] buf;
+
+	private int count = 0;
+
+	private RenderBuffer(Pool pool, int size) {
+		super();
+		this.pool = pool;
+		buf = new char[size];
+	}
+
+	/**
+	 * gets the pool of the given project, creating it and registering its
+	 * release at the end of the build if needed
+	 *
+	 * @param project
+	 *            the project
+	 * @return the pool shared by all the filters of the project
+	 */
+	static Pool getPool(Project project) {
+		synchronized (project) {
+			Pool pool = (Pool) project.getReference(REFERENCE);
+			if (pool == null) {
+				pool = new Pool(Runtime.getRuntime().availableProcessors());
+				project.addReference(REFERENCE, pool);
+				final Pool released = pool;
+				project.addBuildListener(new BuildFinishedListener() {
+					@Override
+					public void buildFinished(BuildEvent event) {
+						released.clear();
+					}
+				});
+			}
+			return pool;
+		}
+	}
+
+	/**
+	 * gives the buffer back to its pool, for a next render, and records the
+	 * size of the output of its template
+	 */
+	void release() {
+		pool.release(this);
+	}
+
+	/**
+	 * The buffers of a project not in use, and the estimated output size of
+	 * its templates. The estimates are keyed by compiled template, as the
+	 * templates of the filter have no file name, and are dropped with their
+	 * template.
+	 */
+	static final class Pool {
+		private final int maxBuffers;
+
+		private final ArrayDeque<RenderBuffer> buffers = new ArrayDeque<RenderBuffer>();
+
+		private final Map<Template, Estimate> estimates = new WeakHashMap<Template, Estimate>();
+
+		/**
+		 * @param maxBuffers
+		 *            the largest number of buffers kept between two renders
+		 */
+		Pool(int maxBuffers) {
+			this.maxBuffers = maxBuffers;
+		}
+
+		/**
+		 * gets an empty buffer, reusing the buffer of a previous render when
+		 * there is one
+		 *
+		 * @param template
+		 *            the template to render into the buffer
+		 * @return a buffer of at least the estimated output size of the
+		 *         template, to be released once its content is read
+		 */
+		synchronized RenderBuffer acquire(Template template) {
+			int estimate = estimate(template);
+			int size = estimate > 0 ? estimate : DEFAULT_SIZE;
+			// a render nested in another one gets a buffer of its own
+			RenderBuffer buffer = buffers.pollFirst();
+			if (buffer == null) {
+				buffer = new RenderBuffer(this, size);
+			} else {
+				buffer.ensureCapacity(size);
+			}
+			buffer.template = template;
+			return buffer;
+		}
+
+		private synchronized void release(RenderBuffer buffer) {
+			if (buffer.template != null) {
+				Estimate estimate = estimates.get(buffer.template);
+				if (estimate == null) {
+					estimate = new Estimate();
+					estimates.put(buffer.template, estimate);
+				}
+				estimate.renders++;
+				estimate.chars += buffer.count;
+				buffer.template = null;
+			}
+			buffer.count = 0;
+			if (buffer.buf.length <= MAX_POOLED_SIZE && buffers.size() < maxBuffers) {
+				buffers.addFirst(buffer);
+			}
+		}
+
+		/**
+		 * @return the estimated output size of a template, from the size of
+		 *         its previous outputs, or 0 if unknown
+		 */
+		synchronized int estimate(Template template) {
+			Estimate estimate = estimates.get(template);
+			if (estimate == null) {
+				return 0;
+			}
+			long average = estimate.chars / estimate.renders;
+			// a little margin, so that slightly larger outputs do not copy
+			return (int) Math.min(average + (average >> 3), MAX_POOLED_SIZE);
+		}
+
+		/**
+		 * releases all the buffers and estimates
+		 */
+		synchronized void clear() {
+			buffers.clear();
+			estimates.clear();
+		}
+	}
+
+	/**
+	 * The outputs of a template
+	 */
+	private static final class Estimate {
+		private long renders = 0;
+		private long chars = 0;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(capacity, buf.length << 1));
+		}
+	}
+
+	int size() {
+		return count;
+	}
+
+	@Override
+	public void write(int c) {
+		ensureCapacity(count + 1);
+		buf[count++] = (char) c;
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) {
+		ensureCapacity(count + len);
+		System.arraycopy(cbuf, off, buf, count, len);
+		count += len;
+	}
+
+	@Override
+	public void write(String str, int off, int len) {
+		ensureCapacity(count + len);
+		str.getChars(off, off + len, buf, count);
+		count += len;
+	}
+
+	@Override
+	public void write(String str) {
+		write(str, 0, str.length());
+	}
+
+	@Override
+	public Writer append(CharSequence csq) {
+		String s = String.valueOf(csq);
+		write(s, 0, s.length());
+		return this;
+	}
+
+	@Override
+	public String toString() {
+		return new String(buf, 0, count);
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,314 @@
+package com.github.patjlm.ant.mustache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The dependencies of a rendered file: the hash of its template and of the
+ * settings it was rendered with, the hash of each partial the template may
+ * include, and a digest of the value of each data model key the template
+ * looked up while rendering. The file only needs to be rendered again when
+ * one of them changes.
+ *
+ * <p>
+ * Partials are found by scanning the template and partial texts for partial
+ * tags, and are resolved with the same loader as when rendering. The
+ * dependencies of templates changing the tag delimiters can not be found this
+ * way: no manifest is recorded for them, so that they are always rendered.
+ */
+class RenderManifest {
+
+	private static final Pattern PARTIAL_TAG = Pattern.compile("\\{\\{>\\s*(.+?)\\s*\\}\\}");
+
+	private static final String DELIMITER_TAG = "{{=";
+
+	private static final String TEMPLATE = "template";
+
+	private static final String SETTINGS = "settings";
+
+	private static final String PARTIAL_PREFIX = "partial.";
+
+	private static final String DATA_PREFIX = "data.";
+
+	/**
+	 * the hash recorded for missing partials and data keys
+	 */
+	private static final String MISSING = "missing";
+
+	private final Properties properties = new Properties();
+
+	private RenderManifest() {
+	}
+
+	/**
+	 * records the dependencies of a file just rendered
+	 *
+	 * @param templateHash
+	 *            the hash of the template text
+	 * @param settingsHash
+	 *            the hash of the settings the file was rendered with
+	 * @param partials
+	 *            the partials of the template, see
+	 *            {@link #findPartials(String, PartialPath.Loader)}
+	 * @param data
+	 *            the data model
+	 * @param keys
+	 *            the data model keys looked up while rendering
+	 * @return the manifest
+	 */
+	public static RenderManifest record(String templateHash, String settingsHash, Map<String, String> partials,
+			Map<String, Object> data, Collection<String> keys) {
+		RenderManifest manifest = new RenderManifest();
+		manifest.properties.setProperty(TEMPLATE, templateHash);
+		manifest.properties.setProperty(SETTINGS, settingsHash);
+		for (Map.Entry<String, String> partial : partials.entrySet()) {
+			manifest.properties.setProperty(PARTIAL_PREFIX + partial.getKey(), partial.getValue());
+		}
+		for (String key : keys) {
+			manifest.properties.setProperty(DATA_PREFIX + key, digest(data, key));
+		}
+		return manifest;
+	}
+
+	/**
+	 * @param file
+	 *            the manifest file
+	 * @return the manifest stored in the file, or null if there is none
+	 * @throws IOException
+	 *             if the file can not be read
+	 */
+	public static RenderManifest load(File file) throws IOException {
+		if (!file.isFile()) {
+			return null;
+		}
+		RenderManifest manifest = new RenderManifest();
+		InputStream in = new FileInputStream(file);
+		try {
+			manifest.properties.load(in);
+		} finally {
+			in.close();
+		}
+		return manifest;
+	}
+
+	/**
+	 * @param file
+	 *            the file to store the manifest into
+	 * @throws IOException
+	 *             if the file can not be written
+	 */
+	public void save(File file) throws IOException {
+		File parent = file.getParentFile();
+		if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+			throw new IOException("Unable to create directory " + parent);
+		}
+		OutputStream out = new FileOutputStream(file);
+		try {
+			properties.store(out, null);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @param templateHash
+	 *            the hash of the current template text
+	 * @param settingsHash
+	 *            the hash of the current settings
+	 * @param loader
+	 *            the current partial loader, or null if none
+	 * @param data
+	 *            the current data model
+	 * @return whether none of the recorded dependencies changed
+	 * @throws IOException
+	 *             if a partial can not be read
+	 */
+	public boolean isUpToDate(String templateHash, String settingsHash, PartialPath.Loader loader,
+			Map<String, Object> data) throws IOException {
+		if (!templateHash.equals(properties.getProperty(TEMPLATE))
+				|| !settingsHash.equals(properties.getProperty(SETTINGS))) {
+			return false;
+		}
+		for (String name : properties.stringPropertyNames()) {
+			String hash = properties.getProperty(name);
+			if (name.startsWith(PARTIAL_PREFIX)) {
+				if (!hash.equals(hashPartial(loader, name.substring(PARTIAL_PREFIX.length())))) {
+					return false;
+				}
+			} else if (name.startsWith(DATA_PREFIX)) {
+				if (!hash.equals(digest(data, name.substring(DATA_PREFIX.length())))) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * finds the partials a template may include, recursively
+	 *
+	 * @param text
+	 *            the template text
+	 * @param loader
+	 *            the partial loader, or null if none
+	 * @return the hash of the content of each partial by name, or null if the
+	 *         template or one of its partials changes the tag delimiters
+	 * @throws IOException
+	 *             if a partial can not be read
+	 */
+	public static Map<String, String> findPartials(String text, PartialPath.Loader loader) throws IOException {
+		Map<String, String> partials = new LinkedHashMap<String, String>();
+		return findPartials(text, loader, partials) ? partials : null;
+	}
+
+	/**
+	 * finds the partials included by a text, recursively
+	 *
+	 * @param partials
+	 *            the hash of the partials found so far, by name
+	 * @return false if the text changes the tag delimiters
+	 */
+	private static boolean findPartials(String text, PartialPath.Loader loader, Map<String, String> partials)
+			throws IOException {
+		if (text.contains(DELIMITER_TAG)) {
+			return false;
+		}
+		Matcher matcher = PARTIAL_TAG.matcher(text);
+		while (matcher.find()) {
+			String name = matcher.group(1);
+			if (!partials.containsKey(name)) {
+				File file = loader == null ? null : loader.findPartial(name);
+				if (file == null) {
+					partials.put(name, MISSING);
+				} else {
+					byte[] content = readBytes(file);
+					partials.put(name, TemplateCache.hash(content));
+					// decoded as the loader decodes it for rendering
+					String encoding = loader.getEncoding();
+					String partial = encoding == null ? new String(content) : new String(content, encoding);
+					if (!findPartials(partial, loader, partials)) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	private static String hashPartial(PartialPath.Loader loader, String name) throws IOException {
+		File file = loader == null ? null : loader.findPartial(name);
+		return file == null ? MISSING : TemplateCache.hash(readBytes(file));
+	}
+
+	private static byte[] readBytes(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return a digest of the value of a data model key, which does not
+	 *         depend on the iteration order of maps
+	 */
+	static String digest(Map<String, Object> data, String key) {
+		if (!data.containsKey(key)) {
+			return MISSING;
+		}
+		StringBuilder sb = new StringBuilder();
+		appendValue(sb, data.get(key));
+		return TemplateCache.hash(sb.toString());
+	}
+
+	private static void appendValue(StringBuilder sb, Object value) {
+		if (value == null) {
+			sb.append('n');
+		} else if (value instanceof Map) {
+			Map<String, Object> sorted = new TreeMap<String, Object>();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				sorted.put(String.valueOf(entry.getKey()), entry.getValue());
+			}
+			sb.append('{');
+			for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+				appendString(sb, entry.getKey());
+				appendValue(sb, entry.getValue());
+			}
+			sb.append('}');
+		} else if (value instanceof Collection) {
+			sb.append('[');
+			for (Object element : (Collection<?>) value) {
+				appendValue(sb, element);
+			}
+			sb.append(']');
+		} else {
+			appendString(sb, value.getClass().getName());
+			appendString(sb, value.toString());
+		}
+	}
+
+	private static void appendString(StringBuilder sb, String s) {
+		sb.append(s.length()).append(':').append(s);
+	}
+
+	/**
+	 * A view of a data model recording the keys looked up in it
+	 */
+	static class RecordingMap extends AbstractMap<String, Object> {
+		private final Map<String, Object> data;
+
+		private final Set<String> keys = new HashSet<String>();
+
+		public RecordingMap(Map<String, Object> data) {
+			this.data = data;
+		}
+
+		/**
+		 * @return the keys looked up so far
+		 */
+		public Set<String> getKeys() {
+			return keys;
+		}
+
+		@Override
+		public Object get(Object key) {
+			keys.add(String.valueOf(key));
+			return data.get(key);
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			keys.add(String.valueOf(key));
+			return data.containsKey(key);
+		}
+
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet() {
+			// all the entries may be read
+			keys.addAll(data.keySet());
+			return data.entrySet();
+		}
+	}
+}
@@ -0,0 +1,466 @@
+package com.github.patjlm.ant.mustache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.Project;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.samskivert.mustache.Mustache;
+
+/**
+ * Records the time spent and the work done by the mustache filters and tasks
+ * of a project, per phase and per template.
+ *
+ * <p>
+ * The statistics of a project are logged when its build finishes: a summary
+ * in verbose mode, and the statistics of each template in debug mode. They can
+ * also be written to a JSON report file.
+ *
+ * <p>
+ * Statistics are only collected when enabled: the filters and tasks of the
+ * other projects record into {@link #DISABLED}, which ignores everything.
+ */
+public class RenderStatistics {
+
+	/**
+	 * name of the project reference holding the statistics of a project
+	 */
+	private static final String REFERENCE = "mustache.statistics";
+
+	/**
+	 * The phases of the processing of templates
+	 */
+	public enum Phase {
+		/**
+		 * building the data model from properties and data files
+		 */
+		DATA_MODEL("dataModel"),
+		/**
+		 * compiling templates, including template cache lookups
+		 */
+		COMPILE("compile"),
+		/**
+		 * rendering templates, including the loading of partials
+		 */
+		RENDER("render"),
+		/**
+		 * loading partials
+		 */
+		PARTIALS("partials");
+
+		private final String id;
+
+		private Phase(String id) {
+			this.id = id;
+		}
+	}
+
+	/**
+	 * The counters of the work done
+	 */
+	public enum Counter {
+		/**
+		 * properties scanned while building the data model
+		 */
+		PROPERTIES_SCANNED("propertiesScanned"),
+		/**
+		 * list elements created in the data model
+		 */
+		LIST_ITEMS_CREATED("listItemsCreated"),
+		/**
+		 * bytes of JSON values and JSON data files parsed, JSON values being
+		 * counted in UTF-8
+		 */
+		JSON_BYTES_PARSED("jsonBytesParsed"),
+		/**
+		 * partials loaded
+		 */
+		PARTIALS_RESOLVED("partialsResolved"),
+		/**
+		 * characters rendered
+		 */
+		CHARS_RENDERED("charsRendered"),
+		/**
+		 * data models loaded from the cache directory
+		 */
+		DISK_CACHE_HITS("diskCacheHits"),
+		/**
+		 * data models built and stored into the cache directory
+		 */
+		DISK_CACHE_MISSES("diskCacheMisses");
+
+		private final String id;
+
+		private Counter(String id) {
+			this.id = id;
+		}
+	}
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	/**
+	 * the statistics of the projects not collecting any: nothing is recorded
+	 */
+	static final RenderStatistics DISABLED = new RenderStatistics(false);
+
+	/**
+	 * the statistics of all the templates when disabled: never recorded into
+	 */
+	private static final TemplateStatistics NO_TEMPLATE = new TemplateStatistics("");
+
+	private final boolean enabled;
+
+	private final AtomicLong[] phaseCounts = newCounters(Phase.values().length);
+
+	private final AtomicLong[] phaseNanos = newCounters(Phase.values().length);
+
+	private final AtomicLong[] counters = newCounters(Counter.values().length);
+
+	private final ConcurrentMap<String, TemplateStatistics> templates = new ConcurrentHashMap<String, TemplateStatistics>();
+
+	/**
+	 * the file to write the JSON report into when the build finishes, if any
+	 */
+	private volatile File reportFile = null;
+
+	private RenderStatistics(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	private static AtomicLong[] newCounters(int size) {
+		AtomicLong[] counters = new AtomicLong[size];
+		for (int i = 0; i < size; i++) {
+			counters[i] = new AtomicLong();
+		}
+		return counters;
+	}
+
+	/**
+	 * gets the statistics of the given project, creating them and registering
+	 * the end of build report if needed
+	 *
+	 * @param project
+	 *            the project
+	 * @return the statistics of the project
+	 */
+	public static RenderStatistics getInstance(Project project) {
+		synchronized (project) {
+			RenderStatistics statistics = (RenderStatistics) project.getReference(REFERENCE);
+			if (statistics == null) {
+				statistics = new RenderStatistics(true);
+				project.addReference(REFERENCE, statistics);
+				project.addBuildListener(statistics.new Report());
+			}
+			return statistics;
+		}
+	}
+
+	public void setReportFile(File reportFile) {
+		this.reportFile = reportFile;
+	}
+
+	/**
+	 * records the duration of a phase
+	 *
+	 * @param phase
+	 *            the phase
+	 * @param nanos
+	 *            the duration of the phase in nanoseconds
+	 */
+	public void addTime(Phase phase, long nanos) {
+		if (!enabled) {
+			return;
+		}
+		phaseCounts[phase.ordinal()].incrementAndGet();
+		phaseNanos[phase.ordinal()].addAndGet(nanos);
+	}
+
+	/**
+	 * @param counter
+	 *            the counter to increase
+	 * @param delta
+	 *            the value to add to the counter
+	 */
+	public void add(Counter counter, long delta) {
+		if (!enabled) {
+			return;
+		}
+		counters[counter.ordinal()].addAndGet(delta);
+	}
+
+	/**
+	 * @return the number of times the given phase was recorded
+	 */
+	public long getCount(Phase phase) {
+		return phaseCounts[phase.ordinal()].get();
+	}
+
+	/**
+	 * @return the total duration of the given phase, in nanoseconds
+	 */
+	public long getNanos(Phase phase) {
+		return phaseNanos[phase.ordinal()].get();
+	}
+
+	/**
+	 * @return whether these statistics record anything
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public long get(Counter counter) {
+		return counters[counter.ordinal()].get();
+	}
+
+	/**
+	 * @param name
+	 *            the name of a template
+	 * @return the statistics of the template, created if needed, or empty
+	 *         statistics if disabled
+	 */
+	public TemplateStatistics getTemplate(String name) {
+		if (!enabled) {
+			return NO_TEMPLATE;
+		}
+		TemplateStatistics template = templates.get(name);
+		if (template == null) {
+			template = new TemplateStatistics(name);
+			TemplateStatistics previous = templates.putIfAbsent(name, template);
+			if (previous != null) {
+				template = previous;
+			}
+		}
+		return template;
+	}
+
+	/**
+	 * records the compilation of a template
+	 */
+	public void addCompile(String template, long nanos) {
+		if (!enabled) {
+			return;
+		}
+		addTime(Phase.COMPILE, nanos);
+		TemplateStatistics statistics = getTemplate(template);
+		statistics.compilations.incrementAndGet();
+		statistics.compileNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * records the rendering of a template
+	 */
+	public void addRender(String template, long nanos, long chars) {
+		if (!enabled) {
+			return;
+		}
+		addTime(Phase.RENDER, nanos);
+		add(Counter.CHARS_RENDERED, chars);
+		TemplateStatistics statistics = getTemplate(template);
+		statistics.renders.incrementAndGet();
+		statistics.renderNanos.addAndGet(nanos);
+		statistics.charsRendered.addAndGet(chars);
+	}
+
+	/**
+	 * @param loader
+	 *            a partial loader
+	 * @return a loader recording the partials loaded through the given one,
+	 *         or the given loader itself if the statistics are disabled
+	 */
+	public Mustache.TemplateLoader instrument(final Mustache.TemplateLoader loader) {
+		if (!enabled) {
+			return loader;
+		}
+		return new Mustache.TemplateLoader() {
+			@Override
+			public Reader getTemplate(String name) throws Exception {
+				long start = System.nanoTime();
+				try {
+					return loader.getTemplate(name);
+				} finally {
+					addTime(Phase.PARTIALS, System.nanoTime() - start);
+					add(Counter.PARTIALS_RESOLVED, 1);
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return a one line summary of the statistics
+	 */
+	public String getSummary() {
+		StringBuilder summary = new StringBuilder("Mustache statistics:");
+		for (Phase phase : Phase.values()) {
+			summary.append(' ').append(phase.id).append('=').append(getCount(phase)).append('/')
+					.append(getNanos(phase) / 1000000).append("ms");
+		}
+		for (Counter counter : Counter.values()) {
+			summary.append(' ').append(counter.id).append('=').append(get(counter));
+		}
+		return summary.toString();
+	}
+
+	/**
+	 * writes the statistics as a JSON document
+	 *
+	 * @param writer
+	 *            the writer to write the document into
+	 * @throws IOException
+	 *             if the document can not be written
+	 */
+	public void writeReport(Writer writer) throws IOException {
+		JsonGenerator json = JSON_FACTORY.createGenerator(writer);
+		json.useDefaultPrettyPrinter();
+		json.writeStartObject();
+		json.writeObjectFieldStart("phases");
+		for (Phase phase : Phase.values()) {
+			json.writeObjectFieldStart(phase.id);
+			json.writeNumberField("count", getCount(phase));
+			json.writeNumberField("nanos", getNanos(phase));
+			json.writeEndObject();
+		}
+		json.writeEndObject();
+		json.writeObjectFieldStart("counters");
+		for (Counter counter : Counter.values()) {
+			json.writeNumberField(counter.id, get(counter));
+		}
+		json.writeEndObject();
+		json.writeArrayFieldStart("templates");
+		for (TemplateStatistics template : getTemplates()) {
+			json.writeStartObject();
+			json.writeStringField("name", template.name);
+			json.writeNumberField("compilations", template.compilations.get());
+			json.writeNumberField("compileNanos", template.compileNanos.get());
+			json.writeNumberField("renders", template.renders.get());
+			json.writeNumberField("renderNanos", template.renderNanos.get());
+			json.writeNumberField("charsRendered", template.charsRendered.get());
+			json.writeEndObject();
+		}
+		json.writeEndArray();
+		json.writeEndObject();
+		json.flush();
+	}
+
+	/**
+	 * @return the statistics of all the templates, sorted by name
+	 */
+	private List<TemplateStatistics> getTemplates() {
+		List<TemplateStatistics> list = new ArrayList<TemplateStatistics>(templates.values());
+		Collections.sort(list, new Comparator<TemplateStatistics>() {
+			@Override
+			public int compare(TemplateStatistics t1, TemplateStatistics t2) {
+				return t1.name.compareTo(t2.name);
+			}
+		});
+		return list;
+	}
+
+	/**
+	 * The statistics of a template
+	 */
+	public static class TemplateStatistics {
+		private final String name;
+		private final AtomicLong compilations = new AtomicLong();
+		private final AtomicLong compileNanos = new AtomicLong();
+		private final AtomicLong renders = new AtomicLong();
+		private final AtomicLong renderNanos = new AtomicLong();
+		private final AtomicLong charsRendered = new AtomicLong();
+
+		private TemplateStatistics(String name) {
+			this.name = name;
+		}
+
+		public long getRenders() {
+			return renders.get();
+		}
+
+		public long getCharsRendered() {
+			return charsRendered.get();
+		}
+
+		@Override
+		public String toString() {
+			return name + ": " + compilations + " compilations (" + compileNanos.get() / 1000000 + "ms), "
+					+ renders + " renders (" + renderNanos.get() / 1000000 + "ms), " + charsRendered
+					+ " chars rendered";
+		}
+	}
+
+	/**
+	 * A writer counting the characters written through it
+	 */
+	static class CountingWriter extends FilterWriter {
+		private long count = 0;
+
+		public CountingWriter(Writer out) {
+			super(out);
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		@Override
+		public void write(int c) throws IOException {
+			out.write(c);
+			count++;
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			out.write(cbuf, off, len);
+			count += len;
+		}
+
+		@Override
+		public void write(String str, int off, int len) throws IOException {
+			out.write(str, off, len);
+			count += len;
+		}
+	}
+
+	/**
+	 * Logs the statistics and writes the report file when the build finishes
+	 */
+	private class Report extends BuildFinishedListener {
+
+		@Override
+		public void buildFinished(BuildEvent event) {
+			Project project = event.getProject();
+			project.log(getSummary(), Project.MSG_VERBOSE);
+			for (TemplateStatistics template : getTemplates()) {
+				project.log("Mustache " + template, Project.MSG_DEBUG);
+			}
+			File file = reportFile;
+			if (file != null) {
+				try {
+					Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+					try {
+						writeReport(writer);
+					} finally {
+						writer.close();
+					}
+				} catch (IOException e) {
+					project.log("Unable to write the mustache statistics to " + file + ": " + e.getMessage(),
+							Project.MSG_WARN);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,331 @@
+package com.github.patjlm.ant.mustache;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.Project;
+
+/**
+ * A reader returning the output of a renderer running in a background thread.
+ * The rendered text goes through a bounded buffer: the renderer waits when
+ * the buffer is full, so that the output can be consumed while it is produced
+ * without ever being held in memory as a whole.
+ *
+ * <p>
+ * The renderers of a project run in threads of an executor shared by the
+ * project, reused from one file to the next and stopped when the build
+ * finishes. A failure of the renderer is thrown by the next read once the
+ * text rendered before the failure has been read. Closing the reader stops
+ * the renderer. The source of the template is closed once rendered, or when
+ * this reader is closed before the renderer starts.
+ */
+class RenderingReader extends Reader {
+
+	/**
+	 * name of the project reference holding the executor of the renderers
+	 */
+	private static final String REFERENCE = "mustache.renderers";
+
+	/**
+	 * Renders some text into a writer
+	 */
+	public interface Renderer {
+		/**
+		 * @param out
+		 *            the writer to render the text into
+		 * @throws Exception
+		 *             if the rendering fails
+		 */
+		void render(Writer out) throws Exception;
+	}
+
+	private final char[] buffer;
+
+	/**
+	 * the index of the next char to read in the buffer
+	 */
+	private int head = 0;
+
+	/**
+	 * the number of chars available in the buffer
+	 */
+	private int count = 0;
+
+	/**
+	 * whether the renderer has started
+	 */
+	private boolean started = false;
+
+	/**
+	 * whether the renderer has finished, successfully or not
+	 */
+	private boolean finished = false;
+
+	/**
+	 * whether this reader has been closed
+	 */
+	private boolean closed = false;
+
+	private Throwable failure = null;
+
+	private Reader source;
+
+	/**
+	 * Starts rendering in a thread of the executor of the project
+	 *
+	 * @param renderer
+	 *            the renderer to run
+	 * @param source
+	 *            the reader of the template, closed once rendered
+	 * @param bufferSize
+	 *            the maximum number of rendered chars waiting to be read
+	 * @param project
+	 *            the project whose executor runs the renderer
+	 */
+	public RenderingReader(final Renderer renderer, Reader source, int bufferSize, Project project) {
+		this.buffer = new char[bufferSize];
+		this.source = source;
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				synchronized (lock) {
+					if (closed) {
+						finish(null);
+						return;
+					}
+					started = true;
+				}
+				Throwable error = null;
+				try {
+					renderer.render(new PipeWriter());
+				} catch (Throwable t) {
+					error = t;
+				}
+				finish(error);
+			}
+		};
+		try {
+			getExecutor(project).execute(task);
+		} catch (RejectedExecutionException e) {
+			finish(e);
+		}
+	}
+
+	/**
+	 * gets the executor of the renderers of a project, creating it and
+	 * registering its shutdown at the end of the build if needed
+	 */
+	static ExecutorService getExecutor(final Project project) {
+		synchronized (project) {
+			ExecutorService executor = (ExecutorService) project.getReference(REFERENCE);
+			if (executor == null) {
+				executor = Executors.newCachedThreadPool(new ThreadFactory() {
+					private final AtomicInteger threads = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "mustache-renderer-" + threads.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+				project.addReference(REFERENCE, executor);
+				final ExecutorService stopped = executor;
+				project.addBuildListener(new BuildFinishedListener() {
+					@Override
+					public void buildFinished(BuildEvent event) {
+						synchronized (project) {
+							if (project.getReference(REFERENCE) == stopped) {
+								project.getReferences().remove(REFERENCE);
+							}
+						}
+						// renderers whose output is not read are interrupted
+						stopped.shutdownNow();
+					}
+				});
+			}
+			return executor;
+		}
+	}
+
+	/**
+	 * records the end of the renderer, and closes the source
+	 */
+	private void finish(Throwable error) {
+		Reader closing;
+		synchronized (lock) {
+			closing = source;
+			source = null;
+		}
+		if (closing != null) {
+			try {
+				closing.close();
+			} catch (IOException e) {
+				// the template has been read already
+			}
+		}
+		synchronized (lock) {
+			failure = error;
+			finished = true;
+			lock.notifyAll();
+		}
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		synchronized (lock) {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			if (len == 0) {
+				return 0;
+			}
+			while (count == 0 && !finished) {
+				waitOnLock();
+			}
+			if (count == 0) {
+				if (failure != null) {
+					throwFailure();
+				}
+				return -1;
+			}
+			int n = 0;
+			while (n < len && count > 0) {
+				int chunk = Math.min(Math.min(len - n, count), buffer.length - head);
+				System.arraycopy(buffer, head, cbuf, off + n, chunk);
+				head = (head + chunk) % buffer.length;
+				count -= chunk;
+				n += chunk;
+			}
+			lock.notifyAll();
+			return n;
+		}
+	}
+
+	/**
+	 * Stops the renderer if still running and waits for its termination
+	 */
+	@Override
+	public void close() throws IOException {
+		Reader closing = null;
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+			if (!started) {
+				// the renderer will not run the template
+				closing = source;
+				source = null;
+			} else {
+				boolean interrupted = false;
+				while (!finished) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		if (closing != null) {
+			closing.close();
+		}
+	}
+
+	private void waitOnLock() throws InterruptedIOException {
+		try {
+			lock.wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	private void throwFailure() throws IOException {
+		if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure instanceof Error) {
+			throw (Error) failure;
+		} else if (failure instanceof IOException) {
+			throw (IOException) failure;
+		}
+		IOException e = new IOException(failure.getMessage());
+		e.initCause(failure);
+		throw e;
+	}
+
+	/**
+	 * The writer used by the renderer to fill the buffer
+	 */
+	private class PipeWriter extends Writer {
+		public PipeWriter() {
+			// share the lock of the reader
+			super(RenderingReader.this.lock);
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			synchronized (lock) {
+				while (len > 0) {
+					int tail = waitForSpace();
+					int chunk = Math.min(Math.min(len, buffer.length - count), buffer.length - tail);
+					System.arraycopy(cbuf, off, buffer, tail, chunk);
+					count += chunk;
+					off += chunk;
+					len -= chunk;
+					lock.notifyAll();
+				}
+			}
+		}
+
+		@Override
+		public void write(String str, int off, int len) throws IOException {
+			synchronized (lock) {
+				while (len > 0) {
+					int tail = waitForSpace();
+					int chunk = Math.min(Math.min(len, buffer.length - count), buffer.length - tail);
+					str.getChars(off, off + chunk, buffer, tail);
+					count += chunk;
+					off += chunk;
+					len -= chunk;
+					lock.notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * waits until the buffer is not full
+		 *
+		 * @return the index of the first free char in the buffer
+		 * @throws IOException
+		 *             if the reader is closed
+		 */
+		private int waitForSpace() throws IOException {
+			while (count == buffer.length && !closed) {
+				waitOnLock();
+			}
+			if (closed) {
+				throw new IOException("Reader closed");
+			}
+			return (head + count) % buffer.length;
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
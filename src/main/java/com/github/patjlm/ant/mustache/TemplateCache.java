@@ -0,0 +1,199 @@
+package com.github.patjlm.ant.mustache;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.Project;
+
+import com.samskivert.mustache.Mustache.Compiler;
+import com.samskivert.mustache.Template;
+
+/**
+ * A bounded cache of compiled templates, shared by the filters and tasks of a
+ * project. The least recently used templates are evicted first.
+ *
+ * <p>
+ * Compiled templates hold their compiler, and through it the partial loader
+ * and the project, so the cache is kept as a reference of its project and
+ * cleared when the build finishes, instead of being shared by the whole JVM.
+ *
+ * <p>
+ * Templates are keyed by a hash of their content and by a string describing
+ * the compiler configuration they were compiled with, so that the same text
+ * compiled with different settings never shares an entry.
+ */
+public class TemplateCache {
+
+	/**
+	 * the maximum number of compiled templates kept by the cache of a project
+	 */
+	public static final int DEFAULT_MAX_SIZE = 256;
+
+	/**
+	 * name of the project reference holding the cache of a project
+	 */
+	private static final String REFERENCE = "mustache.templateCache";
+
+	private final Map<String, Template> templates;
+
+	private long hits = 0;
+
+	private long misses = 0;
+
+	public TemplateCache(final int maxSize) {
+		this.templates = new LinkedHashMap<String, Template>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Template> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * gets the cache of the given project, creating it and registering the
+	 * end of build report if needed
+	 *
+	 * @param project
+	 *            the project
+	 * @return the cache shared by all filters and tasks of the project
+	 */
+	public static TemplateCache getInstance(Project project) {
+		synchronized (project) {
+			TemplateCache cache = (TemplateCache) project.getReference(REFERENCE);
+			if (cache == null) {
+				cache = new TemplateCache(DEFAULT_MAX_SIZE);
+				project.addReference(REFERENCE, cache);
+				project.addBuildListener(cache.new Report());
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * Gets the compiled form of the given text, compiling it with the given
+	 * compiler if it is not cached yet.
+	 *
+	 * @param compiler
+	 *            the compiler to use on a cache miss
+	 * @param configKey
+	 *            a string describing the whole compiler configuration
+	 * @param text
+	 *            the template text
+	 * @return the compiled template
+	 */
+	public Template compile(Compiler compiler, String configKey, String text) {
+		return compile(compiler, configKey, text, null);
+	}
+
+	/**
+	 * Same as {@link #compile(Compiler, String, String)}, using the generated
+	 * template of the text on a cache miss when there is one.
+	 *
+	 * @param compiled
+	 *            the generated templates, or null to always compile with
+	 *            JMustache. Their package and classpath must be part of the
+	 *            configKey.
+	 */
+	Template compile(Compiler compiler, String configKey, String text, CompiledTemplates compiled) {
+		String key = configKey + '|' + hash(text);
+		Template tmpl = get(key);
+		if (tmpl == null) {
+			tmpl = compiled == null ? compiler.compile(text) : compiled.compile(compiler, text);
+			put(key, tmpl);
+		}
+		return tmpl;
+	}
+
+	private synchronized Template get(String key) {
+		Template tmpl = templates.get(key);
+		if (tmpl == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return tmpl;
+	}
+
+	private synchronized void put(String key, Template tmpl) {
+		templates.put(key, tmpl);
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized int size() {
+		return templates.size();
+	}
+
+	public synchronized void clear() {
+		templates.clear();
+	}
+
+	/**
+	 * computes the hexadecimal SHA-1 digest of the given text
+	 *
+	 * @param text
+	 *            the text to hash
+	 * @return the digest
+	 */
+	static String hash(String text) {
+		try {
+			return hash(text.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the SHA-1 hash of the given bytes, in hexadecimal
+	 */
+	static String hash(byte[] data) {
+		return hex(newDigest().digest(data));
+	}
+
+	/**
+	 * @return a new SHA-1 digest
+	 */
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the given digest in hexadecimal
+	 */
+	static String hex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Logs the cache hits and misses of the build when it finishes, and
+	 * releases the cached templates
+	 */
+	private class Report extends BuildFinishedListener {
+		@Override
+		public void buildFinished(BuildEvent event) {
+			event.getProject().log("Mustache template cache: " + getHits() + " hits, " + getMisses() + " misses, "
+					+ size() + " cached templates", Project.MSG_VERBOSE);
+			clear();
+		}
+	}
+}
@@ -0,0 +1,379 @@
+package com.github.patjlm.ant.mustache;
+
+import java.io.Reader;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.samskivert.mustache.Escapers;
+import com.samskivert.mustache.Mustache;
+import com.samskivert.mustache.MustacheException;
+import com.samskivert.mustache.Template;
+
+/**
+ * Generates the Java source of a {@link CompiledTemplate} from a template.
+ *
+ * <p>
+ * The template is parsed by JMustache, so that the generated class renders
+ * the segments JMustache would render, whitespace trimming included. The
+ * segments are read from the parsed template, whose fields are not part of the
+ * JMustache API: the generator is bound to the JMustache version of the
+ * build, and fails with an UnsupportedOperationException with any other
+ * version.
+ */
+final class TemplateGenerator {
+
+	/**
+	 * the maximum number of statements of a generated method, which keeps the
+	 * methods of large templates under the size limit of the JVM
+	 */
+	private static final int MAX_STATEMENTS = 200;
+
+	/**
+	 * the maximum length of a text constant. The constants of the class file
+	 * are limited to 65535 bytes.
+	 */
+	private static final int MAX_CONSTANT = 8192;
+
+	private static final Class<?> STRING_SEGMENT = segmentClass("StringSegment");
+	private static final Class<?> VARIABLE_SEGMENT = segmentClass("VariableSegment");
+	private static final Class<?> SECTION_SEGMENT = segmentClass("SectionSegment");
+	private static final Class<?> INVERTED_SEGMENT = segmentClass("InvertedSegment");
+	private static final Class<?> INCLUDED_SEGMENT = segmentClass("IncludedTemplateSegment");
+	private static final Class<?> FAUX_SEGMENT = segmentClass("FauxSegment");
+
+	/**
+	 * parses the template and its partials. Variables are escaped by this
+	 * compiler, so that they can be told from the unescaped ones: the escaper
+	 * used when rendering is the one of the rendering compiler.
+	 */
+	private final Mustache.Compiler parser;
+
+	private final Mustache.TemplateLoader loader;
+
+	/**
+	 * the segments of each block, the template itself first
+	 */
+	private final List<Object[]> blocks = new ArrayList<Object[]>();
+
+	/**
+	 * the block of each partial, in the order they are found
+	 */
+	private final Map<String, Integer> partialBlocks = new LinkedHashMap<String, Integer>();
+
+	/**
+	 * the SHA-1 of the text of each partial
+	 */
+	private final Map<String, String> partialHashes = new HashMap<String, String>();
+
+	private final List<String> constants = new ArrayList<String>();
+
+	private final Map<String, Integer> constantIndexes = new HashMap<String, Integer>();
+
+	/**
+	 * the number of variables and sections, which cache their fetchers
+	 */
+	private int sites = 0;
+
+	private TemplateGenerator(Mustache.TemplateLoader loader) {
+		Mustache.Compiler compiler = Mustache.compiler().escapeHTML(true);
+		this.parser = loader == null ? compiler : compiler.withLoader(loader);
+		this.loader = loader;
+	}
+
+	/**
+	 * @return the simple name of the class generated from a template text
+	 */
+	static String className(String text) {
+		return CompiledTemplate.CLASS_PREFIX + TemplateCache.hash(text);
+	}
+
+	/**
+	 * @param packageName
+	 *            the package of the generated class
+	 * @param text
+	 *            the template text
+	 * @param sourceName
+	 *            the name of the template, for the comment of the class
+	 * @param loader
+	 *            the loader of the partials, or null if none
+	 * @return the source of the class rendering the template
+	 * @throws MustacheException
+	 *             if the template or one of its partials can not be parsed or
+	 *             loaded
+	 * @throws UnsupportedOperationException
+	 *             if the segments of the JMustache version can not be read
+	 */
+	static String generate(String packageName, String text, String sourceName, Mustache.TemplateLoader loader) {
+		if (STRING_SEGMENT == null || VARIABLE_SEGMENT == null || SECTION_SEGMENT == null
+				|| INVERTED_SEGMENT == null || INCLUDED_SEGMENT == null || FAUX_SEGMENT == null) {
+			throw unsupported(null);
+		}
+		return new TemplateGenerator(loader).generate(packageName, text, sourceName);
+	}
+
+	private String generate(String packageName, String text, String sourceName) {
+		blocks.add(segments(parser.compile(text)));
+		StringBuilder methods = new StringBuilder();
+		// blocks are added while the segments are visited
+		for (int block = 0; block < blocks.size(); block++) {
+			List<String> execute = new ArrayList<String>();
+			List<String> decompile = new ArrayList<String>();
+			for (Object segment : blocks.get(block)) {
+				addStatements(segment, execute, decompile);
+			}
+			addMethod(methods, "b" + block, "Context ctx, Writer out", "ctx, out", execute);
+			addMethod(methods, "d" + block, "StringBuilder into", "into", decompile);
+		}
+
+		String className = className(text);
+		StringBuilder source = new StringBuilder();
+		source.append("package ").append(packageName).append(";\n\n");
+		source.append("import java.io.Writer;\n\n");
+		source.append("import com.github.patjlm.ant.mustache.CompiledTemplate;\n");
+		source.append("import com.samskivert.mustache.Mustache;\n\n");
+		source.append("/**\n * Generated from ").append(comment(sourceName))
+				.append(" by the mustache-compile task. Do not edit.\n */\n");
+		source.append("public final class ").append(className).append(" extends CompiledTemplate {\n");
+		for (int i = 0; i < constants.size(); i++) {
+			source.append("\n\tprivate static final String T").append(i).append(" = ")
+					.append(literal(constants.get(i))).append(';');
+		}
+		if (!constants.isEmpty()) {
+			source.append('\n');
+		}
+
+		source.append("\n\tpublic ").append(className).append("(Mustache.Compiler compiler) {\n\t\tsuper(compiler, ")
+				.append(sites);
+		for (String partial : partialBlocks.keySet()) {
+			source.append(", ").append(literal(partial)).append(", ").append(literal(partialHashes.get(partial)));
+		}
+		source.append(");\n\t}\n");
+
+		addDispatch(source, "block", "Context ctx, Writer out", "b", "ctx, out");
+		addDispatch(source, "decompile", "StringBuilder into", "d", "into");
+		source.append(methods);
+		source.append("}\n");
+		return source.toString();
+	}
+
+	/**
+	 * adds the statements rendering and decompiling a segment
+	 */
+	private void addStatements(Object segment, List<String> execute, List<String> decompile) {
+		if (STRING_SEGMENT.isInstance(segment)) {
+			String text = (String) field(segment, "_text");
+			for (int start = 0; start < text.length(); start += MAX_CONSTANT) {
+				int constant = constant(text.substring(start, Math.min(text.length(), start + MAX_CONSTANT)));
+				execute.add("text(out, T" + constant + ");");
+				decompile.add("into.append(T" + constant + ");");
+			}
+		} else if (VARIABLE_SEGMENT.isInstance(segment)) {
+			String name = literal((String) field(segment, "_name"));
+			boolean escape = field(segment, "_escaper") != Escapers.NONE;
+			execute.add("variable(ctx, " + sites++ + ", " + name + ", " + field(segment, "_line") + ", " + escape
+					+ ", out);");
+			decompile.add("tag(' ', " + name + ", into);");
+		} else if (SECTION_SEGMENT.isInstance(segment) || INVERTED_SEGMENT.isInstance(segment)) {
+			boolean section = SECTION_SEGMENT.isInstance(segment);
+			String name = literal((String) field(segment, "_name"));
+			int block = blocks.size();
+			blocks.add((Object[]) field(segment, "_segs"));
+			execute.add((section ? "section" : "inverted") + "(ctx, " + sites++ + ", " + name + ", "
+					+ field(segment, "_line") + ", " + block + ", out);");
+			decompile.add("tag('" + (section ? '#' : '^') + "', " + name + ", into);");
+			decompile.add("d" + block + "(into);");
+			decompile.add("tag('/', " + name + ", into);");
+		} else if (INCLUDED_SEGMENT.isInstance(segment)) {
+			String name = (String) field(segment, "_name");
+			// partials are rendered in the context of the including segment
+			execute.add("b" + partialBlock(name) + "(ctx, out);");
+			decompile.add("tag('>', " + literal(name) + ", into);");
+		} else if (!FAUX_SEGMENT.isInstance(segment)) {
+			throw unsupported(new IllegalStateException("Unknown template segment " + segment));
+		}
+	}
+
+	/**
+	 * @return the block of a partial, parsed the first time it is found. A
+	 *         partial including itself is rendered by a recursive call.
+	 */
+	private int partialBlock(String name) {
+		Integer block = partialBlocks.get(name);
+		if (block == null) {
+			String text;
+			try {
+				if (loader == null) {
+					throw new UnsupportedOperationException("Template loading not configured");
+				}
+				Reader reader = loader.getTemplate(name);
+				try {
+					text = CompiledTemplate.read(reader);
+				} finally {
+					reader.close();
+				}
+			} catch (Exception e) {
+				throw new MustacheException("Unable to load template: " + name, e);
+			}
+			block = blocks.size();
+			partialBlocks.put(name, block);
+			partialHashes.put(name, TemplateCache.hash(text));
+			blocks.add(segments(parser.compile(text)));
+		}
+		return block;
+	}
+
+	private int constant(String text) {
+		Integer index = constantIndexes.get(text);
+		if (index == null) {
+			index = constants.size();
+			constants.add(text);
+			constantIndexes.put(text, index);
+		}
+		return index;
+	}
+
+	/**
+	 * adds a method made of the given statements, split into several methods
+	 * when there are too many statements
+	 */
+	private static void addMethod(StringBuilder methods, String name, String parameters, String arguments,
+			List<String> statements) {
+		if (statements.size() <= MAX_STATEMENTS) {
+			addMethod(methods, name, parameters, statements);
+			return;
+		}
+		List<String> calls = new ArrayList<String>();
+		for (int start = 0; start < statements.size(); start += MAX_STATEMENTS) {
+			String part = name + "_" + calls.size();
+			calls.add(part + "(" + arguments + ");");
+			addMethod(methods, part, parameters,
+					statements.subList(start, Math.min(statements.size(), start + MAX_STATEMENTS)));
+		}
+		addMethod(methods, name, parameters, calls);
+	}
+
+	private static void addMethod(StringBuilder methods, String name, String parameters, List<String> statements) {
+		methods.append("\n\tprivate void ").append(name).append('(').append(parameters).append(") {\n");
+		for (String statement : statements) {
+			methods.append("\t\t").append(statement).append('\n');
+		}
+		methods.append("\t}\n");
+	}
+
+	/**
+	 * adds the method calling the method of a block given its index
+	 */
+	private void addDispatch(StringBuilder source, String name, String parameters, String prefix, String arguments) {
+		source.append("\n\t@Override\n\tprotected void ").append(name).append("(int block, ").append(parameters)
+				.append(") {\n\t\tswitch (block) {\n");
+		for (int block = 0; block < blocks.size(); block++) {
+			source.append("\t\tcase ").append(block).append(":\n\t\t\t").append(prefix).append(block).append('(')
+					.append(arguments).append(");\n\t\t\tbreak;\n");
+		}
+		source.append("\t\tdefault:\n\t\t\tthrow new IllegalArgumentException(\"No block \" + block);\n");
+		source.append("\t\t}\n\t}\n");
+	}
+
+	/**
+	 * @return the Java literal of a string, made of ASCII characters only
+	 */
+	static String literal(String text) {
+		StringBuilder literal = new StringBuilder(text.length() + 2);
+		literal.append('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '"':
+				literal.append("\\\"");
+				break;
+			case '\\':
+				literal.append("\\\\");
+				break;
+			case '\n':
+				literal.append("\\n");
+				break;
+			case '\r':
+				literal.append("\\r");
+				break;
+			case '\t':
+				literal.append("\\t");
+				break;
+			default:
+				if (c < 0x20 || c > 0x7e) {
+					// line breaks are escaped above: a unicode escape of a line
+					// break would end the literal
+					literal.append("\\u");
+					String hex = Integer.toHexString(c);
+					for (int pad = hex.length(); pad < 4; pad++) {
+						literal.append('0');
+					}
+					literal.append(hex);
+				} else {
+					literal.append(c);
+				}
+			}
+		}
+		return literal.append('"').toString();
+	}
+
+	/**
+	 * @return a name that can be written in a comment
+	 */
+	private static String comment(String name) {
+		StringBuilder comment = new StringBuilder(name.length());
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			// a backslash could start a unicode escape, even in a comment
+			comment.append(c == '\\' ? '/' : c < 0x20 || c > 0x7e ? '?' : c);
+		}
+		return comment.toString().replace("*/", "*?/");
+	}
+
+	private static Object[] segments(Template template) {
+		return (Object[]) field(template, "_segs");
+	}
+
+	/**
+	 * @return the value of a field of a JMustache object
+	 */
+	private static Object field(Object object, String name) {
+		for (Class<?> c = object.getClass(); c != null; c = c.getSuperclass()) {
+			try {
+				Field field = c.getDeclaredField(name);
+				field.setAccessible(true);
+				return field.get(object);
+			} catch (NoSuchFieldException e) {
+				// look in the superclass
+			} catch (Exception e) {
+				// IllegalAccessException, or a SecurityException
+				throw unsupported(e);
+			}
+		}
+		throw unsupported(new NoSuchFieldException(name + " in " + object.getClass().getName()));
+	}
+
+	/**
+	 * @return the class of a JMustache segment, or null if there is no such
+	 *         class in the JMustache version
+	 */
+	private static Class<?> segmentClass(String name) {
+		try {
+			return Class.forName(Mustache.class.getName() + "$" + name);
+		} catch (ClassNotFoundException e) {
+			return null;
+		}
+	}
+
+	private static UnsupportedOperationException unsupported(Exception cause) {
+		Package jmustache = Mustache.class.getPackage();
+		String version = jmustache == null ? null : jmustache.getImplementationVersion();
+		UnsupportedOperationException e = new UnsupportedOperationException("Unsupported JMustache version"
+				+ (version == null ? "" : " " + version));
+		e.initCause(cause);
+		return e;
+	}
+}
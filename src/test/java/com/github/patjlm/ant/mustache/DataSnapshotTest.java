@@ -0,0 +1,207 @@
+package com.github.patjlm.ant.mustache;
+
+import static com.github.patjlm.ant.mustache.TestFiles.project;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DataSnapshotTest {
+
+	private static final String TEMPLATE = "{{foo}} {{#flag?}}on{{/flag?}}{{^off?}} not off{{/off?}} "
+			+ "{{#mylist}}{{__id__}}={{p}};{{/mylist}} {{n}} {{#l}}{{#a}}a={{a}}{{/a}}{{^a}}{{.}}{{/a}};{{/l}} "
+			+ "{{#o}}{{p.q}}{{/o}}";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		roundTrip(false, "\u00e9t\u00e9 on not off 10=b;2=a; 1 [1, 2.5];a=b;\"c\";null;12345678901; true");
+	}
+
+	@Test
+	public void testRoundTripJsonTrees() throws IOException {
+		roundTrip(true, "\u00e9t\u00e9 on not off 10=b;2=a; 1.7 [1,2.5];a=b;c;null;12345678901; true");
+	}
+
+	private void roundTrip(boolean jsonTrees, String expected) throws IOException {
+		Project project = project();
+		project.setProperty("foo", "\u00e9t\u00e9");
+		project.setProperty("flag?", "true");
+		project.setProperty("off?", "false");
+		project.setProperty("mylist.10.p", "b");
+		project.setProperty("mylist.2.p", "a");
+		project.setProperty("n@JSON", "1.7");
+		project.setProperty("l@JSON", "[[1, 2.5], {\"a\" : \"b\"}, \"c\", null, 12345678901]");
+		project.setProperty("o@JSON", "{\"p\" : {\"q\" : true}}");
+		MustacheFilter built = new MustacheFilter();
+		built.setProject(project);
+		built.setJsonTrees(jsonTrees);
+		assertEquals(expected, built.filter(TEMPLATE));
+
+		File snapshot = new File(folder.getRoot(), "data/model.snapshot");
+		MustacheSnapshotTask task = new MustacheSnapshotTask();
+		task.setProject(project);
+		task.setJsonTrees(jsonTrees);
+		task.setTofile(snapshot);
+		task.execute();
+
+		// loaded in a project without the properties
+		MustacheFilter loaded = new MustacheFilter();
+		loaded.setProject(project());
+		loaded.setSnapshotFile(snapshot);
+		assertEquals(expected, loaded.filter(TEMPLATE));
+		try {
+			loaded.getData().put("foo", "bar");
+			fail("Expected UnsupportedOperationException to be raised");
+		} catch (UnsupportedOperationException e) {
+		}
+	}
+
+	@Test
+	public void testInvalidSnapshot() throws IOException {
+		File file = folder.newFile("invalid.snapshot");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write("not a snapshot".getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		MustacheFilter filter = new MustacheFilter();
+		filter.setProject(project());
+		filter.setSnapshotFile(file);
+		try {
+			filter.filter("{{foo}}");
+			fail("Expected BuildException to be raised");
+		} catch (BuildException e) {
+			assertEquals("Unable to load data model snapshot " + file + ": " + file + " is not a data model snapshot",
+					e.getMessage());
+		}
+	}
+
+	@Test
+	public void testOtherVersion() throws IOException {
+		File file = folder.newFile("old.snapshot");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		try {
+			out.writeInt(0x4d534e50);
+			out.writeInt(1);
+		} finally {
+			out.close();
+		}
+		MustacheFilter filter = new MustacheFilter();
+		filter.setProject(project());
+		filter.setSnapshotFile(file);
+		try {
+			filter.filter("{{foo}}");
+			fail("Expected BuildException to be raised");
+		} catch (BuildException e) {
+			assertEquals("Unable to load data model snapshot " + file + ": Unsupported data model snapshot version 1 in "
+					+ file, e.getMessage());
+		}
+	}
+
+	@Test
+	public void testCorruptedSnapshot() throws IOException {
+		Project project = project();
+		project.setProperty("foo", "bar");
+		project.setProperty("mylist.1.p", "a");
+		project.setProperty("mylist.2.p", "b");
+		File snapshot = new File(folder.getRoot(), "model.snapshot");
+		MustacheSnapshotTask task = new MustacheSnapshotTask();
+		task.setProject(project);
+		task.setTofile(snapshot);
+		task.execute();
+
+		// bytes flipped in the middle of the payload, the length unchanged
+		RandomAccessFile file = new RandomAccessFile(snapshot, "rw");
+		try {
+			long middle = 16 + (file.length() - 16) / 2;
+			for (long i = middle - 2; i < middle + 2; i++) {
+				file.seek(i);
+				int b = file.read();
+				file.seek(i);
+				file.write(~b);
+			}
+		} finally {
+			file.close();
+		}
+		try {
+			DataSnapshot.read(snapshot, newData());
+			fail("Expected IOException to be raised");
+		} catch (IOException e) {
+			assertEquals("Corrupted data model snapshot " + snapshot, e.getMessage());
+		}
+	}
+
+	@Test
+	public void testInvalidCount() throws IOException {
+		// a string table announcing more strings than the payload can hold
+		byte[] payload = new byte[] { 0x7f, 0, 0, 0, 1 };
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		File file = folder.newFile("count.snapshot");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		try {
+			out.writeInt(0x4d534e50);
+			out.writeInt(3);
+			out.writeInt(payload.length);
+			out.writeInt((int) crc.getValue());
+			out.write(payload);
+		} finally {
+			out.close();
+		}
+		try {
+			DataSnapshot.read(file, newData());
+			fail("Expected IOException to be raised");
+		} catch (IOException e) {
+			assertEquals("Invalid data model snapshot " + file, e.getMessage());
+		}
+	}
+
+	@Test
+	public void testTruncatedSnapshot() throws IOException {
+		Project project = project();
+		project.setProperty("foo", "bar");
+		File snapshot = new File(folder.getRoot(), "model.snapshot");
+		MustacheSnapshotTask task = new MustacheSnapshotTask();
+		task.setProject(project);
+		task.setTofile(snapshot);
+		task.execute();
+
+		// the snapshot is closed once loaded, so it can be replaced
+		MustacheFilter loaded = new MustacheFilter();
+		loaded.setProject(project());
+		loaded.setSnapshotFile(snapshot);
+		assertEquals("bar", loaded.filter("{{foo}}"));
+		RandomAccessFile file = new RandomAccessFile(snapshot, "rw");
+		try {
+			file.setLength(file.length() - 1);
+		} finally {
+			file.close();
+		}
+		try {
+			DataSnapshot.read(snapshot, newData());
+			fail("Expected IOException to be raised");
+		} catch (IOException e) {
+			assertEquals("Truncated data model snapshot " + snapshot, e.getMessage());
+		}
+	}
+
+	private static MustacheData newData() {
+		return new MustacheData(project(), "^.+?$", true, "__id__", "(.+?)\\.(\\d+)\\.(.+)", false, true,
+				"^(.+)(@JSON)$");
+	}
+}
@@ -0,0 +1,43 @@
+package com.github.patjlm.ant.mustache;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks that the string scans used for the default patterns classify keys
+ * exactly as the regular expressions do.
+ */
+public class KeyClassifierTest {
+
+	private static final String[] KEYS = { "", "a", "foo", "foo?", "a.b", "a.1", "a.1.", ".1.b", "a.1.b", "a..1.b",
+			"a.1.2.b", "a.x.1.b", "a.1x.2.b", "mylist.01.value@JSON", "l[01].a", "@JSON", "x@JSON", "x@JSON.1.y",
+			"a.1.b\n", "a\n.1.b", "x@JSON\n", "\n", "a.12345678901234567890.b", "a.\u0661.b" };
+
+	@Test
+	public void testDefaultPatterns() {
+		KeyClassifier fast = new KeyClassifier(KeyClassifier.DEFAULT_BOOLEAN_REGEX, true,
+				KeyClassifier.DEFAULT_LIST_REGEX, true, KeyClassifier.DEFAULT_JSON_VALUE_REGEX);
+		// the same patterns written differently are evaluated as regular
+		// expressions
+		KeyClassifier regex = new KeyClassifier("^(?:.+?)$", true, "(.+?)\\.(\\d+)\\.(.+)(?:)", true,
+				"^(.+)(@JSON)(?:)$");
+		for (String key : KEYS) {
+			KeyClassifier.Match expected = regex.classify(key);
+			KeyClassifier.Match actual = fast.classify(key);
+			assertEquals(key, expected.kind, actual.kind);
+			assertEquals(key, expected.rootKey, actual.rootKey);
+			assertEquals(key, expected.id, actual.id);
+			assertEquals(key, expected.subKey, actual.subKey);
+		}
+	}
+
+	@Test
+	public void testDisabledListsAndJson() {
+		KeyClassifier classifier = new KeyClassifier("^is.+", false, KeyClassifier.DEFAULT_LIST_REGEX, false,
+				KeyClassifier.DEFAULT_JSON_VALUE_REGEX);
+		assertEquals(KeyClassifier.Kind.PLAIN, classifier.classify("a.1.b").kind);
+		assertEquals(KeyClassifier.Kind.PLAIN, classifier.classify("x@JSON").kind);
+		assertEquals(KeyClassifier.Kind.BOOLEAN, classifier.classify("isFoo").kind);
+	}
+}
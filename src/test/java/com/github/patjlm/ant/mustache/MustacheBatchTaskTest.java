@@ -0,0 +1,98 @@
+package com.github.patjlm.ant.mustache;
+
+import static com.github.patjlm.ant.mustache.TestFiles.project;
+import static com.github.patjlm.ant.mustache.TestFiles.read;
+import static com.github.patjlm.ant.mustache.TestFiles.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MustacheBatchTaskTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testJsonLines() throws IOException {
+		File rows = folder.newFile("hosts.jsonl");
+		write(rows, "{\"host\" : \"a\", \"port\" : 81, \"db\" : {\"name\" : \"da\"}}\n"
+				+ "{\"host\" : \"b\", \"db\" : {\"user\" : \"ub\"}}\n\n");
+		Project project = project();
+		project.setProperty("port", "80");
+		project.setProperty("db@JSON", "{\"name\" : \"default\", \"user\" : \"admin\"}");
+		MustacheBatchTask task = task(project, "{{host}}:{{port}} {{db.name}}/{{db.user}}");
+		task.setRows(rows);
+		task.execute();
+
+		File dest = new File(folder.getRoot(), "dest");
+		// nested objects are layered key by key
+		assertEquals("a:81 da/admin", read(new File(dest, "a.conf")));
+		assertEquals("b:80 default/ub", read(new File(dest, "b.conf")));
+	}
+
+	@Test
+	public void testCsv() throws IOException {
+		File rows = folder.newFile("hosts.csv");
+		write(rows, "host,desc,enabled?\r\na,\"one, \"\"quoted\"\"\nline\",false\r\n\r\nb,two\r\n");
+		Project project = project();
+		project.setProperty("enabled?", "true");
+		MustacheBatchTask task = task(project, "{{host}}: {{desc}}{{#enabled?}} on{{/enabled?}}");
+		task.setRows(rows);
+		task.execute();
+
+		File dest = new File(folder.getRoot(), "dest");
+		assertEquals("a: one, \"quoted\"\nline", read(new File(dest, "a.conf")));
+		assertEquals("b: two on", read(new File(dest, "b.conf")));
+	}
+
+	@Test
+	public void testRowList() throws IOException {
+		Project project = project();
+		project.setProperty("hosts.1.host", "a");
+		project.setProperty("hosts.2.host", "b");
+		project.setProperty("hosts.2.port", "81");
+		project.setProperty("port", "80");
+		MustacheBatchTask task = task(project, "{{host}}:{{port}} {{__id__}}");
+		task.setRowList("hosts");
+		task.execute();
+
+		File dest = new File(folder.getRoot(), "dest");
+		assertEquals("a:80 1", read(new File(dest, "a.conf")));
+		assertEquals("b:81 2", read(new File(dest, "b.conf")));
+	}
+
+	@Test
+	public void testSameFile() throws IOException {
+		File rows = folder.newFile("hosts.jsonl");
+		write(rows, "{\"host\" : \"a\"}\n{\"host\" : \"b\"}\n{\"host\" : \"a\"}\n");
+		MustacheBatchTask task = task(project(), "{{host}}");
+		task.setRows(rows);
+		try {
+			task.execute();
+			fail("Expected BuildException to be raised");
+		} catch (BuildException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("The row 3 of " + rows));
+		}
+	}
+
+	private MustacheBatchTask task(Project project, String template) throws IOException {
+		File file = new File(folder.getRoot(), "template.mustache");
+		write(file, template);
+		MustacheBatchTask task = new MustacheBatchTask();
+		task.setProject(project);
+		task.setTemplate(file);
+		task.setTodir(new File(folder.getRoot(), "dest"));
+		task.setFilename("{{host}}.conf");
+		task.setEncoding("UTF-8");
+		return task;
+	}
+}
@@ -0,0 +1,182 @@
+package com.github.patjlm.ant.mustache;
+
+import static com.github.patjlm.ant.mustache.TestFiles.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.Path;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.samskivert.mustache.Mustache;
+
+public class MustacheCompileTaskTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testSameOutput() throws IOException {
+		StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 300; i++) {
+			large.append("line ").append(i).append(" {{name}}{{#flag?}} on{{/flag?}}\n");
+		}
+		for (int i = 0; i < 1000; i++) {
+			large.append("0123456789");
+		}
+		Map<String, String> templates = new LinkedHashMap<String, String>();
+		templates.put("variables", "Hello {{name}} & {{{name}}} {{&name}} {{missing}}!\n");
+		templates.put("lists", "{{#list}}\n  {{__id__}}: {{value}}{{#-first}} first{{/-first}}"
+				+ "{{#-last}} last{{/-last}} {{-index}}\n{{/list}}\n{{^empty}}none{{/empty}}{{^list}}none{{/list}}\n");
+		templates.put("sections", "{{! comment }}\n{{#flag?}}\non\n{{/flag?}}\n{{^flag?}}off{{/flag?}}\n"
+				+ "{{=<% %>=}}<% name %> <%#flag?%>on<%/flag?%>\n");
+		templates.put("json", "{{#json}}{{a}} {{#b}}[{{.}}]{{/b}}{{/json}} {{json.a}}");
+		templates.put("partials", "{{#tree}}{{>node}}{{/tree}}\n  {{>header}}\n");
+		templates.put("text", "caf\u00e9 \\u0041 \"q\"\t{{name}}\r\n\u0001*/");
+		templates.put("large", large.toString());
+		File partials = folder.newFolder("partials");
+		write(new File(partials, "node"), "{{name}}({{#children}}{{>node}}{{/children}})");
+		write(new File(partials, "header"), "# {{name}}\n");
+		Project project = project();
+		File classes = compile(project, templates, partials);
+
+		for (Map.Entry<String, String> template : templates.entrySet()) {
+			String text = template.getValue();
+			MustacheFilter compiled = filter(project, partials);
+			compiled.setCompiledPackage("test.templates");
+			compiled.setCompiledClasspath(new Path(project, classes.getPath()));
+			assertNotNull(template.getKey(), compiled.getCompiledTemplates().find(compiled.getCompiler(), text));
+			assertEquals(template.getKey(), filter(project, partials).filter(text), compiled.filter(text));
+		}
+	}
+
+	@Test
+	public void testFallback() throws IOException {
+		File partials = folder.newFolder("partials");
+		write(new File(partials, "header"), "# {{name}}\n");
+		Map<String, String> templates = new LinkedHashMap<String, String>();
+		templates.put("partials", "{{>header}}");
+		Project project = project();
+		File classes = compile(project, templates, partials);
+		MustacheFilter filter = filter(project, partials);
+		filter.setCompiledPackage("test.templates");
+		filter.setCompiledClasspath(new Path(project, classes.getPath()));
+		filter.setCacheTemplates(false);
+
+		// a template without generated class
+		assertNull(filter.getCompiledTemplates().find(filter.getCompiler(), "{{name}}"));
+		assertEquals("&lt;b&gt;", filter.filter("{{name}}"));
+
+		// a template whose partial changed since it was generated
+		write(new File(partials, "header"), "## {{name}}\n");
+		assertNull(filter.getCompiledTemplates().find(filter.getCompiler(), "{{>header}}"));
+		assertEquals("## &lt;b&gt;\n", filter.filter("{{>header}}"));
+	}
+
+	@Test
+	public void testSharedClassLoader() throws IOException {
+		File partials = folder.newFolder("partials");
+		Map<String, String> templates = new LinkedHashMap<String, String>();
+		templates.put("variables", "{{name}}");
+		Project project = project();
+		File classes = compile(project, templates, partials);
+		MustacheFilter filter = filter(project, partials);
+		filter.setCompiledPackage("test.templates");
+		filter.setCompiledClasspath(new Path(project, classes.getPath()));
+		MustacheFilter other = filter(project, partials);
+		other.setCompiledPackage("test.templates");
+		other.setCompiledClasspath(new Path(project, classes.getPath()));
+		assertSame(filter.getCompiledTemplates(), other.getCompiledTemplates());
+		assertNotNull(other.getCompiledTemplates().find(other.getCompiler(), "{{name}}"));
+
+		// released at the end of the build
+		project.fireBuildFinished(null);
+		MustacheFilter next = filter(project, partials);
+		next.setCompiledPackage("test.templates");
+		next.setCompiledClasspath(new Path(project, classes.getPath()));
+		assertNotSame(filter.getCompiledTemplates(), next.getCompiledTemplates());
+	}
+
+	private static Project project() {
+		Project project = TestFiles.project();
+		project.setProperty("name", "<b>");
+		project.setProperty("flag?", "true");
+		project.setProperty("list.1.value", "one");
+		project.setProperty("list.2.value", "two");
+		project.setProperty("json@JSON", "{\"a\" : \"x\", \"b\" : [1, 2.5, \"s\"]}");
+		project.setProperty("tree@JSON", "{\"name\" : \"root\", \"children\" : [{\"name\" : \"a\", \"children\" : "
+				+ "[{\"name\" : \"b\", \"children\" : []}]}, {\"name\" : \"c\", \"children\" : []}]}");
+		return project;
+	}
+
+	private static MustacheFilter filter(Project project, File partials) {
+		MustacheFilter filter = new MustacheFilter();
+		filter.setProject(project);
+		filter.setEscapeHTML(true);
+		filter.setDefaultValue("?");
+		filter.setPartialPath(new PartialPath(project, partials.getPath()));
+		return filter;
+	}
+
+	/**
+	 * generates the classes of the given templates, and compiles them
+	 *
+	 * @return the directory of the compiled classes
+	 */
+	private File compile(Project project, Map<String, String> templates, File partials) throws IOException {
+		JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+		Assume.assumeNotNull(javac);
+		File dir = folder.newFolder("templates");
+		for (Map.Entry<String, String> template : templates.entrySet()) {
+			write(new File(dir, template.getKey() + ".mustache"), template.getValue());
+		}
+		File sources = new File(folder.getRoot(), "sources");
+		MustacheCompileTask task = new MustacheCompileTask();
+		task.setProject(project);
+		FileSet fileset = new FileSet();
+		fileset.setDir(dir);
+		task.addFileset(fileset);
+		task.setDestdir(sources);
+		task.setPackage("test.templates");
+		task.setEncoding("UTF-8");
+		task.setPartialPath(new PartialPath(project, partials.getPath()));
+		task.execute();
+
+		File classes = folder.newFolder("classes");
+		List<String> arguments = new ArrayList<String>();
+		arguments.add("-d");
+		arguments.add(classes.getPath());
+		arguments.add("-classpath");
+		arguments.add(location(CompiledTemplate.class) + File.pathSeparator + location(Mustache.class));
+		for (File source : new File(sources, "test/templates").listFiles()) {
+			arguments.add(source.getPath());
+		}
+		assertEquals(0, javac.run(null, null, null, arguments.toArray(new String[arguments.size()])));
+		return classes;
+	}
+
+	private static String location(Class<?> c) {
+		try {
+			return new File(c.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
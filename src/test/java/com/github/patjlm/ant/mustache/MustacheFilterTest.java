@@ -4,16 +4,47 @@
 
 package com.github.patjlm.ant.mustache;
 
+import static com.github.patjlm.ant.mustache.TestFiles.read;
+import static com.github.patjlm.ant.mustache.TestFiles.write;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.RandomAccess;
+import java.util.TreeSet;
 import java.util.Map.Entry;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.samskivert.mustache.MustacheException;
 
 /**
@@ -21,6 +52,9 @@ import com.samskivert.mustache.MustacheException;
  */
 public class MustacheFilterTest {
 
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
 	@Test
 	public void testSimpleVariable() {
 		test(new MustacheFilter(), "{{foo}}", "bar", context("foo", "bar"));
@@ -118,6 +152,59 @@ public class MustacheFilterTest {
 				context("mylist.1.p1", "1.1", "mylist.1.p2", "1.2", "mylist.2.p1", "2.1", "mylist.2.p2", "2.2"));
 	}
 
+	@Test
+	public void testListSortedById() {
+		Map<String, String> context = context("mylist.10.p", "10", "mylist.2.p", "2", "mylist.1.p", "1");
+		test(new MustacheFilter(), "{{#mylist}}{{p}} {{/mylist}}", "1 10 2 ", context);
+		MustacheFilter m = new MustacheFilter();
+		m.setNumericListIds(true);
+		test(m, "{{#mylist}}{{p}} {{/mylist}}", "1 2 10 ", context);
+	}
+
+	@Test
+	public void testNumericListIds() {
+		MustacheFilter m = new MustacheFilter();
+		m.setNumericListIds(true);
+		test(m, "{{#mylist}}{{__id__}}:{{p}} {{/mylist}}", "2:a 7:b 10:c 1000000:d ",
+				context("mylist.10.p", "c", "mylist.1000000.p", "d", "mylist.2.p", "a", "mylist.7.p", "b"));
+		// ids with leading zeros are not ints, and are sorted as before
+		m = new MustacheFilter();
+		m.setNumericListIds(true);
+		test(m, "{{#mylist}}{{__id__}}:{{p}} {{/mylist}}", "2:a 007:b 10:c ",
+				context("mylist.10.p", "c", "mylist.2.p", "a", "mylist.007.p", "b"));
+		// a property of the element overrides its id
+		m = new MustacheFilter();
+		m.setNumericListIds(true);
+		test(m, "{{#mylist}}{{__id__}} {{/mylist}}", "1 x ", context("mylist.1.p", "a", "mylist.2.__id__", "x"));
+
+		// dense and sparse ids, in no particular order
+		Project project = new Project();
+		MustacheData data = new MustacheData(project, "^.+?$", true, "__id__", "(.+?)\\.(\\d+)\\.(.+)", true, true,
+				"^(.+)(@JSON)$");
+		Hashtable<String, String> props = new Hashtable<String, String>();
+		Random random = new Random(42);
+		TreeSet<Integer> ids = new TreeSet<Integer>();
+		for (int i = 0; i < 3000; i++) {
+			int id = i < 2000 ? random.nextInt(2500) : random.nextInt(999999999);
+			ids.add(id);
+			props.put("mylist." + id + ".p", "p" + id);
+		}
+		data.addProperties(props, null, false);
+		data.freeze();
+		List<?> list = (List<?>) data.get("mylist");
+		assertEquals(ids.size(), list.size());
+		int i = 0;
+		for (Integer id : ids) {
+			MustacheData element = (MustacheData) list.get(i++);
+			assertEquals(String.valueOf(id), element.get("__id__"));
+			assertEquals("p" + id, element.get("p"));
+		}
+		MustacheData first = (MustacheData) list.get(0);
+		assertEquals(2, first.size());
+		assertTrue(first.containsValue(String.valueOf(ids.first())));
+		assertEquals(String.valueOf(ids.first()), new HashMap<String, Object>(first).get("__id__"));
+	}
+
 	@Test
 	public void testListUsingAlphanumericId() {
 		MustacheFilter m = new MustacheFilter();
@@ -133,6 +220,50 @@ public class MustacheFilterTest {
 				context("myproperty@JSON", "{\"p1\" : \"a.1\", \"p2\" : \"a.2\" }"));
 	}
 
+	@Test
+	public void testJsonNestedValues() {
+		test(new MustacheFilter(), "{{n}} {{#l}}{{#a}}a={{a}}{{/a}}{{^a}}{{.}}{{/a}};{{/l}} {{#o}}{{p.q}}{{/o}}",
+				"1 [1, 2.5];a=b;\"c\"; true",
+				context("n@JSON", "1.7", "l@JSON", "[[1, 2.5], {\"a\" : \"b\"}, \"c\"]", "o@JSON",
+						"{\"p\" : {\"q\" : true}}"));
+	}
+
+	@Test
+	public void testJsonTrees() {
+		MustacheFilter m = new MustacheFilter();
+		m.setJsonTrees(true);
+		// numbers keep their value at any level
+		test(m, "{{n}} {{#l}}{{#a}}a={{a}}{{/a}}{{^a}}{{.}}{{/a}};{{/l}} {{#o}}{{p.q}} {{p.r}}{{/o}}",
+				"1.7 [1,2.5];a=b;c; true 2.5",
+				context("n@JSON", "1.7", "l@JSON", "[[1, 2.5], {\"a\" : \"b\"}, \"c\"]", "o@JSON",
+						"{\"p\" : {\"q\" : true, \"r\" : 2.5}}"));
+	}
+
+	@Test
+	public void testJsonStreamedAsTree() throws IOException {
+		String json = "{\"s\" : \"x\", \"n\" : 2.5, \"b\" : true, \"z\" : null, \"l.1.v\" : 1, "
+				+ "\"a\" : [1, 10000000000, 2.5, \"t\", null, [false], {\"o\" : {\"p\" : 3}}]}";
+		MustacheData streamed = new MustacheData(new Project(), "^.+?$", true, "__id__", "(.+?)\\.(\\d+)\\.(.+)",
+				false, true, "^(.+)(@JSON)$");
+		streamed.put("v@JSON", json);
+		MustacheData tree = new MustacheData(new Project(), "^.+?$", true, "__id__", "(.+?)\\.(\\d+)\\.(.+)",
+				false, true, "^(.+)(@JSON)$");
+		tree.put("v", new ObjectMapper().readTree(json));
+		assertEquals(tree, streamed);
+		assertEquals(tree.toString(), streamed.toString());
+	}
+
+	@Test
+	public void testJsonCollector() {
+		MustacheFilter m = new MustacheFilter();
+		m.setJsonTrees(true);
+		test(m,
+				"{{l.1}} {{#o.f}}f{{/o.f}}{{^o.f}}not f{{/o.f}} {{o.d}} {{o.s}} {{#l}}{{.}},{{/l}} {{o}}",
+				"b not f 2.5 false a,b, {\"f\":false,\"d\":2.5,\"s\":\"false\"}",
+				context("l@JSON", "[\"a\", \"b\"]", "o@JSON",
+						"{\"f\" : false, \"d\" : 2.5, \"s\" : \"false\"}"));
+	}
+
 	@Test
 	public void testListAndJsonValue() {
 		test(new MustacheFilter(),
@@ -163,7 +294,7 @@ public class MustacheFilterTest {
 						// Note: using complex JSON with sub-levels, the double
 						// quotes disappear around the internal keys (sub-simple
 						// and sub-ar)... to be checked how to fix this
-						+ "{\"key\"=\"04\", \"msg\"=\"recursive json\", \"simple\"=\"false\", \"ar\"=\"[{sub-simple=false, sub-ar=[\"a1\", \"a2\"]}, {sub-simple=true, sub-ar=[\"b1\", \"b2\"]}]\"}",
+						+ "{\"key\"=\"04\", \"msg\"=\"recursive json\", \"simple\"=\"false\", \"ar\"=\"[{sub-ar=[\"a1\", \"a2\"], sub-simple=false}, {sub-ar=[\"b1\", \"b2\"], sub-simple=true}]\"}",
 
 				context("mylist[01].value@JSON", "{\"msg\" : \"hello\",  \"simple\" : true, \"ar\" : \"a1\" }",
 						"mylist[02].value@JSON", "{\"msg\" : \"world\",  \"simple\" : 20, \"ar\" : [\"a1\"] }",
@@ -196,6 +327,543 @@ public class MustacheFilterTest {
 						"2.2.2"));
 	}
 
+	@Test
+	public void testTemplateCache() {
+		Project project = project(context("foo", "bar"));
+		TemplateCache cache = TemplateCache.getInstance(project);
+		String template = "{{foo}} from the cache test";
+		MustacheFilter m = new MustacheFilter();
+		m.setProject(project);
+		check("bar" + template.substring(7), m.filter(template));
+		m = new MustacheFilter();
+		m.setProject(project);
+		check("bar" + template.substring(7), m.filter(template));
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getHits());
+
+		// a different compiler configuration must not reuse the cached template
+		m = new MustacheFilter();
+		m.setProject(project);
+		m.setEscapeHTML(true);
+		check("bar" + template.substring(7), m.filter(template));
+		assertEquals(2, cache.getMisses());
+
+		// other projects have their own cache
+		test(new MustacheFilter(), template, "baz" + template.substring(7), context("foo", "baz"));
+		assertEquals(2, cache.getMisses());
+		assertEquals(2, cache.size());
+
+		// the templates are released when the build finishes
+		project.fireBuildFinished(null);
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testDataModelSharedByProject() {
+		Project project = new Project();
+		project.setProperty("foo", "bar");
+		MustacheFilter m1 = new MustacheFilter();
+		m1.setProject(project);
+		check("bar", m1.filter("{{foo}}"));
+		MustacheFilter m2 = new MustacheFilter();
+		m2.setProject(project);
+		check("bar", m2.filter("{{foo}}"));
+		assertEquals(1, DataModelCache.getInstance(project).size());
+
+		// a new property triggers a rebuild of the model
+		project.setProperty("other", "value");
+		MustacheFilter m3 = new MustacheFilter();
+		m3.setProject(project);
+		check("bar value", m3.filter("{{foo}} {{other}}"));
+
+		// so does a property whose value is replaced
+		project.setProperty("foo", "baz");
+		MustacheFilter m5 = new MustacheFilter();
+		m5.setProject(project);
+		check("baz value", m5.filter("{{foo}} {{other}}"));
+
+		// different settings get their own model
+		MustacheFilter m4 = getFilter("ot", true);
+		m4.setProject(project);
+		check("value", m4.filter("{{her}}"));
+		assertEquals(2, DataModelCache.getInstance(project).size());
+	}
+
+	@Test
+	public void testLazyData() {
+		MustacheFilter m = new MustacheFilter();
+		m.setLazyData(true);
+		m.setNumericListIds(true);
+		test(m, "{{#isFoo?}}foo{{/isFoo?}}{{^isFoo?}}no foo{{/isFoo?}} {{#mylist}}{{__id__}}:{{p.q}}-{{r}} {{/mylist}}",
+				"no foo 2:a-b 10:c-d ",
+				context("isFoo?", "false", "mylist.10.p@JSON", "{\"q\" : \"c\"}", "mylist.10.r", "d",
+						"mylist.2.p@JSON", "{\"q\" : \"a\"}", "mylist.2.r", "b", "unused@JSON", "{not json"));
+
+		Project project = new Project();
+		project.setProperty("foo", "bar");
+		project.setProperty("unused.1.x", "y");
+		LazyMustacheData data = new LazyMustacheData(project, "^.+?$", true, "__id__", "(.+?)\\.(\\d+)\\.(.+)",
+				false, true, "^(.+)(@JSON)$");
+		data.addProperties(project.getProperties(), null, false);
+		data.freeze();
+		int pending = data.getPendingCount();
+		assertEquals("bar", data.get("foo"));
+		assertEquals(pending - 1, data.getPendingCount());
+		assertEquals(null, data.get("missing"));
+		assertEquals(pending - 1, data.getPendingCount());
+	}
+
+	@Test
+	public void testFrozenNodes() {
+		Project project = project(context("mylist.1.p", "a", "mylist.1.q", "b", "mylist.2.p", "c", "o@JSON",
+				"{\"n\" : null, \"x\" : {\"y\" : 1}}"));
+		MustacheData data = new MustacheData(project, "^.+?$", true, "__id__", "(.+?)\\.(\\d+)\\.(.+)", false, true,
+				"^(.+)(@JSON)$");
+		data.addProperties(project.getProperties(), null, false);
+		data.freeze();
+
+		List<?> list = (List<?>) data.get("mylist");
+		assertTrue(list instanceof RandomAccess);
+		MustacheData first = (MustacheData) list.get(0);
+		assertTrue(first instanceof FrozenMustacheData);
+		assertEquals(3, first.size());
+		assertEquals("b", first.get("q"));
+		assertEquals(null, first.get("missing"));
+		assertEquals(new HashSet<String>(Arrays.asList("__id__", "p", "q")), first.keySet());
+		// keys are shared by the nodes
+		assertSame(key(first, "p"), key((MustacheData) list.get(1), "p"));
+		MustacheData o = (MustacheData) data.get("o");
+		assertTrue(o.containsKey("n"));
+		assertEquals(null, o.get("n"));
+		assertEquals(1, ((MustacheData) o.get("x")).get("y"));
+		try {
+			first.put("p", "z");
+			fail("Expected UnsupportedOperationException to be raised");
+		} catch (UnsupportedOperationException e) {
+		}
+		checkFrozenMap(first, "q", "b");
+		checkFrozenMap(first, "__id__", "1");
+		// the id is formatted once
+		assertSame(first.get("__id__"), first.get("__id__"));
+		checkFrozenMap(data, "o", o);
+	}
+
+	/**
+	 * checks the Map methods of a frozen data model, including the default
+	 * methods of Java 8: reads see the entries and writes fail
+	 */
+	static void checkFrozenMap(final Map<String, Object> map, String key, Object value) {
+		assertEquals(value, map.getOrDefault(key, "default"));
+		assertEquals("default", map.getOrDefault("missing", "default"));
+		assertTrue(map.containsValue(value));
+		final Map<String, Object> visited = new HashMap<String, Object>();
+		map.forEach(new BiConsumer<String, Object>() {
+			@Override
+			public void accept(String k, Object v) {
+				visited.put(k, v);
+			}
+		});
+		assertEquals(map.size(), visited.size());
+		assertEquals(value, visited.get(key));
+
+		BiFunction<Object, Object, Object> replacement = new BiFunction<Object, Object, Object>() {
+			@Override
+			public Object apply(Object k, Object v) {
+				return "replaced";
+			}
+		};
+		Function<Object, Object> creation = new Function<Object, Object>() {
+			@Override
+			public Object apply(Object k) {
+				return "created";
+			}
+		};
+		for (int operation = 0; operation < 11; operation++) {
+			try {
+				switch (operation) {
+				case 0:
+					map.putIfAbsent("missing", "x");
+					break;
+				case 1:
+					map.compute(key, replacement);
+					break;
+				case 2:
+					map.computeIfAbsent("missing", creation);
+					break;
+				case 3:
+					map.computeIfPresent(key, replacement);
+					break;
+				case 4:
+					map.merge(key, "x", replacement);
+					break;
+				case 5:
+					map.replaceAll(replacement);
+					break;
+				case 6:
+					map.replace(key, "x");
+					break;
+				case 7:
+					map.replace(key, value, "x");
+					break;
+				case 8:
+					map.remove(key, value);
+					break;
+				case 9:
+					map.entrySet().iterator().next().setValue("x");
+					break;
+				default:
+					map.keySet().clear();
+				}
+				fail("Expected UnsupportedOperationException to be raised by operation " + operation);
+			} catch (UnsupportedOperationException e) {
+			}
+		}
+		assertEquals(value, map.get(key));
+		assertEquals(visited, new HashMap<String, Object>(map));
+	}
+
+	@Test
+	public void testFrozenJsonValues() throws IOException {
+		StringBuilder large = new StringBuilder("{");
+		for (int i = 20; i > 0; i--) {
+			large.append("\"k").append(i).append("\" : ").append(i).append(i > 1 ? ", " : "}");
+		}
+		Map<String, String> context = context("o@JSON", "{\"b\" : \"v\", \"a\" : [\"v\", {\"c\" : 10}], \"d\" : 10}",
+				"large@JSON", large.toString());
+		Project project = project(context);
+		MustacheData data = new MustacheData(project, "^.+?$", true, "__id__", "(.+?)\\.(\\d+)\\.(.+)", false, true,
+				"^(.+)(@JSON)$");
+		data.setJsonTrees(true);
+		data.addProperties(project.getProperties(), null, false);
+		data.freeze();
+
+		// frozen objects keep the order of their fields
+		JsonNode o = (JsonNode) data.get("o");
+		assertEquals("{\"b\":\"v\",\"a\":[\"v\",{\"c\":10}],\"d\":10}", o.toString());
+		assertEquals(null, o.get("missing"));
+		// equal values are shared
+		assertSame(o.get("b"), o.get("a").get(0));
+		assertSame(o.get("d"), o.get("a").get(1).get("c"));
+		JsonNode largeObject = (JsonNode) data.get("large");
+		assertEquals(20, largeObject.size());
+		for (int i = 1; i <= 20; i++) {
+			assertEquals(i, largeObject.get("k" + i).intValue());
+		}
+		assertEquals(null, largeObject.get("k21"));
+		assertEquals("k20", largeObject.fieldNames().next());
+		try {
+			((ObjectNode) o).put("z", 1);
+			fail("Expected UnsupportedOperationException to be raised");
+		} catch (UnsupportedOperationException e) {
+		}
+		MustacheFilter m = new MustacheFilter();
+		m.setJsonTrees(true);
+		test(m, "{{o.b}} {{o.a.1.c}} {{large.k20}} {{o}}",
+				"v 10 20 {\"b\":\"v\",\"a\":[\"v\",{\"c\":10}],\"d\":10}", context);
+
+		// the repeated values of JSON data files are shared too
+		File file = folder.newFile("repeated.json");
+		write(file, "{\"l\" : [{\"x\" : \"same\"}, {\"x\" : \"same\"}]}");
+		MustacheData fileData = new MustacheData(project, "^.+?$", true, "__id__", "(.+?)\\.(\\d+)\\.(.+)", false,
+				true, "^(.+)(@JSON)$");
+		fileData.addJsonFile(file);
+		fileData.freeze();
+		List<?> l = (List<?>) fileData.get("l");
+		assertSame(((MustacheData) l.get(0)).get("x"), ((MustacheData) l.get(1)).get("x"));
+	}
+
+	@Test
+	public void testStreaming() throws IOException {
+		MustacheFilter m = new MustacheFilter();
+		m.setBufferSize(3);
+		m.setProject(project(context("mylist.1.p", "a", "mylist.2.p", "b")));
+		StringBuilder template = new StringBuilder();
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			template.append("line ").append(i).append(": {{#mylist}}{{p}}{{/mylist}}\n");
+			expected.append("line ").append(i).append(": ab\n");
+		}
+		check(expected.toString(), read(m.chain(new StringReader(template.toString()))));
+
+		try {
+			read(m.chain(new StringReader("{{#mylist}}{{missing}}{{/mylist}}")));
+			fail("Expected MustacheException to be raised");
+		} catch (MustacheException e) {
+		}
+	}
+
+	@Test
+	public void testStreamingBounded() throws IOException {
+		Project project = project(context("p", "0123456789"));
+		MustacheFilter m = new MustacheFilter();
+		m.setProject(project);
+		m.setStatistics(true);
+		m.setBufferSize(16);
+		StringBuilder template = new StringBuilder();
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			template.append("{{p}}\n");
+			expected.append("0123456789\n");
+		}
+		RenderStatistics.TemplateStatistics streamed = RenderStatistics.getInstance(project).getTemplate(
+				MustacheFilter.STREAMED_TEMPLATES);
+		Reader output = m.chain(new StringReader(template.toString()));
+		char[] start = new char[5];
+		for (int n = 0; n < start.length;) {
+			n += output.read(start, n, start.length - n);
+		}
+		assertEquals("01234", new String(start));
+		// the renderer waits for the output to be read
+		assertEquals(0, streamed.getRenders());
+		check(expected.substring(5), read(output));
+		assertEquals(1, streamed.getRenders());
+	}
+
+	@Test
+	public void testStreamingExecutor() throws IOException {
+		Project project = project(context("p", "a"));
+		MustacheFilter m = new MustacheFilter();
+		m.setProject(project);
+		final List<Reader> closed = new ArrayList<Reader>();
+		Reader source = new StringReader("{{p}}") {
+			@Override
+			public void close() {
+				closed.add(this);
+				super.close();
+			}
+		};
+		check("a", read(m.chain(source)));
+		assertEquals(Arrays.asList(source), closed);
+
+		// the renderers of the project share their threads until the end of
+		// the build
+		ExecutorService executor = RenderingReader.getExecutor(project);
+		assertSame(executor, RenderingReader.getExecutor(project));
+		project.fireBuildFinished(null);
+		assertTrue(executor.isShutdown());
+		check("a", read(m.chain(new StringReader("{{p}}"))));
+	}
+
+	@Test
+	public void testJsonBytesParsed() throws IOException {
+		// 8 + 2 + 3 + 4 + 2 bytes in UTF-8
+		String json = "{\"q\" : \"\u00e9\u20ac\ud83d\ude00\"}";
+		Project project = project(context("json@JSON", json));
+		MustacheFilter m = new MustacheFilter();
+		m.setProject(project);
+		m.setStatistics(true);
+		m.filter("{{json.q}}");
+		assertEquals(19, RenderStatistics.getInstance(project).get(RenderStatistics.Counter.JSON_BYTES_PARSED));
+
+		// JSON data files count the same bytes
+		File file = new File(folder.getRoot(), "data.json");
+		write(file, json);
+		project = project(context());
+		m = new MustacheFilter();
+		m.setProject(project);
+		m.setStatistics(true);
+		m.setProjectProperties(false);
+		m.setJsonDataFile(file.getAbsolutePath());
+		m.filter("{{q}}");
+		assertEquals(19, RenderStatistics.getInstance(project).get(RenderStatistics.Counter.JSON_BYTES_PARSED));
+	}
+
+	@Test
+	public void testStatistics() throws IOException {
+		Project project = project(context("mylist.1.p", "a", "mylist.2.p", "b", "json@JSON", "{\"q\" : \"c\"}"));
+		MustacheFilter m = new MustacheFilter();
+		m.setProject(project);
+		m.setStatistics(true);
+		check("ab c", m.filter("{{#mylist}}{{p}}{{/mylist}} {{json.q}}"));
+		check("c", m.filter("{{json.q}}"));
+
+		RenderStatistics statistics = RenderStatistics.getInstance(project);
+		assertEquals(1, statistics.getCount(RenderStatistics.Phase.DATA_MODEL));
+		assertEquals(2, statistics.getCount(RenderStatistics.Phase.COMPILE));
+		assertEquals(2, statistics.getCount(RenderStatistics.Phase.RENDER));
+		assertEquals(project.getProperties().size(), statistics.get(RenderStatistics.Counter.PROPERTIES_SCANNED));
+		assertEquals(2, statistics.get(RenderStatistics.Counter.LIST_ITEMS_CREATED));
+		assertEquals(11, statistics.get(RenderStatistics.Counter.JSON_BYTES_PARSED));
+		assertEquals(5, statistics.get(RenderStatistics.Counter.CHARS_RENDERED));
+		// templates without a file share their statistics
+		assertEquals(2, statistics.getTemplate(MustacheFilter.FILTERED_TEMPLATES).getRenders());
+
+		StringWriter report = new StringWriter();
+		statistics.writeReport(report);
+		assertTrue(report.toString(), report.toString().contains("\"charsRendered\" : 5"));
+
+		// statistics are only collected when enabled
+		Project other = project(context("foo", "bar"));
+		m = new MustacheFilter();
+		m.setProject(other);
+		check("bar", m.filter("{{foo}}"));
+		assertSame(RenderStatistics.DISABLED, m.getStatistics());
+		assertEquals(null, other.getReference("mustache.statistics"));
+		assertEquals(0, RenderStatistics.DISABLED.getCount(RenderStatistics.Phase.RENDER));
+	}
+
+	@Test
+	public void testJsonDataFiles() throws IOException {
+		File base = folder.newFile("base.json");
+		write(base, "{\"name\" : \"base\", \"flag?\" : \"false\", \"n\" : 1.5, \"o\" : {\"a\" : 1, \"b\" : 2},"
+				+ " \"l\" : [{\"x\" : \"y\"}, [true, null], \"s\"]}");
+		File override = folder.newFile("override.json");
+		write(override, "{\"name\" : \"override\", \"o\" : {\"b\" : 3}}");
+
+		MustacheFilter m = new MustacheFilter();
+		m.setJsonDataFile(base.getAbsolutePath() + ", " + override.getAbsolutePath());
+		test(m, "{{name}} {{flag?}} {{n}} {{o.a}}{{o.b}} {{#l}}{{.}};{{/l}}",
+				"override false 1.5 13 {x=y};[true, null];s;",
+				context("name", "property", "other", "value"));
+
+		// properties are overridden by the files in lazy mode too
+		m = new MustacheFilter();
+		m.setLazyData(true);
+		m.setJsonDataFile(override.getAbsolutePath());
+		test(m, "{{name}} {{other}}", "override value", context("name", "property", "other", "value"));
+
+		m = new MustacheFilter();
+		m.setJsonDataFile(folder.getRoot().getAbsolutePath() + "/missing.json");
+		try {
+			test(m, "{{name}}", "", context());
+			fail("Expected BuildException to be raised");
+		} catch (BuildException e) {
+		}
+	}
+
+	@Test
+	public void testOverlay() throws IOException {
+		Project project = project(context("name", "base", "other", "value", "o@JSON", "{\"a\" : 1, \"b\" : 2}",
+				"mylist.1.p", "a", "prod.name", "prod", "prod.o@JSON", "{\"b\" : 3}", "test.mylist.1.p", "b"));
+		String template = "{{name}} {{other}} {{o.a}}{{o.b}} {{#mylist}}{{p}}{{/mylist}}";
+		MustacheFilter prod = new MustacheFilter();
+		prod.setProject(project);
+		prod.setOverlayPrefix("prod.");
+		check("prod value 13 a", prod.filter(template));
+		MustacheFilter test = new MustacheFilter();
+		test.setProject(project);
+		test.setOverlayPrefix("test.");
+		File overlay = folder.newFile("test.json");
+		write(overlay, "{\"name\" : \"test\", \"o\" : {\"a\" : 4}}");
+		test.setOverlayJsonDataFile(overlay.getAbsolutePath());
+		check("test value 42 b", test.filter(template));
+
+		// both overlays share the same base model
+		LayeredMustacheData prodData = (LayeredMustacheData) prod.getData();
+		LayeredMustacheData testData = (LayeredMustacheData) test.getData();
+		assertSame(prodData.getBase(), testData.getBase());
+		assertEquals(3, DataModelCache.getInstance(project).size());
+		assertEquals(prodData.getBase().size(), prodData.size());
+		assertEquals("base", prodData.getBase().get("name"));
+		// the views walk the overlay and the base without copying them
+		Map<String, Object> merged = new HashMap<String, Object>(prodData.getBase());
+		merged.put("name", "prod");
+		merged.put("o", prodData.get("o"));
+		assertEquals(merged.keySet(), prodData.keySet());
+		assertEquals(merged, prodData);
+		assertTrue(prodData.values().contains("prod"));
+		assertTrue(!prodData.values().contains("base"));
+		checkFrozenMap(prodData, "name", "prod");
+		checkFrozenMap(prodData, "other", "value");
+
+		// a replaced overlay property rebuilds the overlay
+		project.setProperty("prod.name", "prod2");
+		prod = new MustacheFilter();
+		prod.setProject(project);
+		prod.setOverlayPrefix("prod.");
+		check("prod2 value 13 a", prod.filter(template));
+	}
+
+	@Test
+	public void testConcurrentFilters() throws Exception {
+		Map<String, String> context = context("name", "base", "o@JSON", "{\"a\" : 1, \"b\" : [2, 3]}", "flag?",
+				"false", "prod.name", "prod");
+		for (int i = 1; i <= 200; i++) {
+			context.put("mylist." + i + ".p", "p" + i);
+			context.put("mylist." + i + ".q@JSON", "{\"r\" : " + i + "}");
+		}
+		final String[] templates = {
+				"{{name}} {{o.a}}{{#o.b}}{{.}}{{/o.b}} {{#mylist}}{{__id__}}:{{p}}{{q.r}},{{/mylist}}",
+				"{{^flag?}}off{{/flag?}} {{#mylist}}{{#-first}}{{p}}{{/-first}}{{#-last}}{{p}}{{/-last}}{{/mylist}}",
+				"{{#mylist}}{{name}}{{/mylist}}" };
+		// the expected outputs, rendered by a single thread with a model of
+		// another project
+		final Map<String, String> expected = new HashMap<String, String>();
+		Project reference = project(context);
+		for (String template : templates) {
+			for (int kind = 0; kind < 3; kind++) {
+				MustacheFilter m = concurrentFilter(reference, kind);
+				expected.put(kind + template, m.filter(template));
+			}
+		}
+		assertTrue(expected.get(1 + templates[0]).startsWith("prod 12"));
+
+		final Project project = project(context);
+		// filters shared by all the threads, as a filter used by a parallel
+		// task, and filters created by each thread, as filters of different
+		// tasks sharing the model of the project
+		final MustacheFilter[] shared = { concurrentFilter(project, 0), concurrentFilter(project, 1),
+				concurrentFilter(project, 2) };
+		int threads = 16;
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				results.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						start.await();
+						int renders = 0;
+						for (int i = 0; i < 50; i++) {
+							int kind = (thread + i) % 3;
+							MustacheFilter m = i % 2 == 0 ? shared[kind] : concurrentFilter(project, kind);
+							String template = templates[(thread * 7 + i) % templates.length];
+							assertEquals(expected.get(kind + template), m.filter(template));
+							renders++;
+						}
+						return renders;
+					}
+				}));
+			}
+			start.countDown();
+			for (Future<Integer> result : results) {
+				assertEquals(50, result.get().intValue());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		// one model per settings: base, overlay over the base, lazy model
+		assertEquals(3, DataModelCache.getInstance(project).size());
+		assertEquals(3, RenderStatistics.getInstance(project).getCount(RenderStatistics.Phase.DATA_MODEL));
+	}
+
+	/**
+	 * @param kind
+	 *            0 for the default model, 1 for an overlay, 2 for a lazy model
+	 */
+	private static MustacheFilter concurrentFilter(Project project, int kind) {
+		MustacheFilter m = new MustacheFilter();
+		m.setProject(project);
+		m.setStatistics(true);
+		if (kind == 1) {
+			m.setOverlayPrefix("prod.");
+		} else if (kind == 2) {
+			m.setLazyData(true);
+		}
+		return m;
+	}
+
+	private static String key(Map<String, ?> map, String key) {
+		for (String k : map.keySet()) {
+			if (k.equals(key)) {
+				return k;
+			}
+		}
+		return null;
+	}
+
 	protected MustacheFilter getFilter(String prefix, Boolean removePrefix) {
 		MustacheFilter m = new MustacheFilter();
 		if (prefix != null) {
@@ -208,6 +876,12 @@ public class MustacheFilterTest {
 	}
 
 	protected void test(MustacheFilter mustache, String template, String expected, Map<String, String> context) {
+		mustache.setProject(project(context));
+		String output = mustache.filter(template);
+		check(expected, output);
+	}
+
+	protected Project project(Map<String, String> context) {
 		Project project = new Project();
 		project.setProperty("ant.regexp.regexpimpl", "org.apache.tools.ant.util.regexp.Jdk14RegexpRegexp");
 		if (context != null) {
@@ -215,9 +889,7 @@ public class MustacheFilterTest {
 				project.setProperty(entry.getKey(), entry.getValue());
 			}
 		}
-		mustache.setProject(project);
-		String output = mustache.filter(template);
-		check(expected, output);
+		return project;
 	}
 
 	protected void check(String expected, String output) {
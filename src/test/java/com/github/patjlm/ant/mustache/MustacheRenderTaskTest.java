@@ -0,0 +1,194 @@
+package com.github.patjlm.ant.mustache;
+
+import static com.github.patjlm.ant.mustache.TestFiles.project;
+import static com.github.patjlm.ant.mustache.TestFiles.read;
+import static com.github.patjlm.ant.mustache.TestFiles.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.util.GlobPatternMapper;
+import org.apache.tools.ant.util.MergingMapper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MustacheRenderTaskTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRenderFiles() throws IOException {
+		File src = folder.newFolder("src");
+		File dest = new File(folder.getRoot(), "dest");
+		for (int i = 0; i < 50; i++) {
+			write(new File(src, "dir" + (i % 3) + "/file" + i + ".mustache"), i + ": {{foo}}{{> partial}}");
+		}
+		File partials = folder.newFolder("partials");
+		write(new File(partials, "partial"), " and {{bar}}");
+
+		Project project = project();
+		project.setProperty("foo", "FOO");
+		project.setProperty("bar", "BAR");
+		MustacheRenderTask task = task(project, src, dest);
+		GlobPatternMapper mapper = new GlobPatternMapper();
+		mapper.setFrom("*.mustache");
+		mapper.setTo("*.txt");
+		task.add(mapper);
+		task.setPartialPath(new PartialPath(project, partials.getAbsolutePath()));
+		task.execute();
+
+		for (int i = 0; i < 50; i++) {
+			assertEquals(i + ": FOO and BAR", read(new File(dest, "dir" + (i % 3) + "/file" + i + ".txt")));
+		}
+	}
+
+	@Test
+	public void testFailuresInFilesetOrder() throws IOException {
+		File src = folder.newFolder("src");
+		File dest = new File(folder.getRoot(), "dest");
+		for (int i = 0; i < 20; i++) {
+			write(new File(src, "file" + (char) ('a' + i)), i % 5 == 3 ? "{{missing" + i + "}}" : "{{foo}}");
+		}
+		Project project = project();
+		project.setProperty("foo", "FOO");
+		MustacheRenderTask task = task(project, src, dest);
+		try {
+			task.execute();
+			fail("Expected BuildException to be raised");
+		} catch (BuildException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Failed to render 4 file(s). First failure on "
+					+ new File(src, "filed")));
+			assertTrue(e.getMessage(), e.getMessage().contains("missing3"));
+		}
+		// the other files are rendered anyway
+		assertEquals("FOO", read(new File(dest, "filea")));
+		assertFalse(new File(dest, "filed").exists());
+	}
+
+	@Test
+	public void testSameOutputForTwoFiles() throws IOException {
+		File src = folder.newFolder("src");
+		write(new File(src, "a"), "a");
+		write(new File(src, "b"), "b");
+		Project project = project();
+		MustacheRenderTask task = task(project, src, folder.newFolder("dest"));
+		MergingMapper mapper = new MergingMapper();
+		mapper.setTo("out");
+		task.add(mapper);
+		try {
+			task.execute();
+			fail("Expected BuildException to be raised");
+		} catch (BuildException e) {
+			assertTrue(e.getMessage(), e.getMessage().endsWith("are both rendered to "
+					+ new File(folder.getRoot(), "dest/out")));
+		}
+	}
+
+	@Test
+	public void testIncremental() throws IOException {
+		File src = folder.newFolder("src");
+		File dest = new File(folder.getRoot(), "dest");
+		File partials = folder.newFolder("partials");
+		write(new File(src, "a"), "{{foo}}{{> partial}}");
+		write(new File(src, "b"), "{{#list}}{{value}}{{/list}}");
+		write(new File(partials, "partial"), "-{{bar}}");
+		File a = new File(dest, "a");
+		File b = new File(dest, "b");
+
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("foo", "FOO");
+		properties.put("bar", "BAR");
+		properties.put("list.1.value", "1");
+		renderIncremental(properties, src, dest, partials);
+		assertEquals("FOO-BAR", read(a));
+		assertEquals("1", read(b));
+
+		// nothing read by the templates changed: the outputs are not written
+		// again
+		write(a, "STALE");
+		write(b, "STALE");
+		properties.put("unused", "value");
+		renderIncremental(properties, src, dest, partials);
+		assertEquals("STALE", read(a));
+		assertEquals("STALE", read(b));
+
+		// a key read by the partial
+		properties.put("bar", "BAR2");
+		renderIncremental(properties, src, dest, partials);
+		assertEquals("FOO-BAR2", read(a));
+		assertEquals("STALE", read(b));
+
+		// a nested value
+		properties.put("list.2.value", "2");
+		renderIncremental(properties, src, dest, partials);
+		assertEquals("FOO-BAR2", read(a));
+		assertEquals("12", read(b));
+
+		// the partial itself
+		write(new File(partials, "partial"), "+{{bar}}");
+		renderIncremental(properties, src, dest, partials);
+		assertEquals("FOO+BAR2", read(a));
+
+		// a deleted output
+		b.delete();
+		renderIncremental(properties, src, dest, partials);
+		assertEquals("12", read(b));
+	}
+
+	@Test
+	public void testNestedPartialsDecodedWithEncoding() throws IOException {
+		File partials = folder.newFolder("partials");
+		writeUtf16(new File(partials, "outer"), "<{{> inner}}>");
+		writeUtf16(new File(partials, "inner"), "{{bar}}");
+		PartialPath path = new PartialPath(project(), partials.getAbsolutePath());
+		path.setEncoding("UTF-16");
+		Map<String, String> found = RenderManifest.findPartials("{{> outer}}", path.getLoader());
+		assertEquals("[outer, inner]", found.keySet().toString());
+	}
+
+	private static void writeUtf16(File file, String text) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(text.getBytes("UTF-16"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void renderIncremental(Map<String, String> properties, File src, File dest, File partials) {
+		Project project = project();
+		for (Map.Entry<String, String> property : properties.entrySet()) {
+			project.setProperty(property.getKey(), property.getValue());
+		}
+		MustacheRenderTask task = task(project, src, dest);
+		task.setIncremental(true);
+		task.setPartialPath(new PartialPath(project, partials.getAbsolutePath()));
+		task.execute();
+	}
+
+	private static MustacheRenderTask task(Project project, File src, File dest) {
+		MustacheRenderTask task = new MustacheRenderTask();
+		task.setProject(project);
+		FileSet fileset = new FileSet();
+		fileset.setProject(project);
+		fileset.setDir(src);
+		task.addFileset(fileset);
+		task.setTodir(dest);
+		task.setThreads(4);
+		task.setEncoding("UTF-8");
+		return task;
+	}
+}
@@ -0,0 +1,114 @@
+package com.github.patjlm.ant.mustache;
+
+import static com.github.patjlm.ant.mustache.TestFiles.read;
+import static com.github.patjlm.ant.mustache.TestFiles.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PartialPathTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testLookupCache() throws IOException {
+		File first = folder.newFolder("first");
+		File second = folder.newFolder("second");
+		write(new File(second, "partial"), "second");
+		PartialPath path = path(first, second);
+		PartialPath.Loader loader = path.getLoader();
+
+		assertEquals(new File(second, "partial"), loader.findPartial("partial"));
+		assertNull(loader.findPartial("missing"));
+		// later lookups are answered from the cache, even for missing partials
+		write(new File(first, "partial"), "first");
+		write(new File(first, "missing"), "missing");
+		assertEquals(new File(second, "partial"), loader.findPartial("partial"));
+		assertNull(loader.findPartial("missing"));
+		assertEquals(4, loader.getLookups());
+		assertEquals(2, loader.getLookupHits());
+
+		try {
+			loader.getTemplate("missing");
+			fail("Expected BuildException to be raised");
+		} catch (BuildException e) {
+		}
+
+		// until the end of the build
+		path.getProject().fireBuildFinished(null);
+		assertEquals(new File(first, "partial"), loader.findPartial("partial"));
+		assertEquals(new File(first, "missing"), loader.findPartial("missing"));
+	}
+
+	@Test
+	public void testLookupCacheDisabled() throws IOException {
+		File first = folder.newFolder("first");
+		File second = folder.newFolder("second");
+		write(new File(second, "partial"), "second");
+		PartialPath path = path(first, second);
+		path.setCacheLookups(false);
+		PartialPath.Loader loader = path.getLoader();
+
+		assertEquals(new File(second, "partial"), loader.findPartial("partial"));
+		assertNull(loader.findPartial("missing"));
+		// partials added after a lookup are found, earlier directories first
+		write(new File(first, "partial"), "first");
+		write(new File(second, "missing"), "generated");
+		assertEquals(new File(first, "partial"), loader.findPartial("partial"));
+		assertEquals(new File(second, "missing"), loader.findPartial("missing"));
+		assertEquals(0, loader.getLookupHits());
+	}
+
+	@Test
+	public void testContentCache() throws IOException {
+		File dir = folder.newFolder("dir");
+		File partial = new File(dir, "partial");
+		write(partial, "\u00e9t\u00e9");
+		PartialPath path = path(dir);
+		path.setEncoding("UTF-8");
+		PartialPath.Loader loader = path.getLoader();
+
+		assertEquals("\u00e9t\u00e9", read(loader.getTemplate("partial")));
+		assertEquals("\u00e9t\u00e9", read(loader.getTemplate("partial")));
+		assertEquals(2, loader.getReads());
+		assertEquals(1, loader.getReadHits());
+
+		// a modified file is read again
+		write(partial, "summer");
+		assertEquals("summer", read(loader.getTemplate("partial")));
+		assertEquals(1, loader.getReadHits());
+	}
+
+	@Test
+	public void testLoaderSharedWhilePathUnchanged() throws IOException {
+		PartialPath path = path(folder.newFolder("first"));
+		PartialPath.Loader loader = path.getLoader();
+		assertSame(loader, path.getLoader());
+		path.setEncoding("UTF-8");
+		PartialPath.Loader utf8Loader = path.getLoader();
+		assertNotSame(loader, utf8Loader);
+		assertSame(utf8Loader, path.getLoader());
+	}
+
+	private static PartialPath path(File... directories) {
+		Project project = new Project();
+		project.init();
+		PartialPath path = new PartialPath(project);
+		for (File directory : directories) {
+			path.createPathElement().setLocation(directory);
+		}
+		return path;
+	}
+}
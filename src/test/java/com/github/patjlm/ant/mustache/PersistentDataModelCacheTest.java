@@ -0,0 +1,186 @@
+package com.github.patjlm.ant.mustache;
+
+import static com.github.patjlm.ant.mustache.TestFiles.write;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.tools.ant.Project;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PersistentDataModelCacheTest {
+
+	private static final String TEMPLATE = "{{name}}: {{#hosts}}{{host}}:{{port}} {{/hosts}}{{db.user}}";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testWarmBuild() throws Exception {
+		File cacheDir = new File(folder.getRoot(), "cache");
+		File dataFile = folder.newFile("data.properties");
+		write(dataFile, "hosts.1.host=a\nhosts.1.port=80\nhosts.2.host=b\nhosts.2.port=81\n");
+		File jsonFile = folder.newFile("data.json");
+		write(jsonFile, "{\"db\" : {\"user\" : \"admin\"}}");
+
+		// each project stands for a new build, without the data model of the
+		// previous ones in memory
+		Project cold = project();
+		assertEquals("app: a:80 b:81 admin", render(cold, cacheDir, dataFile, jsonFile));
+		assertEquals(1, statistics(cold).get(RenderStatistics.Counter.DISK_CACHE_MISSES));
+		assertEquals(1, entries(cacheDir));
+
+		Project warm = project();
+		assertEquals("app: a:80 b:81 admin", render(warm, cacheDir, dataFile, jsonFile));
+		assertEquals(1, statistics(warm).get(RenderStatistics.Counter.DISK_CACHE_HITS));
+		assertEquals(0, statistics(warm).get(RenderStatistics.Counter.DISK_CACHE_MISSES));
+
+		// modified inputs replace the entry
+		write(jsonFile, "{\"db\" : {\"user\" : \"root\"}}");
+		Project modified = project();
+		assertEquals("app: a:80 b:81 root", render(modified, cacheDir, dataFile, jsonFile));
+		assertEquals(1, statistics(modified).get(RenderStatistics.Counter.DISK_CACHE_MISSES));
+		assertEquals(1, entries(cacheDir));
+
+		Project otherProperties = project();
+		otherProperties.setProperty("name", "other");
+		assertEquals("other: a:80 b:81 root", render(otherProperties, cacheDir, dataFile, jsonFile));
+		assertEquals(1, statistics(otherProperties).get(RenderStatistics.Counter.DISK_CACHE_MISSES));
+	}
+
+	@Test
+	public void testInvalidEntry() throws Exception {
+		File cacheDir = new File(folder.getRoot(), "cache");
+		File dataFile = folder.newFile("data.properties");
+		write(dataFile, "hosts.1.host=a\nhosts.1.port=80\ndb.user=admin\n");
+		render(project(), cacheDir, dataFile, null);
+		File entry = cacheDir.listFiles(new java.io.FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".snapshot");
+			}
+		})[0];
+		write(entry, "not a snapshot");
+
+		Project rebuilt = project();
+		assertEquals("app: a:80 admin", render(rebuilt, cacheDir, dataFile, null));
+		assertEquals(1, statistics(rebuilt).get(RenderStatistics.Counter.DISK_CACHE_MISSES));
+		Project warm = project();
+		assertEquals("app: a:80 admin", render(warm, cacheDir, dataFile, null));
+		assertEquals(1, statistics(warm).get(RenderStatistics.Counter.DISK_CACHE_HITS));
+	}
+
+	@Test
+	public void testCorruptedEntry() throws Exception {
+		File cacheDir = new File(folder.getRoot(), "cache");
+		File dataFile = folder.newFile("data.properties");
+		write(dataFile, "hosts.1.host=a\nhosts.1.port=80\ndb.user=admin\n");
+		render(project(), cacheDir, dataFile, null);
+		File entry = cacheDir.listFiles(new java.io.FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".snapshot");
+			}
+		})[0];
+		RandomAccessFile file = new RandomAccessFile(entry, "rw");
+		try {
+			long middle = file.length() / 2;
+			file.seek(middle);
+			int b = file.read();
+			file.seek(middle);
+			file.write(~b);
+		} finally {
+			file.close();
+		}
+
+		Project rebuilt = project();
+		assertEquals("app: a:80 admin", render(rebuilt, cacheDir, dataFile, null));
+		assertEquals(1, statistics(rebuilt).get(RenderStatistics.Counter.DISK_CACHE_MISSES));
+		Project warm = project();
+		assertEquals("app: a:80 admin", render(warm, cacheDir, dataFile, null));
+		assertEquals(1, statistics(warm).get(RenderStatistics.Counter.DISK_CACHE_HITS));
+	}
+
+	@Test
+	public void testConcurrentBuilds() throws Exception {
+		final File cacheDir = new File(folder.getRoot(), "cache");
+		// the same directory, through another path
+		final File otherPath = new File(new File(folder.getRoot(), "other/.."), "cache");
+		final File dataFile = folder.newFile("data.properties");
+		write(dataFile, "hosts.1.host=a\nhosts.1.port=80\ndb.user=admin\n");
+		new File(folder.getRoot(), "other").mkdir();
+		int builds = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(builds);
+		try {
+			List<Future<Project>> results = new ArrayList<Future<Project>>();
+			for (int i = 0; i < builds; i++) {
+				final File dir = i % 2 == 0 ? cacheDir : otherPath;
+				results.add(executor.submit(new Callable<Project>() {
+					@Override
+					public Project call() throws Exception {
+						Project project = project();
+						start.await();
+						assertEquals("app: a:80 admin", render(project, dir, dataFile, null));
+						return project;
+					}
+				}));
+			}
+			start.countDown();
+			long misses = 0;
+			long hits = 0;
+			for (Future<Project> result : results) {
+				RenderStatistics statistics = statistics(result.get());
+				misses += statistics.get(RenderStatistics.Counter.DISK_CACHE_MISSES);
+				hits += statistics.get(RenderStatistics.Counter.DISK_CACHE_HITS);
+			}
+			// the model is built once
+			assertEquals(1, misses);
+			assertEquals(builds - 1, hits);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static Project project() {
+		Project project = TestFiles.project();
+		project.setProperty("name", "app");
+		return project;
+	}
+
+	private static String render(Project project, File cacheDir, File dataFile, File jsonFile) {
+		MustacheFilter filter = new MustacheFilter();
+		filter.setProject(project);
+		filter.setStatistics(true);
+		filter.setCacheDir(cacheDir);
+		filter.setDataFile(dataFile);
+		if (jsonFile != null) {
+			filter.setJsonDataFile(jsonFile.getAbsolutePath());
+		}
+		return filter.filter(TEMPLATE);
+	}
+
+	private static RenderStatistics statistics(Project project) {
+		return RenderStatistics.getInstance(project);
+	}
+
+	private static int entries(File cacheDir) {
+		int entries = 0;
+		for (String name : cacheDir.list()) {
+			if (name.endsWith(".snapshot")) {
+				entries++;
+			}
+		}
+		return entries;
+	}
+}
@@ -0,0 +1,72 @@
+package com.github.patjlm.ant.mustache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.apache.tools.ant.Project;
+import org.junit.Test;
+
+import com.samskivert.mustache.Mustache;
+import com.samskivert.mustache.Template;
+
+public class RenderBufferTest {
+
+	@Test
+	public void testReuse() {
+		RenderBuffer.Pool pool = new RenderBuffer.Pool(2);
+		RenderBuffer buffer = pool.acquire(null);
+		buffer.write("hello ");
+		buffer.write(new char[] { 'w', 'o', 'r', 'l', 'd' }, 0, 5);
+		buffer.write('!');
+		assertEquals("hello world!", buffer.toString());
+		// a nested render does not share the buffer in use
+		RenderBuffer nested = pool.acquire(null);
+		assertNotSame(buffer, nested);
+		nested.release();
+		buffer.release();
+
+		RenderBuffer next = pool.acquire(null);
+		assertSame(buffer, next);
+		assertEquals(0, next.size());
+		assertEquals("", next.toString());
+		next.release();
+
+		// large buffers are not kept
+		RenderBuffer large = pool.acquire(null);
+		large.write(new char[RenderBuffer.MAX_POOLED_SIZE + 1], 0, RenderBuffer.MAX_POOLED_SIZE + 1);
+		large.release();
+		assertNotSame(large, pool.acquire(null));
+	}
+
+	@Test
+	public void testEstimate() {
+		RenderBuffer.Pool pool = new RenderBuffer.Pool(1);
+		Template template = Mustache.compiler().compile("{{foo}}");
+		assertEquals(0, pool.estimate(template));
+		render(pool, template, 800);
+		render(pool, template, 1200);
+		assertEquals(1125, pool.estimate(template));
+		// estimates are kept per template
+		assertEquals(0, pool.estimate(Mustache.compiler().compile("{{foo}}")));
+	}
+
+	@Test
+	public void testReleasedAtEndOfBuild() {
+		Project project = new Project();
+		RenderBuffer.Pool pool = RenderBuffer.getPool(project);
+		assertSame(pool, RenderBuffer.getPool(project));
+		Template template = Mustache.compiler().compile("{{foo}}");
+		RenderBuffer buffer = render(pool, template, 100);
+		project.fireBuildFinished(null);
+		assertEquals(0, pool.estimate(template));
+		assertNotSame(buffer, pool.acquire(template));
+	}
+
+	private static RenderBuffer render(RenderBuffer.Pool pool, Template template, int chars) {
+		RenderBuffer buffer = pool.acquire(template);
+		buffer.write(new char[chars], 0, chars);
+		buffer.release();
+		return buffer;
+	}
+}
@@ -0,0 +1,64 @@
+package com.github.patjlm.ant.mustache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+
+import org.apache.tools.ant.Project;
+
+/**
+ * Helpers shared by the tests: files are written and read in UTF-8.
+ */
+final class TestFiles {
+
+	private TestFiles() {
+	}
+
+	/**
+	 * @return a new initialized project
+	 */
+	static Project project() {
+		Project project = new Project();
+		project.init();
+		return project;
+	}
+
+	/**
+	 * writes a file, creating its parent directories if needed
+	 */
+	static void write(File file, String text) throws IOException {
+		file.getParentFile().mkdirs();
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			writer.write(text);
+		} finally {
+			writer.close();
+		}
+	}
+
+	static String read(File file) throws IOException {
+		return read(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+	}
+
+	/**
+	 * reads a reader in small chunks, and closes it
+	 */
+	static String read(Reader reader) throws IOException {
+		try {
+			StringBuilder text = new StringBuilder();
+			char[] buffer = new char[5];
+			int n;
+			while ((n = reader.read(buffer)) != -1) {
+				text.append(buffer, 0, n);
+			}
+			return text.toString();
+		} finally {
+			reader.close();
+		}
+	}
+}